@@ -0,0 +1,360 @@
+package com.carbs.studybuddy.study_buddy
+
+import android.annotation.SuppressLint
+import android.media.AudioFormat
+import android.media.AudioRecord
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaFormat
+import android.media.MediaRecorder
+import android.os.SystemClock
+import java.io.FileOutputStream
+
+/**
+ * Microphone -> AAC-LC encoder that writes raw ADTS frames instead of an MP4.
+ *
+ * ADTS needs no trailer, so every frame is readable as soon as it is written:
+ * if the process dies only the audio still inside the encoder is lost (well
+ * under a second), not the whole file as with MediaRecorder's MP4 moov atom.
+ * Frames are written with unbuffered FileOutputStream writes, which survive
+ * a process kill.
+ *
+ * With [segmentUs] > 0 the output rolls over to a new file once a segment
+ * holds that much audio, always on a frame boundary, so segments join
+ * gaplessly. Durations come from the encoded frame count, so paused time is
+ * never included.
+ *
+ * With [trimSilence], silent stretches longer than SILENCE_KEEP_MS are cut
+ * down to that length (plus a short pre-roll before speech resumes) before
+ * encoding. Every cut is reported as a [Cut] so timestamps in the trimmed
+ * audio can be mapped back to the lecture's real time.
+ */
+class AacRecorder(
+    private val sampleRate: Int,
+    private val bitRate: Int,
+    private val segmentUs: Long,
+    private val pathFor: (Int) -> String,
+    private val listener: Listener,
+    private val trimSilence: Boolean = false,
+) {
+
+    /** [removedMs] of silence was dropped at [atMs] of the segment's audio. */
+    data class Cut(val atMs: Long, val removedMs: Long)
+
+    interface Listener {
+        /** A segment file is complete. Called on the recorder thread. */
+        fun onSegmentClosed(index: Int, path: String, durationMs: Long, last: Boolean, cuts: List<Cut>)
+
+        /**
+         * A silence cut was made, at [Cut.atMs] of the whole recording's
+         * encoded audio. Called on the recorder thread, before the segment
+         * holding it is closed, so it can be persisted in case of a crash.
+         */
+        fun onCut(cut: Cut)
+
+        /** Recording stopped because of [e]; the open segment is closed first. */
+        fun onError(e: Exception)
+
+        /**
+         * At most every LEVEL_INTERVAL_MS: peak input level (0..1) since the
+         * last call, bytes written and audio encoded so far.
+         */
+        fun onLevel(peak: Float, bytes: Long, encodedMs: Long)
+
+        /** The mic delivered only zeros for STALL_MS (muted or taken by another app). */
+        fun onStall()
+    }
+
+    private var audio: AudioRecord? = null
+    private var codec: MediaCodec? = null
+    private var thread: Thread? = null
+
+    @Volatile private var running = false
+    @Volatile private var paused = false
+
+    private val frameUs = 1024L * 1_000_000L / sampleRate
+
+    /** Opens the mic and encoder; throws if either is unavailable. */
+    @SuppressLint("MissingPermission") // checked by the app before START
+    fun start() {
+        val minBuf = AudioRecord.getMinBufferSize(
+            sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT
+        )
+        val a = AudioRecord(
+            MediaRecorder.AudioSource.MIC,
+            sampleRate,
+            AudioFormat.CHANNEL_IN_MONO,
+            AudioFormat.ENCODING_PCM_16BIT,
+            maxOf(minBuf * 4, sampleRate) // >= 0.5 s of headroom
+        )
+        if (a.state != AudioRecord.STATE_INITIALIZED) {
+            a.release()
+            throw IllegalStateException("AudioRecord not initialized")
+        }
+
+        val format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, 1).apply {
+            setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC)
+            setInteger(MediaFormat.KEY_BIT_RATE, bitRate)
+            setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, READ_BYTES)
+        }
+        val c = try {
+            MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC).apply {
+                configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+                start()
+            }
+        } catch (e: Exception) {
+            a.release()
+            throw e
+        }
+
+        a.startRecording()
+        audio = a
+        codec = c
+        running = true
+        thread = Thread({ loop(a, c) }, "AacRecorder").apply { start() }
+    }
+
+    fun pause() { paused = true }
+
+    fun resume() { paused = false }
+
+    /** Flushes the encoder, closes the last segment and waits for the thread. */
+    fun stop() {
+        running = false
+        try { thread?.join(5_000) } catch (_: InterruptedException) {}
+        thread = null
+    }
+
+    private fun loop(a: AudioRecord, c: MediaCodec) {
+        val info = MediaCodec.BufferInfo()
+        val pcm = ByteArray(READ_BYTES)
+        var samples = 0L
+        var index = 0
+        var path = pathFor(index)
+        var out = FileOutputStream(path)
+        var frames = 0L
+        var micOn = true
+        var segmentStartUs = 0L
+
+        // Health reporting
+        var bytes = 0L
+        var encodedUs = 0L
+        var peak = 0
+        var lastLevelAt = 0L
+        var zeroSince = 0L
+        var stallReported = false
+
+        // Silence trimming state (input side, in samples of encoded audio)
+        val cuts = ArrayList<Cut>() // global timeline, split per segment on close
+        val preroll = ArrayDeque<ByteArray>()
+        var prerollBytes = 0
+        var silentSamples = 0L
+        var noise = 0.0
+        var cutAt = -1L
+        var cutRemoved = 0L
+
+        fun close(last: Boolean) {
+            try { out.fd.sync() } catch (_: Exception) {}
+            out.close()
+            val durationUs = frames * frameUs
+            val endUs = segmentStartUs + durationUs
+            val mine = cuts.filter { it.atMs * 1000 < endUs || last }
+            cuts.removeAll(mine)
+            val relative = mine.map { Cut((it.atMs - segmentStartUs / 1000).coerceAtLeast(0), it.removedMs) }
+            segmentStartUs = endUs
+            listener.onSegmentClosed(index, path, durationUs / 1000, last, relative)
+        }
+
+        fun drain(untilEos: Boolean) {
+            while (true) {
+                val id = c.dequeueOutputBuffer(info, if (untilEos) 10_000 else 0)
+                if (id == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    if (untilEos) continue else return
+                }
+                if (id < 0) continue // format/buffers changed
+                val eos = info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0
+                if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG == 0 && info.size > 0) {
+                    if (segmentUs > 0 && frames * frameUs >= segmentUs) {
+                        close(last = false)
+                        index += 1
+                        path = pathFor(index)
+                        out = FileOutputStream(path)
+                        frames = 0
+                    }
+                    val buf = c.getOutputBuffer(id) ?: continue
+                    val frame = ByteArray(ADTS_HEADER + info.size)
+                    writeAdtsHeader(frame, frame.size)
+                    buf.position(info.offset)
+                    buf.get(frame, ADTS_HEADER, info.size)
+                    out.write(frame)
+                    frames += 1
+                    bytes += frame.size
+                    encodedUs += frameUs
+                }
+                c.releaseOutputBuffer(id, false)
+                if (eos) return
+            }
+        }
+
+        fun queue(pcm: ByteArray, length: Int) {
+            var offset = 0
+            while (offset < length) {
+                val id = c.dequeueInputBuffer(10_000)
+                if (id < 0) {
+                    drain(untilEos = false) // free input buffers
+                    continue
+                }
+                val buf = c.getInputBuffer(id) ?: continue
+                buf.clear()
+                val n = minOf(buf.remaining(), length - offset)
+                buf.put(pcm, offset, n)
+                c.queueInputBuffer(id, 0, n, samples * 1_000_000L / sampleRate, 0)
+                samples += n / 2
+                offset += n
+            }
+        }
+
+        /** Whether this chunk should be encoded; silent overflow goes to the pre-roll. */
+        fun keep(pcm: ByteArray, length: Int): Boolean {
+            if (!trimSilence) return true
+            var sum = 0.0
+            val count = length / 2
+            for (i in 0 until count) {
+                val v = ((pcm[2 * i + 1].toInt() shl 8) or (pcm[2 * i].toInt() and 0xFF)).toShort().toDouble()
+                sum += v * v
+            }
+            val rms = if (count > 0) Math.sqrt(sum / count) else 0.0
+            // Noise floor follows quiet input at once and loud input slowly
+            noise = if (noise == 0.0 || rms < noise) rms else noise + (rms - noise) * 0.002
+            val voiced = rms > maxOf(noise * VOICE_RATIO, MIN_VOICE_RMS)
+
+            if (voiced) {
+                silentSamples = 0
+                // Speech resumes: replay the pre-roll so onsets are not clipped
+                while (preroll.isNotEmpty()) {
+                    val chunk = preroll.removeFirst()
+                    queue(chunk, chunk.size)
+                }
+                prerollBytes = 0
+                if (cutAt >= 0 && cutRemoved > 0) {
+                    val cut = Cut(cutAt * 1000 / sampleRate, cutRemoved * 1000 / sampleRate)
+                    cuts.add(cut)
+                    listener.onCut(cut)
+                }
+                cutAt = -1
+                cutRemoved = 0
+                return true
+            }
+            silentSamples += count
+            if (silentSamples * 1000 / sampleRate <= SILENCE_KEEP_MS) return true
+
+            preroll.addLast(pcm.copyOf(length))
+            prerollBytes += length
+            while (prerollBytes * 500L / sampleRate > PREROLL_MS) { // bytes/2 samples -> ms
+                val dropped = preroll.removeFirst()
+                prerollBytes -= dropped.size
+                if (cutAt < 0) cutAt = samples
+                cutRemoved += dropped.size / 2
+            }
+            return false
+        }
+
+        try {
+            while (running) {
+                if (paused) {
+                    zeroSince = 0
+                    if (micOn) { a.stop(); micOn = false }
+                    Thread.sleep(20)
+                    continue
+                }
+                if (!micOn) { a.startRecording(); micOn = true }
+
+                val n = a.read(pcm, 0, READ_BYTES)
+                if (n < 0) throw IllegalStateException("AudioRecord.read failed: $n")
+
+                var chunkPeak = 0
+                for (i in 0 until n / 2) {
+                    val v = ((pcm[2 * i + 1].toInt() shl 8) or (pcm[2 * i].toInt() and 0xFF)).toShort().toInt()
+                    val m = if (v < 0) -v else v
+                    if (m > chunkPeak) chunkPeak = m
+                }
+                if (chunkPeak > peak) peak = chunkPeak
+                val now = SystemClock.elapsedRealtime()
+                if (chunkPeak > 0) {
+                    zeroSince = 0
+                    stallReported = false
+                } else if (zeroSince == 0L) {
+                    zeroSince = now
+                } else if (!stallReported && now - zeroSince >= STALL_MS) {
+                    stallReported = true
+                    listener.onStall()
+                }
+                if (now - lastLevelAt >= LEVEL_INTERVAL_MS) {
+                    listener.onLevel(peak / 32768f, bytes, encodedUs / 1000)
+                    lastLevelAt = now
+                    peak = 0
+                }
+                if (n > 0 && keep(pcm, n)) queue(pcm, n)
+                drain(untilEos = false)
+            }
+            // A cut still open at stop is silence up to the end; keep its record
+            if (cutAt >= 0 && cutRemoved > 0) {
+                val cut = Cut(cutAt * 1000 / sampleRate, cutRemoved * 1000 / sampleRate)
+                cuts.add(cut)
+                listener.onCut(cut)
+            }
+
+            // Flush what the encoder still holds into the last segment
+            val id = c.dequeueInputBuffer(100_000)
+            if (id >= 0) {
+                c.queueInputBuffer(id, 0, 0, samples * 1_000_000L / sampleRate, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                drain(untilEos = true)
+            }
+            close(last = true)
+        } catch (e: Exception) {
+            try { close(last = true) } catch (_: Exception) {}
+            listener.onError(e)
+        } finally {
+            try { if (micOn) a.stop() } catch (_: Exception) {}
+            try { a.release() } catch (_: Exception) {}
+            try { c.stop() } catch (_: Exception) {}
+            try { c.release() } catch (_: Exception) {}
+            audio = null
+            codec = null
+        }
+    }
+
+    /** 7-byte ADTS header (no CRC) for one AAC-LC mono frame of [length] bytes incl. header. */
+    private fun writeAdtsHeader(dst: ByteArray, length: Int) {
+        val profile = 2 // AAC LC
+        val freq = ADTS_RATES.indexOf(sampleRate).let { if (it < 0) 4 else it }
+        val channels = 1
+        dst[0] = 0xFF.toByte()
+        dst[1] = 0xF1.toByte()
+        dst[2] = (((profile - 1) shl 6) or (freq shl 2) or (channels shr 2)).toByte()
+        dst[3] = (((channels and 3) shl 6) or (length shr 11)).toByte()
+        dst[4] = ((length and 0x7FF) shr 3).toByte()
+        dst[5] = (((length and 7) shl 5) or 0x1F).toByte()
+        dst[6] = 0xFC.toByte()
+    }
+
+    companion object {
+        private const val ADTS_HEADER = 7
+        private const val READ_BYTES = 4096
+
+        // Silence trimming: a chunk is speech when it is this much louder
+        // than the running noise floor (about 12 dB) and above an absolute
+        // minimum; this much silence is always kept, plus a pre-roll.
+        private const val VOICE_RATIO = 4.0
+        private const val MIN_VOICE_RMS = 60.0
+        private const val SILENCE_KEEP_MS = 1_000L
+        private const val PREROLL_MS = 300L
+
+        private const val LEVEL_INTERVAL_MS = 200L
+        private const val STALL_MS = 2_000L
+        private val ADTS_RATES = intArrayOf(
+            96_000, 88_200, 64_000, 48_000, 44_100, 32_000, 24_000,
+            22_050, 16_000, 12_000, 11_025, 8_000, 7_350
+        )
+    }
+}
@@ -0,0 +1,19 @@
+package com.carbs.studybuddy.study_buddy
+
+/**
+ * AAC-LC mono settings the app can pick per recording ("profile" argument
+ * of startService). Mirrored by the Dart side's recorder plugin fallback.
+ *
+ * The server resamples everything to 16 kHz mono before transcription, so
+ * SPEECH keeps all the information transcription uses at a quarter of
+ * STANDARD's size; COMPACT matches the old 64 kbps / 22.05 kHz recorder.
+ */
+enum class EncodingProfile(val key: String, val sampleRate: Int, val bitRate: Int) {
+    STANDARD("standard", 44_100, 128_000),
+    COMPACT("compact", 22_050, 64_000),
+    SPEECH("speech", 16_000, 32_000);
+
+    companion object {
+        fun of(key: String?): EncodingProfile = values().firstOrNull { it.key == key } ?: STANDARD
+    }
+}
@@ -2,22 +2,40 @@ package com.carbs.studybuddy.study_buddy
 
 import android.content.Intent
 import android.os.Build
+import android.os.Handler
+import android.os.Looper
 import io.flutter.embedding.android.FlutterActivity
 import io.flutter.embedding.engine.FlutterEngine
+import io.flutter.plugin.common.EventChannel
 import io.flutter.plugin.common.MethodChannel
 
 class MainActivity : FlutterActivity() {
     private val CHANNEL = "study_buddy/recorder_service"
+    private val EVENTS = "study_buddy/recorder_events"
 
     override fun configureFlutterEngine(flutterEngine: FlutterEngine) {
         super.configureFlutterEngine(flutterEngine)
 
+        EventChannel(flutterEngine.dartExecutor.binaryMessenger, EVENTS)
+            .setStreamHandler(RecorderEvents)
+
         MethodChannel(flutterEngine.dartExecutor.binaryMessenger, CHANNEL)
             .setMethodCallHandler { call, result ->
-                fun send(action: String, path: String? = null) {
+                fun send(
+                    action: String,
+                    path: String? = null,
+                    segmentSeconds: Int = 0,
+                    tag: String? = null,
+                    profile: String? = null,
+                    trimSilence: Boolean = false,
+                ) {
                     val intent = Intent(this, RecorderService::class.java).apply {
                         this.action = action
                         if (path != null) putExtra("path", path)
+                        if (segmentSeconds > 0) putExtra("segmentSeconds", segmentSeconds)
+                        if (tag != null) putExtra("tag", tag)
+                        if (profile != null) putExtra("profile", profile)
+                        if (trimSilence) putExtra("trimSilence", true)
                     }
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                         startForegroundService(intent)
@@ -32,8 +50,58 @@ class MainActivity : FlutterActivity() {
                         if (path == null) {
                             result.error("ARG", "Missing 'path' argument", null)
                         } else {
-                            send("START", path)
-                            result.success(null)
+                            // segmentSeconds > 0: rotate files for live upload
+                            val segmentSeconds = call.argument<Int>("segmentSeconds") ?: 0
+                            val segmented = segmentSeconds > 0 && RecorderService.supportsSegments()
+                            // Unknown or missing profile names record with STANDARD
+                            val profile = EncodingProfile.of(call.argument<String>("profile"))
+                            send(
+                                "START",
+                                path,
+                                segmentSeconds,
+                                call.argument<String>("tag"),
+                                profile.key,
+                                call.argument<Boolean>("trimSilence") ?: false,
+                            )
+                            // The file that grows while recording (ADTS, see AacRecorder)
+                            val first = if (segmented) RecorderService.segmentPath(path, 0) else path
+                            result.success(mapOf(
+                                "segmented" to segmented,
+                                "profile" to profile.key,
+                                "probePath" to RecorderService.partialPath(first),
+                            ))
+                        }
+                    }
+                    "completedSegments" -> {
+                        result.success(mapOf(
+                            "segments" to RecorderService.completedSegments.toList(),
+                            "finished" to RecorderService.finished,
+                        ))
+                    }
+                    "recoverRecordings" -> {
+                        val dirs = call.argument<List<String>>("dirs") ?: emptyList()
+                        val main = Handler(Looper.getMainLooper())
+                        Thread {
+                            val recovered = RecorderService.recover(dirs)
+                            main.post { result.success(recovered) }
+                        }.start()
+                    }
+                    "concatSegments" -> {
+                        val inputs = call.argument<List<String>>("inputs")
+                        val output = call.argument<String>("output")
+                        if (inputs == null || output == null) {
+                            result.error("ARG", "Missing 'inputs' or 'output' argument", null)
+                        } else {
+                            // Remux off the main thread; reply on it
+                            val main = Handler(Looper.getMainLooper())
+                            Thread {
+                                try {
+                                    SegmentConcat.concat(inputs, output)
+                                    main.post { result.success(output) }
+                                } catch (e: Exception) {
+                                    main.post { result.error("CONCAT", e.message, null) }
+                                }
+                            }.start()
                         }
                     }
                     "pauseService" -> {
@@ -0,0 +1,36 @@
+package com.carbs.studybuddy.study_buddy
+
+import android.os.Handler
+import android.os.Looper
+import io.flutter.plugin.common.EventChannel
+
+/**
+ * Bridge from RecorderService to the "study_buddy/recorder_events"
+ * EventChannel. Events are maps with a "type":
+ * - level: amplitude (0..1 peak), bytes (written so far), encodedMs
+ * - segment: index, path, durationMs, cuts (a file was closed)
+ * - finished: the last file of the recording is closed
+ * - stalled: the mic delivered only digital silence for a while
+ * - error: code, message
+ * Events with no listener are dropped.
+ */
+object RecorderEvents : EventChannel.StreamHandler {
+
+    private val main = Handler(Looper.getMainLooper())
+    @Volatile private var sink: EventChannel.EventSink? = null
+
+    override fun onListen(arguments: Any?, events: EventChannel.EventSink?) {
+        sink = events
+    }
+
+    override fun onCancel(arguments: Any?) {
+        sink = null
+    }
+
+    /** Post [event] to Flutter from any thread. */
+    fun emit(type: String, event: Map<String, Any?> = emptyMap()) {
+        if (sink == null) return
+        val payload = HashMap<String, Any?>(event).apply { put("type", type) }
+        main.post { sink?.success(payload) }
+    }
+}
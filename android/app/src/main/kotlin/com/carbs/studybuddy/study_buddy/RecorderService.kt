@@ -6,17 +6,183 @@ import android.app.NotificationManager
 import android.app.Service
 import android.content.Context
 import android.content.Intent
-import android.media.MediaRecorder
 import android.os.Build
 import android.os.IBinder
 import android.os.PowerManager
 import androidx.core.app.NotificationCompat
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.File
+import java.io.FileOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
 
 class RecorderService : Service() {
 
-    private var recorder: MediaRecorder? = null
+    companion object {
+        /** Segments are rolled by AacRecorder itself, so every API level supports them. */
+        fun supportsSegments(): Boolean = true
+
+        /** "<base>.m4a" -> "<base>.seg003.m4a" (mirrored on the Dart side). */
+        fun segmentPath(path: String, index: Int): String =
+            path.removeSuffix(".m4a") + ".seg" + index.toString().padStart(3, '0') + ".m4a"
+
+        /** ADTS file a finished .m4a is written to while it is still recording. */
+        fun partialPath(path: String): String = path.removeSuffix(".m4a") + ".partial.aac"
+
+        /** Per-recording state file; see writeManifest. */
+        fun manifestPath(path: String): String = path.removeSuffix(".m4a") + ".manifest.json"
+
+        /** Finished segments of the current recording, read by MainActivity. */
+        val completedSegments = CopyOnWriteArrayList<Map<String, Any>>()
+
+        /** True once the last segment of the current recording is closed. */
+        @Volatile var finished: Boolean = true
+
+        /** Base path of the recording in progress (recovery leaves it alone). */
+        @Volatile var activePath: String? = null
+
+        /**
+         * Recordings the app has not taken yet, oldest first. The app deletes
+         * a manifest once it queued or discarded the recording, so every
+         * manifest still on disk (other than the active one) is returned,
+         * on every launch until then. Interrupted ones are made playable
+         * first: each leftover .partial.aac (the open segment, and any whose
+         * finishSegment failed) is remuxed to its .m4a and the manifest is
+         * marked finished and recovered.
+         */
+        fun recover(dirs: List<String>): List<Map<String, Any?>> {
+            val found = mutableListOf<Pair<Long, Map<String, Any?>>>()
+            for (dir in dirs) {
+                val files = File(dir).listFiles { f -> f.name.endsWith(".manifest.json") } ?: continue
+                for (file in files) {
+                    try {
+                        val json = JSONObject(file.readText())
+                        val base = json.getString("path")
+                        if (base == activePath) continue
+                        if (!json.optBoolean("finished")) {
+                            remuxPartials(json)
+                            json.put("finished", true)
+                            json.put("recovered", true)
+                            writeJsonAtomic(file, json)
+                        }
+                        val segments = json.optJSONArray("segments") ?: JSONArray()
+                        val usable = (0 until segments.length()).any { i ->
+                            File(segments.getJSONObject(i).getString("path")).length() > 0
+                        }
+                        if (!usable) {
+                            // Nothing was recorded, or the files are gone
+                            file.delete()
+                            continue
+                        }
+                        found.add(file.lastModified() to manifestToMap(json))
+                    } catch (_: Exception) {
+                        // Unreadable leftovers stay on disk for a later attempt
+                    }
+                }
+            }
+            return found.sortedBy { it.first }.map { it.second }
+        }
+
+        /**
+         * Add every leftover partial of an interrupted recording to its
+         * manifest's segments: the one that was open, and any earlier one
+         * whose remux failed. Partials of segments already listed are stale.
+         */
+        private fun remuxPartials(json: JSONObject) {
+            val base = json.getString("path")
+            val segmented = json.optBoolean("segmented")
+            val segments = json.optJSONArray("segments") ?: JSONArray()
+            val listed = (0 until segments.length()).map { segments.getJSONObject(it).getInt("index") }.toSet()
+            val partials = if (segmented) {
+                val prefix = File(base.removeSuffix(".m4a") + ".seg").name
+                val suffix = ".partial.aac"
+                (File(base).parentFile?.listFiles { f -> f.name.startsWith(prefix) && f.name.endsWith(suffix) } ?: emptyArray())
+                    .mapNotNull { f -> f.name.removePrefix(prefix).removeSuffix(suffix).toIntOrNull()?.let { it to f } }
+            } else {
+                listOf(0 to File(partialPath(base)))
+            }
+            val partialCuts = json.optJSONObject("partialCuts") ?: JSONObject()
+            val entries = (0 until segments.length()).map { segments.getJSONObject(it) }.toMutableList()
+            for ((index, partial) in partials.sortedBy { it.first }) {
+                if (index !in listed && partial.length() > 0) {
+                    val target = if (segmented) segmentPath(base, index) else base
+                    // Throws if the .m4a could not be finalized; the partial
+                    // then stays on disk for the next attempt.
+                    SegmentConcat.concat(listOf(partial.path), target)
+                    entries.add(JSONObject()
+                        .put("index", index)
+                        .put("path", target)
+                        .put("durationMs", SegmentConcat.durationMs(target))
+                        .put("cuts", partialCuts.optJSONArray(index.toString()) ?: JSONArray()))
+                    partial.delete()
+                } else {
+                    // Already listed (stale) or empty
+                    partial.delete()
+                }
+            }
+            val sorted = JSONArray()
+            entries.sortedBy { it.getInt("index") }.forEach { sorted.put(it) }
+            json.put("segments", sorted)
+            json.remove("partialCuts")
+        }
+
+        private fun manifestToMap(json: JSONObject): Map<String, Any?> {
+            val segments = json.optJSONArray("segments") ?: JSONArray()
+            return mapOf(
+                "path" to json.getString("path"),
+                "segmented" to json.optBoolean("segmented"),
+                "tag" to (if (json.isNull("tag")) null else json.optString("tag")),
+                "finished" to json.optBoolean("finished"),
+                "recovered" to json.optBoolean("recovered"),
+                "segments" to (0 until segments.length()).map { i ->
+                    val s = segments.getJSONObject(i)
+                    val cuts = s.optJSONArray("cuts") ?: JSONArray()
+                    mapOf(
+                        "index" to s.getInt("index"),
+                        "path" to s.getString("path"),
+                        "durationMs" to s.getLong("durationMs"),
+                        "cuts" to (0 until cuts.length()).map { j ->
+                            val c = cuts.getJSONObject(j)
+                            mapOf("atMs" to c.getLong("atMs"), "removedMs" to c.getLong("removedMs"))
+                        },
+                    )
+                },
+            )
+        }
+
+        private fun writeJsonAtomic(target: File, json: JSONObject) {
+            val tmp = File(target.path + ".tmp")
+            FileOutputStream(tmp).use { out ->
+                out.write(json.toString().toByteArray())
+                out.fd.sync()
+            }
+            tmp.renameTo(target)
+        }
+    }
+
+    private var recorder: AacRecorder? = null
     private var hasStarted: Boolean = false
-    private var currentPath: String? = null
+
+    // Live segmenting (0 = one file at the requested path)
+    private var basePath: String? = null
+    private var tag: String? = null
+    private var segmentSeconds: Int = 0
+    private var profile: EncodingProfile = EncodingProfile.STANDARD
+    private var trimSilence: Boolean = false
+
+    // Closed partial files are remuxed to .m4a here, off the recorder thread
+    private val finisher = Executors.newSingleThreadExecutor()
+
+    // Silence cuts of segments that have no .m4a yet (the open one, and closed
+    // ones still being remuxed), relative to each segment; kept in the
+    // manifest so recover() restores them after a crash.
+    private val partialCuts = ConcurrentHashMap<Int, List<Map<String, Long>>>()
+    // Cuts of the open segment on the recording's timeline (recorder thread)
+    private val openCuts = mutableListOf<AacRecorder.Cut>()
+    private var openIndex = 0
+    private var openStartMs = 0L
 
     // Keep CPU on while screen is locked so recording continues reliably
     private var wakeLock: PowerManager.WakeLock? = null
@@ -35,6 +201,7 @@ class RecorderService : Service() {
         super.onDestroy()
         // Ensure we finalize and free resources if process is torn down
         stopRecordingInternal()
+        finisher.shutdown()
         releaseWakeLock()
     }
 
@@ -42,18 +209,14 @@ class RecorderService : Service() {
         when (intent?.action) {
             "START" -> {
                 val path = intent.getStringExtra("path")
+                segmentSeconds = intent.getIntExtra("segmentSeconds", 0)
+                tag = intent.getStringExtra("tag")
+                profile = EncodingProfile.of(intent.getStringExtra("profile"))
+                trimSilence = intent.getBooleanExtra("trimSilence", false)
                 if (path != null) startRecording(path)
             }
-            "PAUSE" -> {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    try { recorder?.pause() } catch (_: Exception) {}
-                }
-            }
-            "RESUME" -> {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    try { recorder?.resume() } catch (_: Exception) {}
-                }
-            }
+            "PAUSE" -> recorder?.pause()
+            "RESUME" -> recorder?.resume()
             "STOP" -> stopRecordingInternal()
         }
         // We don’t want the system to restart this if it gets killed after you stop.
@@ -64,53 +227,182 @@ class RecorderService : Service() {
         // Safety: if something was already running, finalize it first
         stopRecordingInternal()
 
-        currentPath = path
+        completedSegments.clear()
+        partialCuts.clear()
+        openCuts.clear()
+        openIndex = 0
+        openStartMs = 0L
+        finished = false
+        activePath = path
+        basePath = path
+        val base = path
+        val segmented = segmentSeconds > 0
+        writeManifest()
 
-        val r = MediaRecorder()
+        val r = AacRecorder(
+            sampleRate = profile.sampleRate,
+            bitRate = profile.bitRate,
+            segmentUs = segmentSeconds * 1_000_000L,
+            pathFor = { i -> partialPath(if (segmented) segmentPath(path, i) else path) },
+            trimSilence = trimSilence,
+            listener = object : AacRecorder.Listener {
+                override fun onSegmentClosed(
+                    index: Int,
+                    path: String,
+                    durationMs: Long,
+                    last: Boolean,
+                    cuts: List<AacRecorder.Cut>,
+                ) {
+                    val target = if (segmented) segmentPath(base, index) else base
+                    val cutMaps = cuts.map { mapOf("atMs" to it.atMs, "removedMs" to it.removedMs) }
+                    partialCuts[index] = cutMaps
+                    openIndex = index + 1
+                    openStartMs += durationMs
+                    if (last) openCuts.clear() else openCuts.removeAll { it.atMs < openStartMs }
+                    trackOpenCuts()
+                    finisher.execute { finishSegment(index, path, target, durationMs, cutMaps, last) }
+                }
+
+                override fun onCut(cut: AacRecorder.Cut) {
+                    openCuts.add(cut)
+                    trackOpenCuts()
+                    finisher.execute { writeManifest() }
+                }
+
+                override fun onError(e: Exception) {
+                    // The open segment was closed above; keep what was recorded.
+                    RecorderEvents.emit("error", mapOf("code" to "RECORDER", "message" to e.message))
+                }
+
+                override fun onLevel(peak: Float, bytes: Long, encodedMs: Long) {
+                    RecorderEvents.emit("level", mapOf(
+                        "amplitude" to peak.toDouble(),
+                        "bytes" to bytes,
+                        "encodedMs" to encodedMs,
+                    ))
+                }
+
+                override fun onStall() {
+                    RecorderEvents.emit("stalled")
+                }
+            },
+        )
         recorder = r
 
         try {
-            // Correct, broadly compatible pipeline for .m4a:
-            // AAC-LC audio inside MP4 container (MPEG_4)
-            r.setAudioSource(MediaRecorder.AudioSource.MIC)
-            r.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4)
-            r.setAudioEncoder(MediaRecorder.AudioEncoder.AAC) // AAC-LC
-            r.setAudioEncodingBitRate(128_000)               // 128 kbps
-            r.setAudioSamplingRate(44_100)                   // 44.1 kHz
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
-                // Force mono on newer APIs; improves browser/WMP compatibility
-                r.setAudioChannels(1)
-            }
-            r.setOutputFile(path)
-
-            r.prepare()
             r.start()
             hasStarted = true
-
         } catch (e: Exception) {
+            RecorderEvents.emit("error", mapOf("code" to "START", "message" to e.message))
             // If anything fails, make sure we release cleanly so next start works
-            try { r.reset() } catch (_: Exception) {}
-            try { r.release() } catch (_: Exception) {}
             recorder = null
             hasStarted = false
-            currentPath = null
+            activePath = null
+            finished = true
+            File(manifestPath(path)).delete()
             // We stay foreground so Flutter can report/start again; no crash.
         }
     }
 
+    /** Mirror the open segment's cuts, relative to its start, into [partialCuts]. */
+    private fun trackOpenCuts() {
+        if (openCuts.isEmpty()) {
+            partialCuts.remove(openIndex)
+            return
+        }
+        partialCuts[openIndex] = openCuts.map {
+            mapOf("atMs" to (it.atMs - openStartMs).coerceAtLeast(0), "removedMs" to it.removedMs)
+        }
+    }
+
+    /** Remux a closed ADTS file into its .m4a and record it in the manifest. */
+    private fun finishSegment(
+        index: Int,
+        partial: String,
+        target: String,
+        durationMs: Long,
+        cuts: List<Map<String, Long>>,
+        last: Boolean,
+    ) {
+        try {
+            if (File(partial).length() > 0) {
+                SegmentConcat.concat(listOf(partial), target)
+                File(partial).delete()
+                val segment = mapOf(
+                    "index" to index,
+                    "path" to target,
+                    "durationMs" to durationMs,
+                    "cuts" to cuts,
+                )
+                completedSegments.add(segment)
+                partialCuts.remove(index)
+                RecorderEvents.emit("segment", segment)
+            } else {
+                File(partial).delete()
+                partialCuts.remove(index)
+            }
+        } catch (e: Exception) {
+            // Leave the partial file; recover() retries on the next launch
+            RecorderEvents.emit("error", mapOf("code" to "FINALIZE", "message" to e.message))
+        }
+        if (last) {
+            finished = true
+            activePath = null
+        }
+        writeManifest()
+        if (last) RecorderEvents.emit("finished")
+    }
+
+    /**
+     * <base>.manifest.json: the recording's segments and whether the last one
+     * is closed, plus the silence cuts of segments without an .m4a yet
+     * (partialCuts). The app reads it instead of polling file sizes, and
+     * recover() uses it after a crash.
+     */
+    private fun writeManifest() {
+        val base = basePath ?: return
+        fun cutsJson(list: List<Map<String, Long>>?): JSONArray {
+            val cuts = JSONArray()
+            for (c in list.orEmpty()) {
+                cuts.put(JSONObject().put("atMs", c["atMs"]).put("removedMs", c["removedMs"]))
+            }
+            return cuts
+        }
+        val segments = JSONArray()
+        for (s in completedSegments) {
+            @Suppress("UNCHECKED_CAST")
+            segments.put(JSONObject()
+                .put("index", s["index"])
+                .put("path", s["path"])
+                .put("durationMs", s["durationMs"])
+                .put("cuts", cutsJson(s["cuts"] as? List<Map<String, Long>>)))
+        }
+        val pending = JSONObject()
+        for ((index, cuts) in partialCuts) pending.put(index.toString(), cutsJson(cuts))
+        val json = JSONObject()
+            .put("path", base)
+            .put("segmented", segmentSeconds > 0)
+            .put("profile", profile.key)
+            .put("trimSilence", trimSilence)
+            .put("tag", tag ?: JSONObject.NULL)
+            .put("finished", finished)
+            .put("segments", segments)
+            .put("partialCuts", pending)
+        try {
+            writeJsonAtomic(File(manifestPath(base)), json)
+        } catch (_: Exception) {}
+    }
+
     private fun stopRecordingInternal() {
         val r = recorder ?: return
 
-        // Try to finalize the MP4 atom so players (browser/WMP/device) can read it
+        // Flush the encoder and close the last segment; finishSegment marks
+        // the recording finished once its .m4a is written.
         try {
-            if (hasStarted) {
-                try { r.stop() } catch (_: Exception) { /* on some OEMs, stop may throw if already finalized */ }
-            }
+            if (hasStarted) r.stop()
         } catch (_: Exception) {
-            // If stop throws, the file may be corrupt; we still release to avoid leaks.
+            // The partial file stays on disk and is recovered on next launch.
         } finally {
-            try { r.reset() } catch (_: Exception) {}
-            try { r.release() } catch (_: Exception) {}
             recorder = null
             hasStarted = false
         }
@@ -161,7 +453,7 @@ class RecorderService : Service() {
         try {
             val pm = getSystemService(Context.POWER_SERVICE) as PowerManager
             // PARTIAL_WAKE_LOCK keeps CPU running with the screen off (lockscreen),
-            // which prevents MediaRecorder from stalling on some OEMs.
+            // which prevents the recorder from stalling on some OEMs.
             wakeLock = pm.newWakeLock(
                 PowerManager.PARTIAL_WAKE_LOCK,
                 "StudyBuddy:RecorderWakeLock"
@@ -0,0 +1,99 @@
+package com.carbs.studybuddy.study_buddy
+
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import java.nio.ByteBuffer
+
+/**
+ * Joins AAC files (the recorder's ADTS output or finished .m4a segments)
+ * into one .m4a without re-encoding: samples are copied with their
+ * timestamps shifted by the length of the files before them.
+ */
+object SegmentConcat {
+
+    fun concat(inputs: List<String>, output: String) {
+        require(inputs.isNotEmpty()) { "No segments to join" }
+        val muxer = MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+        val buffer = ByteBuffer.allocate(1 shl 20)
+        val info = MediaCodec.BufferInfo()
+        var track = -1
+        var offsetUs = 0L
+        var copied = false
+
+        try {
+            for (input in inputs) {
+                val extractor = MediaExtractor()
+                try {
+                    extractor.setDataSource(input)
+                    val index = (0 until extractor.trackCount).firstOrNull {
+                        extractor.getTrackFormat(it).getString(MediaFormat.KEY_MIME)?.startsWith("audio/") == true
+                    } ?: continue
+                    val format = extractor.getTrackFormat(index)
+                    extractor.selectTrack(index)
+                    if (track < 0) {
+                        track = muxer.addTrack(format)
+                        muxer.start()
+                    }
+
+                    // One AAC frame is 1024 samples; the next segment starts one
+                    // frame after this one's last sample.
+                    val sampleRate = if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+                        format.getInteger(MediaFormat.KEY_SAMPLE_RATE)
+                    } else {
+                        44_100
+                    }
+                    val frameUs = 1024L * 1_000_000L / sampleRate
+                    var lastUs = -1L
+                    while (true) {
+                        val size = extractor.readSampleData(buffer, 0)
+                        if (size < 0) break
+                        val flags = if (extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0) {
+                            MediaCodec.BUFFER_FLAG_KEY_FRAME
+                        } else {
+                            0
+                        }
+                        info.set(0, size, offsetUs + extractor.sampleTime, flags)
+                        muxer.writeSampleData(track, buffer, info)
+                        lastUs = extractor.sampleTime
+                        extractor.advance()
+                    }
+                    if (lastUs >= 0) offsetUs += lastUs + frameUs
+                } finally {
+                    extractor.release()
+                }
+            }
+            copied = true
+        } finally {
+            try {
+                if (track >= 0) muxer.stop()
+            } catch (e: Exception) {
+                // stop() writes the moov atom: without it the output is
+                // unreadable, so the caller must keep its source files.
+                // Only an error that is already propagating takes precedence.
+                if (copied) throw e
+            } finally {
+                muxer.release()
+            }
+        }
+        if (track < 0) throw IllegalStateException("No audio track found in segments")
+    }
+
+    /** Audio duration of [path] from its container metadata (0 if unknown). */
+    fun durationMs(path: String): Long {
+        val extractor = MediaExtractor()
+        try {
+            extractor.setDataSource(path)
+            for (i in 0 until extractor.trackCount) {
+                val format = extractor.getTrackFormat(i)
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    return format.getLong(MediaFormat.KEY_DURATION) / 1000
+                }
+            }
+            return 0
+        } finally {
+            extractor.release()
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import http from "http";
+
+/** Latency and failure model of the fake OpenAI server. */
+export interface FakeOpenAIOptions {
+  port: number;
+  transcribeMs: number; // base latency of one transcription request
+  transcribePerMbMs: number; // added per MB of uploaded audio
+  chatMs: number; // base latency of one chat completion
+  chatPerKCharMs: number; // added per 1000 prompt characters
+  jitter: number; // ± fraction applied to every latency
+  errorRate: number; // share of requests answered 429/500 (exercises withRetry)
+  seed: number;
+}
+
+/** Requests the server saw, for the report. */
+export interface FakeOpenAIStats {
+  transcriptions: number;
+  chats: number;
+  injectedErrors: number;
+  uploadBytes: number;
+}
+
+/**
+ * Small deterministic PRNG (mulberry32) so runs with the same seed see the
+ * same latencies and injected errors.
+ *
+ * @param {number} seed Seed.
+ * @return {Function} Generator of numbers in [0, 1).
+ */
+function prng(seed: number): () => number {
+  let a = seed >>> 0;
+  return () => {
+    a = (a + 0x6d2b79f5) >>> 0;
+    let t = a;
+    t = Math.imul(t ^ (t >>> 15), t | 1);
+    t ^= t + Math.imul(t ^ (t >>> 7), t | 61);
+    return ((t ^ (t >>> 14)) >>> 0) / 4294967296;
+  };
+}
+
+const WORDS = (
+  "the lecture today covers energy momentum and the conservation laws that follow from symmetry " +
+  "we start with an example then derive the general result and finish with a few exercises"
+).split(" ");
+
+/**
+ * Filler text of `count` words.
+ *
+ * @param {number} count Word count.
+ * @param {Function} rand PRNG.
+ * @return {string} Text.
+ */
+function words(count: number, rand: () => number): string {
+  const out: string[] = [];
+  for (let i = 0; i < count; i++) {
+    out.push(WORDS[Math.floor(rand() * WORDS.length)]);
+    if (i % 14 === 13) out[out.length - 1] += ".";
+  }
+  return out.join(" ");
+}
+
+/**
+ * Audio seconds in an uploaded transcription body: 16 kHz mono s16 WAV from
+ * the pipeline, otherwise assume 64 kbps AAC (the buffered fallback).
+ *
+ * @param {Buffer} body Multipart request body.
+ * @return {number} Seconds.
+ */
+function audioSeconds(body: Buffer): number {
+  return body.includes("RIFF") ? body.length / 32000 : body.length / 8000;
+}
+
+/**
+ * Chat answer that satisfies every job schema at once (summary, notes, quiz),
+ * so the pipeline's parsing and preview code run as in production.
+ *
+ * @param {Function} rand PRNG.
+ * @return {string} JSON text.
+ */
+function chatContent(rand: () => number): string {
+  return JSON.stringify({
+    abstract: words(60, rand),
+    key_points: [words(12, rand), words(12, rand), words(12, rand)],
+    outline: [{ heading: "Overview", bullets: [words(10, rand), words(10, rand)] }],
+    equations: ["E = mc^2"],
+    references: [],
+    questions: [{ type: "short", question: words(10, rand), answer: words(6, rand) }],
+  });
+}
+
+/**
+ * Start a local stand-in for the two OpenAI endpoints the pipeline calls
+ * (POST /v1/audio/transcriptions and POST /v1/chat/completions). The
+ * functions reach it through OPENAI_BASE_URL, which the SDK reads by default.
+ *
+ * @param {FakeOpenAIOptions} opts Latency model.
+ * @return {Promise<{stats: FakeOpenAIStats, close: Function}>} Live counters and a stopper.
+ */
+export async function startFakeOpenAI(opts: FakeOpenAIOptions): Promise<{ stats: FakeOpenAIStats; close: () => Promise<void> }> {
+  const rand = prng(opts.seed);
+  const stats: FakeOpenAIStats = { transcriptions: 0, chats: 0, injectedErrors: 0, uploadBytes: 0 };
+  const jittered = (ms: number): number => Math.max(0, ms * (1 + (rand() * 2 - 1) * opts.jitter));
+
+  const server = http.createServer((req, res) => {
+    const chunks: Buffer[] = [];
+    req.on("data", (c: Buffer) => chunks.push(c));
+    req.on("end", () => {
+      const body = Buffer.concat(chunks);
+      const url = req.url || "";
+      const reply = (status: number, payload: unknown): void => {
+        res.writeHead(status, { "content-type": "application/json" });
+        res.end(JSON.stringify(payload));
+      };
+
+      let delayMs: number;
+      let answer: () => void;
+      if (req.method === "POST" && url.endsWith("/audio/transcriptions")) {
+        stats.transcriptions++;
+        stats.uploadBytes += body.length;
+        delayMs = jittered(opts.transcribeMs + opts.transcribePerMbMs * body.length / (1024 * 1024));
+        answer = () => reply(200, { text: words(Math.round(audioSeconds(body) * 2.5), rand) });
+      } else if (req.method === "POST" && url.endsWith("/chat/completions")) {
+        stats.chats++;
+        delayMs = jittered(opts.chatMs + opts.chatPerKCharMs * body.length / 1000);
+        answer = () => reply(200, {
+          id: `chatcmpl-bench-${stats.chats}`,
+          object: "chat.completion",
+          created: Math.floor(Date.now() / 1000),
+          model: "bench",
+          choices: [{ index: 0, message: { role: "assistant", content: chatContent(rand) }, finish_reason: "stop" }],
+          usage: { prompt_tokens: Math.round(body.length / 4), completion_tokens: 200, total_tokens: Math.round(body.length / 4) + 200 },
+        });
+      } else {
+        reply(404, { error: { message: `Not emulated: ${req.method} ${url}` } });
+        return;
+      }
+
+      if (rand() < opts.errorRate) {
+        stats.injectedErrors++;
+        const status = rand() < 0.5 ? 429 : 500;
+        setTimeout(() => reply(status, { error: { message: "Injected by bench", type: "bench" } }), jittered(opts.transcribeMs / 4));
+        return;
+      }
+      setTimeout(answer, delayMs);
+    });
+  });
+
+  await new Promise<void>((resolve, reject) => {
+    server.once("error", reject);
+    server.listen(opts.port, "127.0.0.1", () => resolve());
+  });
+  return {
+    stats,
+    close: () => new Promise<void>((resolve) => server.close(() => resolve())),
+  };
+}
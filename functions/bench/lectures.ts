@@ -0,0 +1,68 @@
+import path from "path";
+import { spawn } from "child_process";
+import { promises as fs } from "fs";
+
+/** A synthetic lecture the benchmark uploads. */
+export interface Lecture {
+  name: string;
+  seconds: number;
+}
+
+export const LECTURES: Lecture[] = [
+  { name: "10m", seconds: 600 },
+  { name: "1h", seconds: 3600 },
+  { name: "3h", seconds: 10800 },
+];
+
+/**
+ * Resolve the ffmpeg binary the functions themselves use.
+ *
+ * @return {string} Path to ffmpeg.
+ */
+function ffmpegBin(): string {
+  // eslint-disable-next-line @typescript-eslint/no-var-requires
+  const mod = require("ffmpeg-static");
+  const bin = (mod && mod.default) || mod;
+  if (typeof bin !== "string") throw new Error("ffmpeg-static is not installed");
+  return bin;
+}
+
+/**
+ * Render (once, then reuse from `cacheDir`) a mono AAC lecture of the given
+ * length, encoded like the app's COMPACT profile. The "voice" is a tone that
+ * pauses for 0.8 s every 9 s, so silencedetect finds cut points as it would
+ * in speech; seeded low-level noise under it keeps every part's bytes unique,
+ * otherwise the chunk cache would answer the repeated parts. The moov atom is
+ * left at the end, as MediaRecorder writes it, so the streaming pipeline has
+ * to spool it like a real upload.
+ *
+ * @param {Lecture} lecture Length and name.
+ * @param {string} cacheDir Directory for rendered files.
+ * @return {Promise<string>} Path of the .m4a file.
+ */
+export async function renderLecture(lecture: Lecture, cacheDir: string): Promise<string> {
+  await fs.mkdir(cacheDir, { recursive: true });
+  const out = path.join(cacheDir, `lecture-${lecture.name}.m4a`);
+  const st = await fs.stat(out).catch(() => null);
+  if (st?.isFile() && st.size > 0) return out;
+
+  const d = lecture.seconds;
+  const tmp = `${out}.tmp.m4a`;
+  const args = [
+    "-y", "-hide_banner", "-loglevel", "error",
+    "-f", "lavfi", "-i", `sine=frequency=${180 + (d % 97)}:sample_rate=44100:duration=${d}`,
+    "-f", "lavfi", "-i", `anoisesrc=color=pink:amplitude=0.004:seed=${d}:sample_rate=44100:duration=${d}`,
+    "-filter_complex",
+    "[0:a]volume='if(lt(mod(t,9),8.2),0.5,0)':eval=frame[v];[v][1:a]amix=inputs=2:duration=first:normalize=0,aformat=channel_layouts=mono[out]",
+    "-map", "[out]",
+    "-c:a", "aac", "-b:a", "64k", "-ar", "22050",
+    tmp,
+  ];
+  await new Promise<void>((resolve, reject) => {
+    const p = spawn(ffmpegBin(), args, { stdio: "inherit" });
+    p.on("error", reject);
+    p.on("close", (code) => code === 0 ? resolve() : reject(new Error(`ffmpeg exited ${code} rendering ${lecture.name}`)));
+  });
+  await fs.rename(tmp, out);
+  return out;
+}
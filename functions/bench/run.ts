@@ -0,0 +1,492 @@
+// Offline benchmark for the transcription and AI pipelines.
+//
+//   npm run bench -- [--lectures 10m,1h,3h] [--transcribe-ms 1500]
+//     [--transcribe-per-mb-ms 400] [--chat-ms 2500] [--chat-per-kchar-ms 20]
+//     [--jitter 0.2] [--error-rate 0] [--seed 1] [--port 8787]
+//     [--timeout-min 60] [--no-warmup]
+//
+// Started without emulator env vars, this re-launches itself under
+// `firebase emulators:exec` for a demo- project (nothing leaves the machine),
+// with OPENAI_BASE_URL pointing at the fake OpenAI server it runs itself.
+// Each synthetic lecture is uploaded to the Storage emulator, flipped to
+// transcriptStatus "pending" (onTranscriptRequested), then sent through an
+// "all" aiJobs doc (onAiJobCreated). While each phase runs, /proc and the
+// temp dir are sampled for peak RSS of the functions runtime, /tmp growth
+// and ffmpeg processes. The report is printed and saved under
+// bench/.results/ together with the transcriptMetrics / aiMetrics the
+// pipeline wrote to the recording doc.
+
+import os from "os";
+import path from "path";
+import { spawn } from "child_process";
+import { existsSync, promises as fs } from "fs";
+import { initializeApp } from "firebase-admin/app";
+import { getStorage } from "firebase-admin/storage";
+import { getFirestore, DocumentReference, DocumentData, Timestamp } from "firebase-admin/firestore";
+import { startFakeOpenAI, FakeOpenAIStats } from "./fakeOpenAI";
+import { LECTURES, Lecture, renderLecture } from "./lectures";
+
+const PROJECT = "demo-studybuddy";
+const BENCH_UID = "bench-user";
+const FUNCTIONS_DIR = path.resolve(__dirname, "..", "..");
+const SAMPLE_MS = 200;
+
+type Args = Map<string, string>;
+
+/**
+ * Parse "--key value" / "--flag" arguments.
+ *
+ * @param {string[]} argv Arguments after the script name.
+ * @return {Args} Values by key ("true" for bare flags).
+ */
+function parseArgs(argv: string[]): Args {
+  const args: Args = new Map();
+  for (let i = 0; i < argv.length; i++) {
+    if (!argv[i].startsWith("--")) continue;
+    const next = argv[i + 1];
+    if (next !== undefined && !next.startsWith("--")) {
+      args.set(argv[i].slice(2), next);
+      i++;
+    } else {
+      args.set(argv[i].slice(2), "true");
+    }
+  }
+  return args;
+}
+
+/**
+ * Numeric argument with a default.
+ *
+ * @param {Args} args Parsed arguments.
+ * @param {string} key Name without "--".
+ * @param {number} fallback Default.
+ * @return {number} Value.
+ */
+function num(args: Args, key: string, fallback: number): number {
+  const v = Number(args.get(key));
+  return args.has(key) && Number.isFinite(v) ? v : fallback;
+}
+
+/**
+ * Lecture from a name: one of LECTURES, or "<n>s|m|h" for a custom length.
+ *
+ * @param {string} name Lecture name.
+ * @return {Lecture} Lecture.
+ */
+function lectureOf(name: string): Lecture {
+  const known = LECTURES.find((l) => l.name === name);
+  if (known) return known;
+  const m = /^(\d+)(s|m|h)$/.exec(name);
+  if (!m) throw new Error(`Unknown lecture "${name}" (use 10m, 1h, 3h or <n>s|m|h)`);
+  return { name, seconds: Number(m[1]) * ({ s: 1, m: 60, h: 3600 } as Record<string, number>)[m[2]] };
+}
+
+// ---------------- Launcher ----------------
+
+/**
+ * Create `file` with `content` unless it exists; returns whether it did, so
+ * only files the bench created are removed afterwards.
+ *
+ * @param {string} file Path.
+ * @param {string} content Content.
+ * @return {Promise<boolean>} True if created.
+ */
+async function createIfMissing(file: string, content: string): Promise<boolean> {
+  if (existsSync(file)) return false;
+  await fs.writeFile(file, content);
+  return true;
+}
+
+/**
+ * Run this script again inside `firebase emulators:exec`. The emulated
+ * functions get a fake OPENAI_API_KEY secret (.secret.local) and the fake
+ * server's URL (.env.local) unless those files already exist, in which case
+ * they must provide both.
+ *
+ * @param {string[]} argv Arguments to forward.
+ * @param {Args} args Parsed arguments.
+ * @return {Promise<number>} Exit code.
+ */
+async function launch(argv: string[], args: Args): Promise<number> {
+  const baseUrl = `http://127.0.0.1:${num(args, "port", 8787)}/v1`;
+  const secretFile = path.join(FUNCTIONS_DIR, ".secret.local");
+  const envFile = path.join(FUNCTIONS_DIR, ".env.local");
+  const created: string[] = [];
+  if (await createIfMissing(secretFile, "OPENAI_API_KEY=bench-fake-key\n")) created.push(secretFile);
+  if (await createIfMissing(envFile, `OPENAI_BASE_URL=${baseUrl}\n`)) created.push(envFile);
+  if (!created.includes(envFile)) {
+    console.warn(`${envFile} exists; make sure it sets OPENAI_BASE_URL=${baseUrl}`);
+  }
+
+  const quote = (s: string): string => `'${s.replace(/'/g, "'\\''")}'`;
+  const script = ["node", path.join(__dirname, "run.js"), ...argv].map(quote).join(" ");
+  try {
+    return await new Promise<number>((resolve, reject) => {
+      const p = spawn("firebase", [
+        "emulators:exec",
+        "--project", PROJECT,
+        "--only", "functions,firestore,storage",
+        script,
+      ], {
+        cwd: path.dirname(FUNCTIONS_DIR),
+        stdio: "inherit",
+        env: { ...process.env, OPENAI_BASE_URL: baseUrl, OPENAI_API_KEY: "bench-fake-key" },
+      });
+      p.on("error", reject);
+      p.on("close", (code) => resolve(code ?? 1));
+    });
+  } finally {
+    for (const f of created) await fs.rm(f, { force: true });
+  }
+}
+
+// ---------------- Sampling ----------------
+
+/** Peaks observed while one pipeline phase ran. */
+interface ResourceUsage {
+  peakRssMb: number | null; // functions emulator runtime processes, summed
+  peakTmpMb: number; // growth of os.tmpdir() over the phase's start
+  ffmpegSpawned: number | null; // distinct ffmpeg pids seen
+  ffmpegPeakConcurrent: number | null;
+}
+
+/**
+ * Total size of the files under `dir` (files may vanish mid-walk).
+ *
+ * @param {string} dir Directory.
+ * @return {Promise<number>} Bytes.
+ */
+async function dirBytes(dir: string): Promise<number> {
+  let total = 0;
+  const entries = await fs.readdir(dir, { withFileTypes: true }).catch(() => []);
+  await Promise.all(entries.map(async (e) => {
+    const p = path.join(dir, e.name);
+    if (e.isDirectory()) total += await dirBytes(p);
+    else if (e.isFile()) total += (await fs.stat(p).catch(() => null))?.size || 0;
+  }));
+  return total;
+}
+
+/**
+ * Polls /proc (Linux) and the temp dir every SAMPLE_MS. Processes shorter
+ * than one interval can be missed, so ffmpeg counts are a lower bound.
+ */
+class Sampler {
+  private readonly proc = existsSync("/proc/self/status");
+  private readonly ffmpegPids = new Set<number>();
+  private peakRss = 0;
+  private peakTmp = 0;
+  private peakFfmpeg = 0;
+  private baseTmp = 0;
+  private timer: NodeJS.Timeout | null = null;
+  private busy = false;
+
+  /** Record the temp dir baseline and start polling. */
+  async start(): Promise<void> {
+    this.baseTmp = await dirBytes(os.tmpdir());
+    this.timer = setInterval(() => {
+      if (this.busy) return;
+      this.busy = true;
+      this.sample().finally(() => {
+        this.busy = false;
+      });
+    }, SAMPLE_MS);
+  }
+
+  /**
+   * Stop polling and return the peaks.
+   *
+   * @return {Promise<ResourceUsage>} Peaks of the phase.
+   */
+  async stop(): Promise<ResourceUsage> {
+    if (this.timer) clearInterval(this.timer);
+    await this.sample();
+    const mb = (b: number): number => Math.round(b / (1024 * 1024) * 10) / 10;
+    return {
+      peakRssMb: this.proc ? mb(this.peakRss) : null,
+      peakTmpMb: mb(this.peakTmp),
+      ffmpegSpawned: this.proc ? this.ffmpegPids.size : null,
+      ffmpegPeakConcurrent: this.proc ? this.peakFfmpeg : null,
+    };
+  }
+
+  /** Take one sample. */
+  private async sample(): Promise<void> {
+    this.peakTmp = Math.max(this.peakTmp, (await dirBytes(os.tmpdir())) - this.baseTmp);
+    if (!this.proc) return;
+    let rss = 0;
+    let ffmpeg = 0;
+    const pids = (await fs.readdir("/proc").catch(() => [])).filter((d) => /^\d+$/.test(d));
+    await Promise.all(pids.map(async (pid) => {
+      try {
+        const comm = (await fs.readFile(`/proc/${pid}/comm`, "utf8")).trim();
+        if (comm === "ffmpeg") {
+          ffmpeg++;
+          this.ffmpegPids.add(Number(pid));
+          return;
+        }
+        if (comm !== "node") return;
+        const cmdline = await fs.readFile(`/proc/${pid}/cmdline`, "utf8");
+        if (!cmdline.includes("functionsEmulatorRuntime")) return;
+        const status = await fs.readFile(`/proc/${pid}/status`, "utf8");
+        const kb = /VmRSS:\s+(\d+)/.exec(status);
+        if (kb) rss += Number(kb[1]) * 1024;
+      } catch {
+        // process exited between readdir and read
+      }
+    }));
+    this.peakRss = Math.max(this.peakRss, rss);
+    this.peakFfmpeg = Math.max(this.peakFfmpeg, ffmpeg);
+  }
+}
+
+// ---------------- Benchmark ----------------
+
+/**
+ * Resolve with the doc data once `done` accepts it; `onData` sees every
+ * snapshot on the way.
+ *
+ * @param {DocumentReference} ref Document to watch.
+ * @param {Function} done Completion test.
+ * @param {number} timeoutMs Give up after this long.
+ * @param {Function} onData Optional snapshot observer.
+ * @return {Promise<DocumentData>} Final data.
+ */
+function waitFor(
+  ref: DocumentReference,
+  done: (d: DocumentData) => boolean,
+  timeoutMs: number,
+  onData?: (d: DocumentData) => void,
+): Promise<DocumentData> {
+  return new Promise((resolve, reject) => {
+    const timer = setTimeout(() => {
+      unsubscribe();
+      reject(new Error(`Timed out waiting for ${ref.path}`));
+    }, timeoutMs);
+    const unsubscribe = ref.onSnapshot((snap) => {
+      const d = snap.data();
+      if (!d) return;
+      onData?.(d);
+      if (!done(d)) return;
+      clearTimeout(timer);
+      unsubscribe();
+      resolve(d);
+    }, (e) => {
+      clearTimeout(timer);
+      reject(e);
+    });
+  });
+}
+
+/**
+ * Counter deltas between two snapshots of the fake server's stats.
+ *
+ * @param {FakeOpenAIStats} before Earlier copy.
+ * @param {FakeOpenAIStats} after Later stats.
+ * @return {FakeOpenAIStats} Difference.
+ */
+function statsDelta(before: FakeOpenAIStats, after: FakeOpenAIStats): FakeOpenAIStats {
+  return {
+    transcriptions: after.transcriptions - before.transcriptions,
+    chats: after.chats - before.chats,
+    injectedErrors: after.injectedErrors - before.injectedErrors,
+    uploadBytes: after.uploadBytes - before.uploadBytes,
+  };
+}
+
+/** Result of one lecture. */
+interface LectureResult {
+  lecture: string;
+  audioSec: number;
+  sizeMb: number;
+  transcript: {
+    status: string;
+    latencyMs: number;
+    resumes: number;
+    usage: ResourceUsage;
+    openai: FakeOpenAIStats;
+    metrics: unknown; // transcriptMetrics written by the pipeline
+  };
+  ai: {
+    status: string;
+    latencyMs: number;
+    usage: ResourceUsage;
+    openai: FakeOpenAIStats;
+    metrics: unknown; // aiMetrics.combined
+  } | null;
+}
+
+/**
+ * Upload one lecture and time both pipelines on it.
+ *
+ * @param {Lecture} lecture Lecture to run.
+ * @param {FakeOpenAIStats} stats Live fake-server counters.
+ * @param {number} timeoutMs Per-phase timeout.
+ * @return {Promise<LectureResult>} Measurements.
+ */
+async function runLecture(lecture: Lecture, stats: FakeOpenAIStats, timeoutMs: number): Promise<LectureResult> {
+  const file = await renderLecture(lecture, path.join(FUNCTIONS_DIR, "bench", ".cache"));
+  const sizeBytes = (await fs.stat(file)).size;
+  const db = getFirestore();
+  const id = `bench-${lecture.name}-${Date.now()}`;
+  const storagePath = `recordings/${BENCH_UID}/${id}.m4a`;
+  await getStorage().bucket().upload(file, { destination: storagePath, contentType: "audio/mp4", resumable: false });
+
+  const recRef = db.collection("users").doc(BENCH_UID).collection("recordings").doc(id);
+  await recRef.set({
+    uid: BENCH_UID,
+    className: "Bench",
+    topic: lecture.name,
+    filename: path.basename(storagePath),
+    storagePath,
+    durationSeconds: lecture.seconds,
+    sizeBytes,
+    encodingProfile: "compact",
+    createdAt: Timestamp.now(),
+    transcriptStatus: "none",
+  });
+
+  // Transcription: timed from the "pending" write to "done"/"error"
+  let resumes = 0;
+  let sawProcessing = false;
+  let sampler = new Sampler();
+  await sampler.start();
+  let before = { ...stats };
+  let t0 = Date.now();
+  await recRef.update({ transcribeRequested: true, transcriptStatus: "pending" });
+  const rec = await waitFor(recRef, (d) => d.transcriptStatus === "done" || d.transcriptStatus === "error", timeoutMs, (d) => {
+    if (d.transcriptStatus === "processing") sawProcessing = true;
+    if (d.transcriptStatus === "pending" && sawProcessing) {
+      resumes++;
+      sawProcessing = false;
+    }
+  });
+  const transcript = {
+    status: String(rec.transcriptStatus),
+    latencyMs: Date.now() - t0,
+    resumes,
+    usage: await sampler.stop(),
+    openai: statsDelta(before, stats),
+    metrics: rec.transcriptMetrics ?? null,
+  };
+  const result: LectureResult = {
+    lecture: lecture.name,
+    audioSec: lecture.seconds,
+    sizeMb: Math.round(sizeBytes / (1024 * 1024) * 10) / 10,
+    transcript,
+    ai: null,
+  };
+  if (transcript.status !== "done") return result;
+
+  // AI outputs: one "all" job, timed from its creation to "done"/"error"
+  sampler = new Sampler();
+  await sampler.start();
+  before = { ...stats };
+  t0 = Date.now();
+  const jobRef = await db.collection("aiJobs").add({
+    uid: BENCH_UID,
+    type: "all",
+    recordingId: id,
+    status: "pending",
+    createdAt: new Date().toISOString(),
+  });
+  const job = await waitFor(jobRef, (d) => d.status === "done" || d.status === "error", timeoutMs);
+  result.ai = {
+    status: String(job.status),
+    latencyMs: Date.now() - t0,
+    usage: await sampler.stop(),
+    openai: statsDelta(before, stats),
+    metrics: job.metrics ?? null,
+  };
+  return result;
+}
+
+/**
+ * Benchmark body; runs inside emulators:exec.
+ *
+ * @param {Args} args Parsed arguments.
+ * @return {Promise<number>} Exit code.
+ */
+async function bench(args: Args): Promise<number> {
+  const projectId = process.env.GCLOUD_PROJECT || PROJECT;
+  initializeApp({ projectId, storageBucket: `${projectId}.appspot.com` });
+
+  const fake = await startFakeOpenAI({
+    port: num(args, "port", 8787),
+    transcribeMs: num(args, "transcribe-ms", 1500),
+    transcribePerMbMs: num(args, "transcribe-per-mb-ms", 400),
+    chatMs: num(args, "chat-ms", 2500),
+    chatPerKCharMs: num(args, "chat-per-kchar-ms", 20),
+    jitter: num(args, "jitter", 0.2),
+    errorRate: num(args, "error-rate", 0),
+    seed: num(args, "seed", 1),
+  });
+  const timeoutMs = num(args, "timeout-min", 60) * 60 * 1000;
+  const lectures = (args.get("lectures") || LECTURES.map((l) => l.name).join(",")).split(",").map((n) => lectureOf(n.trim()));
+
+  const results: LectureResult[] = [];
+  try {
+    // Loads the functions runtime and ffmpeg once so the first lecture isn't a cold start
+    if (args.get("no-warmup") !== "true") {
+      console.log("Warm-up run (not reported)…");
+      await runLecture({ name: "warmup", seconds: 60 }, fake.stats, timeoutMs);
+    }
+    for (const lecture of lectures) {
+      console.log(`Running ${lecture.name} (${lecture.seconds} s)…`);
+      results.push(await runLecture(lecture, fake.stats, timeoutMs));
+    }
+  } finally {
+    await fake.close();
+  }
+
+  console.table(results.map((r) => ({
+    lecture: r.lecture,
+    sizeMb: r.sizeMb,
+    transcript: r.transcript.status,
+    transcribeS: Math.round(r.transcript.latencyMs / 100) / 10,
+    xRealtime: Math.round(r.audioSec / (r.transcript.latencyMs / 1000) * 10) / 10,
+    resumes: r.transcript.resumes,
+    rssMb: r.transcript.usage.peakRssMb,
+    tmpMb: r.transcript.usage.peakTmpMb,
+    ffmpeg: r.transcript.usage.ffmpegSpawned,
+    ffmpegPeak: r.transcript.usage.ffmpegPeakConcurrent,
+    sttCalls: r.transcript.openai.transcriptions,
+    aiS: r.ai ? Math.round(r.ai.latencyMs / 100) / 10 : null,
+    aiRssMb: r.ai?.usage.peakRssMb ?? null,
+    chatCalls: r.ai?.openai.chats ?? null,
+  })));
+
+  const outDir = path.join(FUNCTIONS_DIR, "bench", ".results");
+  await fs.mkdir(outDir, { recursive: true });
+  const outFile = path.join(outDir, `${new Date().toISOString().replace(/[:.]/g, "-")}.json`);
+  await fs.writeFile(outFile, JSON.stringify({
+    args: Object.fromEntries(args),
+    env: {
+      TRANSCRIBE_CONCURRENCY: process.env.TRANSCRIBE_CONCURRENCY ?? null,
+      TRANSCRIBE_STREAMING: process.env.TRANSCRIBE_STREAMING ?? null,
+      AI_MAP_CONCURRENCY: process.env.AI_MAP_CONCURRENCY ?? null,
+    },
+    cpus: os.cpus().length,
+    node: process.version,
+    results,
+  }, null, 2));
+  console.log(`Saved ${outFile}`);
+  return results.every((r) => r.transcript.status === "done" && r.ai?.status === "done") ? 0 : 1;
+}
+
+/**
+ * Entry point: launcher outside the emulators, benchmark inside.
+ *
+ * @return {Promise<number>} Exit code.
+ */
+async function main(): Promise<number> {
+  const argv = process.argv.slice(2);
+  const args = parseArgs(argv);
+  if (!process.env.FIRESTORE_EMULATOR_HOST) return launch(argv, args);
+  return bench(args);
+}
+
+main().then((code) => process.exit(code), (e) => {
+  console.error(e);
+  process.exit(1);
+});
@@ -2,13 +2,16 @@
 
 import os from "os";
 import path from "path";
-import { promises as fs } from "fs";
+import { createWriteStream, promises as fs } from "fs";
+import { pipeline } from "stream/promises";
 import { spawn } from "child_process";
-import { onDocumentUpdated, onDocumentCreated } from "firebase-functions/v2/firestore";
+import { createHash } from "crypto";
+import { onDocumentUpdated, onDocumentCreated, onDocumentWritten } from "firebase-functions/v2/firestore";
 import { onCall, HttpsError } from "firebase-functions/v2/https";
+import { onObjectFinalized } from "firebase-functions/v2/storage";
 import { initializeApp } from "firebase-admin/app";
 import { getStorage } from "firebase-admin/storage";
-import { getFirestore, FieldValue } from "firebase-admin/firestore";
+import { getFirestore, FieldValue, DocumentReference, Timestamp } from "firebase-admin/firestore";
 import { logger } from "firebase-functions/v2";
 import OpenAI, { toFile } from "openai";
 
@@ -16,6 +19,59 @@ initializeApp();
 
 const TAG = "StudyBuddy";
 const TRANSCRIPTS_DIR = "transcripts";
+// Content-addressed transcript cache (per user), see chunkCachePath/audioCachePath.
+const TRANSCRIPT_CACHE_DIR = "transcriptCache";
+const TRANSCRIBE_MODEL = "gpt-4o-mini-transcribe";
+// Max segment parts transcribed at once; override with TRANSCRIBE_CONCURRENCY.
+const TRANSCRIBE_CONCURRENCY = Math.max(1, Number(process.env.TRANSCRIBE_CONCURRENCY) || 4);
+// Single-pass streaming ffmpeg pipeline (set TRANSCRIBE_STREAMING=0 to use the buffered path).
+const TRANSCRIBE_STREAMING = process.env.TRANSCRIBE_STREAMING !== "0";
+// Longest part sent to OpenAI (10 minutes); parts are cut at pauses near
+// duration / TRANSCRIBE_CONCURRENCY, but never shorter than SEGMENT_MIN_SECONDS.
+const SEGMENT_SECONDS = 600;
+const SEGMENT_MIN_SECONDS = 120;
+// How far from the ideal cut a pause may be, and what counts as a pause.
+const SEGMENT_WINDOW_SECONDS = 30;
+const SILENCE_NOISE_DB = -35;
+const SILENCE_MIN_SECONDS = 0.4;
+// Bump when the part layout changes so cached/checkpointed texts aren't reused.
+const SEGMENT_LAYOUT = "silence-v1";
+// Stop starting new chunks after this long so in-flight ones and the final save
+// still fit in the 540 s timeout; the rest continues in a follow-up invocation.
+const TRANSCRIBE_BUDGET_MS = 420 * 1000;
+// Upper bound on follow-up invocations per transcription request.
+const MAX_TRANSCRIBE_RESUMES = 5;
+const AI_MODEL = "gpt-4o-mini";
+// Attempts per OpenAI request (see withRetry); the SDK's own retries are off so each one is counted.
+const OPENAI_ATTEMPTS = 3;
+// Transcripts at least this long use map-reduce generation (override with AI_MAP_REDUCE_MIN_CHARS).
+const AI_MAP_REDUCE_MIN_CHARS = Number(process.env.AI_MAP_REDUCE_MIN_CHARS) || 48000;
+// Target size of one map window; windows are cut at the transcript's time markers.
+const AI_WINDOW_CHARS = 24000;
+// Max map calls in flight per job; override with AI_MAP_CONCURRENCY.
+const AI_MAP_CONCURRENCY = Math.max(1, Number(process.env.AI_MAP_CONCURRENCY) || 4);
+// Chained (autoGenerate) outputs run inline only for single-call transcripts
+// (below AI_MAP_REDUCE_MIN_CHARS) and only if this much of the 540 s function
+// timeout is still left; otherwise they are queued as aiJobs docs, which get
+// a full invocation of their own.
+const TRANSCRIBE_TIMEOUT_MS = 540 * 1000;
+const AUTO_GENERATE_INLINE_RESERVE_MS = 150 * 1000;
+// Per-user inverted index: searchIndex/<uid>/shards/<n>.json + docs.json.
+const SEARCH_INDEX_DIR = "searchIndex";
+const SEARCH_SHARDS = 32;
+// Timestamps kept per (term, recording) posting.
+const SEARCH_MAX_HITS = 8;
+// Segments the app uploads while still recording (see onLiveSegmentUploaded)
+const LIVE_SEGMENT_RE = /^recordings\/([^/]+)\/live\/([^/]+)\/seg-(\d+)\.m4a$/;
+// How long onTranscriptRequested waits for segment texts still being written,
+// and how long a failing onLiveSegmentUploaded keeps being retried.
+const LIVE_TEXT_WAIT_MS = 180 * 1000;
+const LIVE_TEXT_POLL_MS = 5 * 1000;
+const LIVE_RETRY_WINDOW_MS = 60 * 60 * 1000;
+// Lifetime of the read URLs getTranscriptText / getAiJobOutput hand out.
+const SIGNED_URL_TTL_MS = 5 * 60 * 1000;
+
+type StorageFile = ReturnType<ReturnType<ReturnType<typeof getStorage>["bucket"]>["file"]>;
 
 /**
  * Parse a Firebase Storage download URL into an object path like
@@ -51,153 +107,1673 @@ async function saveTranscriptText(uid: string, id: string, text: string): Promis
   const bucket = getStorage().bucket();
   const objectPath = `${TRANSCRIPTS_DIR}/${uid}/${id}.txt`;
   const file = bucket.file(objectPath);
+  // Stored gzip-encoded: admin reads decompress transparently, and signed
+  // URLs serve the compressed bytes to clients that accept gzip.
   await file.save(text, {
     resumable: false,
+    gzip: true,
     contentType: "text/plain; charset=utf-8",
     metadata: { cacheControl: "no-store" },
   });
   return objectPath;
 }
 
+/** One entry of the structured transcript index (<id>.segments/). */
+interface TranscriptSegment {
+  i: number; // position in the index
+  part: number; // audio part the text came from
+  start: number; // seconds from the start of the recording
+  end: number;
+  text: string;
+}
+
+/** Structured transcript stored next to the .txt. */
+interface SegmentIndex {
+  version: 1;
+  // Sentence times are interpolated by character position within each part,
+  // because the transcription model only returns plain text.
+  estimated: boolean;
+  durationSec: number;
+  segments: TranscriptSegment[];
+}
+
+/**
+ * Parse "mm:ss" or "hh:mm:ss" into seconds.
+ *
+ * @param {string} ts Timestamp text.
+ * @return {number} Seconds.
+ */
+function parseTimestamp(ts: string): number {
+  return ts.split(":").reduce((acc, v) => acc * 60 + (Number(v) || 0), 0);
+}
+
+/**
+ * Build the segment index from a stitched transcript. Parts are delimited by
+ * the "[start–end]" marker lines; each part is split into sentences whose
+ * times are interpolated across the part's window.
+ *
+ * @param {string} text Transcript text with part markers.
+ * @return {SegmentIndex} Structured transcript.
+ */
+function buildSegmentIndex(text: string): SegmentIndex {
+  const segments: TranscriptSegment[] = [];
+  const marker = /^\[([0-9:]+)–([0-9:]+)\]$/gm;
+  const heads = [...text.matchAll(marker)];
+  const parts = heads.length > 0 ?
+    heads.map((m, p) => ({
+      start: parseTimestamp(m[1]),
+      end: parseTimestamp(m[2]),
+      body: text.substring((m.index || 0) + m[0].length, p + 1 < heads.length ? heads[p + 1].index : text.length),
+    })) :
+    [{ start: 0, end: 0, body: text }];
+
+  let durationSec = 0;
+  parts.forEach((pt, p) => {
+    const body = pt.body.trim();
+    durationSec = Math.max(durationSec, pt.end);
+    if (!body) return;
+    const span = Math.max(0, pt.end - pt.start);
+    let offset = 0;
+    for (const sentence of body.split(/(?<=[.!?…])\s+/)) {
+      const at = body.indexOf(sentence, offset);
+      offset = at + sentence.length;
+      const round = (c: number) => Math.round((pt.start + (span * c) / body.length) * 10) / 10;
+      segments.push({ i: segments.length, part: p, start: round(at), end: round(offset), text: sentence });
+    }
+  });
+  return { version: 1, estimated: true, durationSec, segments };
+}
+
+// Segments per shard object of a stored index; getTranscriptSegments pages
+// are at most this large, so a page touches one or two shards.
+const SEGMENT_SHARD_SIZE = 200;
+
+/**
+ * Head of a stored segment index: everything but the text, so a page can be
+ * located (segments are in time order, hence binary search on starts/ends)
+ * before only its shards are downloaded.
+ */
+interface SegmentIndexHead {
+  version: 2;
+  estimated: boolean;
+  durationSec: number;
+  shardSize: number;
+  starts: number[];
+  ends: number[];
+}
+
+/**
+ * Storage prefix of a recording's sharded segment index:
+ *   transcripts/<uid>/<id>.segments/head.json + shard-NNN.json
+ *
+ * @param {string} uid User ID.
+ * @param {string} id Recording document ID.
+ * @return {string} Prefix ending in "/".
+ */
+function segmentIndexPrefix(uid: string, id: string): string {
+  return `${TRANSCRIPTS_DIR}/${uid}/${id}.segments/`;
+}
+
+/**
+ * Save the structured transcript as a head plus SEGMENT_SHARD_SIZE shards
+ * under segmentIndexPrefix. Shards go first, so a readable head always has
+ * its shards.
+ *
+ * @param {string} uid User ID (used as subdirectory).
+ * @param {string} id Recording document ID.
+ * @param {SegmentIndex} index Structured transcript.
+ * @return {Promise<string>} Resolves to the head object path.
+ */
+async function saveTranscriptSegments(uid: string, id: string, index: SegmentIndex): Promise<string> {
+  const bucket = getStorage().bucket();
+  const prefix = segmentIndexPrefix(uid, id);
+  const opts = {
+    resumable: false,
+    gzip: true,
+    contentType: "application/json; charset=utf-8",
+    metadata: { cacheControl: "no-store" },
+  };
+  const shards: TranscriptSegment[][] = [];
+  for (let i = 0; i < index.segments.length; i += SEGMENT_SHARD_SIZE) {
+    shards.push(index.segments.slice(i, i + SEGMENT_SHARD_SIZE));
+  }
+  await Promise.all(shards.map((shard, n) => bucket.file(segmentShardPath(prefix, n)).save(JSON.stringify(shard), opts)));
+  const head: SegmentIndexHead = {
+    version: 2,
+    estimated: index.estimated,
+    durationSec: index.durationSec,
+    shardSize: SEGMENT_SHARD_SIZE,
+    starts: index.segments.map((sg) => sg.start),
+    ends: index.segments.map((sg) => sg.end),
+  };
+  const headPath = `${prefix}head.json`;
+  await bucket.file(headPath).save(JSON.stringify(head), opts);
+  return headPath;
+}
+
+/**
+ * Path of shard `n` of a segment index.
+ *
+ * @param {string} prefix segmentIndexPrefix of the recording.
+ * @param {number} n Shard number.
+ * @return {string} Object path.
+ */
+function segmentShardPath(prefix: string, n: number): string {
+  return `${prefix}shard-${n.toString().padStart(3, "0")}.json`;
+}
+
+/**
+ * Index of the first element of a sorted array for which `pred` holds
+ * (array length if none).
+ *
+ * @param {number[]} sorted Ascending values.
+ * @param {Function} pred Monotonic predicate.
+ * @return {number} Position.
+ */
+function lowerBound(sorted: number[], pred: (v: number) => boolean): number {
+  let lo = 0;
+  let hi = sorted.length;
+  while (lo < hi) {
+    const mid = (lo + hi) >> 1;
+    if (pred(sorted[mid])) hi = mid;
+    else lo = mid + 1;
+  }
+  return lo;
+}
+
+// ---------- Transcript search index ----------
+
+const STOPWORDS = new Set((
+  "the and for are but not you all any can had her was one our out has have him his how its may new now " +
+  "see two who did get let put say she too use that this with from they will would there their what about " +
+  "which when your into than then them these some just like also been were very so um uh yeah okay " +
+  "el la los las de del que en un una por con para es lo se al su sus como mas pero ya este esta esto " +
+  "son hay muy sin sobre entre cuando donde porque eso ese esa"
+).split(" "));
+
+/**
+ * Lowercase, strip accents and split into index terms.
+ *
+ * @param {string} text Input text.
+ * @return {string[]} Terms in order (duplicates kept).
+ */
+function tokenize(text: string): string[] {
+  return text
+    .toLowerCase()
+    .normalize("NFKD")
+    .replace(/[\u0300-\u036f]/g, "")
+    .split(/[^\p{L}\p{N}]+/u)
+    .filter((t) => t.length > 1 && t.length <= 40 && !STOPWORDS.has(t));
+}
+
+/**
+ * Shard number for a term.
+ *
+ * @param {string} term Index term.
+ * @return {number} Shard in [0, SEARCH_SHARDS).
+ */
+function shardOf(term: string): number {
+  return createHash("md5").update(term).digest().readUInt16BE(0) % SEARCH_SHARDS;
+}
+
+// shard file: terms[term][recordingId] = [tf, hitSec, hitSec, ...]
+interface SearchShard { terms: Record<string, Record<string, number[]>> }
+// docs file: per-recording length (in terms) and the shards it was written to.
+interface SearchDocs { docs: Record<string, { len: number; shards: number[] }> }
+
+/**
+ * Read-modify-write a small JSON object in Storage, retrying when another
+ * writer got there first (generation precondition).
+ *
+ * @param {string} objectPath Object path in the default bucket.
+ * @param {Function} empty Factory for the value when the object is missing.
+ * @param {Function} mutate Applies the change in place.
+ * @return {Promise<void>} Resolves once written.
+ */
+async function updateJsonObject<T>(objectPath: string, empty: () => T, mutate: (cur: T) => void): Promise<void> {
+  const bucket = getStorage().bucket();
+  for (let attempt = 1; ; attempt++) {
+    let cur = empty();
+    let generation = 0; // 0 = object must not exist yet
+    try {
+      const [meta] = await bucket.file(objectPath).getMetadata();
+      generation = Number(meta.generation);
+      const [buf] = await bucket.file(objectPath, { generation }).download();
+      cur = JSON.parse(buf.toString("utf8")) as T;
+    } catch (e) {
+      if ((e as { code?: number }).code !== 404) throw e;
+    }
+    mutate(cur);
+    try {
+      await bucket.file(objectPath).save(JSON.stringify(cur), {
+        resumable: false,
+        contentType: "application/json; charset=utf-8",
+        preconditionOpts: { ifGenerationMatch: generation },
+      });
+      return;
+    } catch (e) {
+      const code = (e as { code?: number }).code;
+      if ((code !== 412 && code !== 404) || attempt >= 5) throw e;
+      await new Promise((r) => setTimeout(r, 100 * attempt + Math.random() * 200));
+    }
+  }
+}
+
+/**
+ * (Re)index one recording's transcript into the user's inverted index.
+ * Postings the recording had before are dropped from every shard it touched;
+ * with a null index (recording deleted) nothing is added back and it leaves
+ * docs.json, so BM25's document count and average length stay right.
+ *
+ * @param {string} uid User ID.
+ * @param {string} recordingId Recording document ID.
+ * @param {SegmentIndex|null} index Structured transcript, or null to remove.
+ * @return {Promise<number>} Number of distinct terms indexed.
+ */
+async function updateSearchIndex(uid: string, recordingId: string, index: SegmentIndex | null): Promise<number> {
+  const postings = new Map<string, number[]>();
+  let len = 0;
+  for (const seg of index?.segments || []) {
+    for (const term of tokenize(seg.text)) {
+      len++;
+      const p = postings.get(term) || [0];
+      p[0]++;
+      const at = Math.floor(seg.start);
+      if (p.length <= SEARCH_MAX_HITS && p[p.length - 1] !== at) p.push(at);
+      postings.set(term, p);
+    }
+  }
+
+  const byShard = new Map<number, Map<string, number[]>>();
+  for (const [term, p] of postings) {
+    const n = shardOf(term);
+    const shard = byShard.get(n) || new Map<string, number[]>();
+    shard.set(term, p);
+    byShard.set(n, shard);
+  }
+
+  const root = `${SEARCH_INDEX_DIR}/${uid}`;
+  const prev = new Set<number>();
+  await updateJsonObject<SearchDocs>(`${root}/docs.json`, () => ({ docs: {} }), (cur) => {
+    (cur.docs[recordingId]?.shards || []).forEach((n) => prev.add(n));
+    if (index) cur.docs[recordingId] = { len, shards: [...byShard.keys()].sort((a, b) => a - b) };
+    else delete cur.docs[recordingId];
+  });
+
+  const touched = [...new Set([...prev, ...byShard.keys()])];
+  await mapWithConcurrency(touched, 8, (n) =>
+    updateJsonObject<SearchShard>(`${root}/shards/${n}.json`, () => ({ terms: {} }), (cur) => {
+      if (prev.has(n)) {
+        for (const term of Object.keys(cur.terms)) {
+          if (cur.terms[term][recordingId]) {
+            delete cur.terms[term][recordingId];
+            if (Object.keys(cur.terms[term]).length === 0) delete cur.terms[term];
+          }
+        }
+      }
+      for (const [term, p] of byShard.get(n) || []) {
+        (cur.terms[term] = cur.terms[term] || {})[recordingId] = p;
+      }
+    }),
+  );
+  return postings.size;
+}
+
+// ---------- Pipeline tracing ----------
+
+/** Totals of one named stage within a Trace. */
+interface StageStats {
+  count: number;
+  ms: number; // summed; exceeds wall time for stages that run in parallel
+  maxMs: number;
+  errors: number;
+  bytes: number;
+  audioSec: number;
+}
+
+/** What a finished span processed, for throughput. */
+interface SpanMeasure {
+  bytes?: number;
+  audioSec?: number;
+}
+
+/**
+ * Per-job tracing: each pipeline stage runs through span() (or is reported
+ * with record()), which logs one structured line and folds the duration,
+ * bytes and audio seconds into per-stage totals. summary() is what the job
+ * writes to the recording doc so slow stages can be compared per lecture.
+ */
+class Trace {
+  private readonly startedAt = Date.now();
+  private readonly stages = new Map<string, StageStats>();
+  retries = 0;
+  queueWaitMs: number | null = null; // trigger event → invocation start
+  audioSec = 0; // length of the recording handled by this job
+
+  /**
+   * @param {string} tag Log tag, e.g. `${TAG}:onTranscriptRequested`.
+   * @param {Record<string, unknown>} fields Ids added to every span line.
+   */
+  constructor(private readonly tag: string, private readonly fields: Record<string, unknown>) {}
+
+  /**
+   * Measure the delay between the triggering event and this invocation.
+   *
+   * @param {string|undefined} eventTime CloudEvent time (ISO 8601).
+   * @param {number} invokedAt When the handler started (ms).
+   */
+  queuedSince(eventTime: string | undefined, invokedAt: number): void {
+    const t = eventTime ? Date.parse(eventTime) : NaN;
+    if (Number.isFinite(t)) this.queueWaitMs = Math.max(0, invokedAt - t);
+  }
+
+  /**
+   * Time an async stage; failures are counted and re-thrown.
+   *
+   * @param {string} name Stage name.
+   * @param {Function} fn Stage body.
+   * @param {Function} measure Optional: what the result processed.
+   * @return {Promise<T>} The stage's result.
+   */
+  async span<T>(name: string, fn: () => Promise<T>, measure?: (r: T) => SpanMeasure): Promise<T> {
+    const t0 = Date.now();
+    let r: T;
+    try {
+      r = await fn();
+    } catch (e) {
+      this.record(name, Date.now() - t0, {}, false);
+      throw e;
+    }
+    this.record(name, Date.now() - t0, measure ? measure(r) : {});
+    return r;
+  }
+
+  /**
+   * Add a stage measurement taken elsewhere (e.g. time spent queued).
+   *
+   * @param {string} name Stage name.
+   * @param {number} ms Duration.
+   * @param {SpanMeasure} m Bytes / audio seconds processed.
+   * @param {boolean} ok False when the stage failed.
+   */
+  record(name: string, ms: number, m: SpanMeasure = {}, ok = true): void {
+    const st = this.stages.get(name) || { count: 0, ms: 0, maxMs: 0, errors: 0, bytes: 0, audioSec: 0 };
+    st.count++;
+    st.ms += ms;
+    st.maxMs = Math.max(st.maxMs, ms);
+    if (!ok) st.errors++;
+    st.bytes += m.bytes || 0;
+    st.audioSec += m.audioSec || 0;
+    this.stages.set(name, st);
+    logger.debug(JSON.stringify({ tag: this.tag, ...this.fields, span: name, ms, ok, ...m }));
+  }
+
+  /**
+   * Totals so far, shaped for Firestore (no undefined values).
+   *
+   * @return {Record<string, unknown>} wallMs, queueWaitMs, retries, throughput and per-stage stats.
+   */
+  summary(): Record<string, unknown> {
+    const wallMs = Date.now() - this.startedAt;
+    const stages: Record<string, unknown> = {};
+    for (const [name, st] of this.stages) {
+      stages[name] = {
+        count: st.count,
+        ms: st.ms,
+        maxMs: st.maxMs,
+        ...(st.errors > 0 ? { errors: st.errors } : {}),
+        ...(st.bytes > 0 ? { bytes: st.bytes } : {}),
+        ...(st.audioSec > 0 ? {
+          audioSec: Math.round(st.audioSec),
+          audioSecPerSec: st.ms > 0 ? Math.round(st.audioSec / (st.ms / 1000) * 10) / 10 : null,
+        } : {}),
+      };
+    }
+    return {
+      wallMs,
+      queueWaitMs: this.queueWaitMs,
+      retries: this.retries,
+      audioSec: Math.round(this.audioSec),
+      audioSecPerSec: this.audioSec > 0 && wallMs > 0 ? Math.round(this.audioSec / (wallMs / 1000) * 10) / 10 : null,
+      stages,
+      finishedAt: new Date().toISOString(),
+    };
+  }
+
+  /** Log the summary as one line (the same data the job writes to its doc). */
+  logSummary(): void {
+    logger.info(JSON.stringify({ tag: this.tag, ...this.fields, message: "Trace summary", ...this.summary() }));
+  }
+}
+
+/**
+ * OpenAI client for pipeline calls. SDK retries are disabled; withRetry does
+ * them so each retry shows up on the job's trace.
+ *
+ * @return {OpenAI} Client.
+ */
+function openAiClient(): OpenAI {
+  return new OpenAI({ apiKey: process.env.OPENAI_API_KEY, maxRetries: 0 });
+}
+
+/**
+ * Delay the server asked for via retry-after-ms / retry-after (seconds or an
+ * HTTP date), honored like the SDK does when it is under a minute.
+ *
+ * @param {unknown} e Error thrown by the SDK.
+ * @return {number | null} Milliseconds, or null if absent or unusable.
+ */
+function retryAfterMs(e: unknown): number | null {
+  const headers = (e as { headers?: Record<string, string | undefined> })?.headers;
+  if (!headers) return null;
+  const ms = Number(headers["retry-after-ms"]);
+  if (Number.isFinite(ms) && ms >= 0 && ms < 60_000) return ms;
+  const after = headers["retry-after"];
+  if (!after) return null;
+  const sec = Number(after);
+  const fromHeader = Number.isFinite(sec) ? sec * 1000 : Date.parse(after) - Date.now();
+  return Number.isFinite(fromHeader) && fromHeader >= 0 && fromHeader < 60_000 ? fromHeader : null;
+}
+
+/**
+ * Run an OpenAI request, retrying rate limits, timeouts, 5xx and connection
+ * errors (OPENAI_ATTEMPTS in total, like the SDK's default) and counting each
+ * retry on the trace. Waits what retry-after asks for, else backs off
+ * exponentially with jitter so parallel parts don't retry in lockstep.
+ *
+ * @param {Trace} trace Job trace.
+ * @param {string} stage Stage name for the retry log line.
+ * @param {Function} fn The request.
+ * @return {Promise<T>} The request's result.
+ */
+async function withRetry<T>(trace: Trace, stage: string, fn: () => Promise<T>): Promise<T> {
+  for (let attempt = 1; ; attempt++) {
+    try {
+      return await fn();
+    } catch (e) {
+      const status = (e as { status?: number })?.status;
+      const retryable = e instanceof OpenAI.APIConnectionError ||
+        status === 408 || status === 409 || status === 429 || (status !== undefined && status >= 500);
+      if (!retryable || attempt >= OPENAI_ATTEMPTS) throw e;
+      trace.retries++;
+      const delayMs = Math.round(retryAfterMs(e) ?? Math.min(500 * 2 ** (attempt - 1), 8000) * (1 - Math.random() * 0.25));
+      logger.warn(JSON.stringify({ tag: `${TAG}:withRetry`, stage, attempt, status: status ?? null, delayMs, error: (e as { message?: string })?.message || String(e) }));
+      await new Promise((r) => setTimeout(r, delayMs));
+    }
+  }
+}
+
 /** Lazily resolve ffmpeg binary path from ffmpeg-static (optional). */
 let ffmpegPath: string | null = null;
 /**
- * Resolve the ffmpeg path once; if unavailable, return null (we’ll fall back).
- * @return {Promise<string|null>} ffmpeg binary path or null if not installed.
+ * Resolve the ffmpeg path once; if unavailable, return null (we’ll fall back).
+ * @return {Promise<string|null>} ffmpeg binary path or null if not installed.
+ */
+async function getFfmpegPath(): Promise<string | null> {
+  if (ffmpegPath !== null) return ffmpegPath;
+  try {
+    // eslint-disable-next-line @typescript-eslint/no-var-requires
+    const mod = await import("ffmpeg-static");
+    // some bundlers export default, some export the path directly
+    ffmpegPath =
+      (mod as unknown as { default?: string }).default ||
+      ((mod as unknown) as string);
+    logger.info(
+      JSON.stringify({ tag: TAG, message: "ffmpeg-static resolved", ffmpegPath }),
+    );
+    return ffmpegPath;
+  } catch (e) {
+    logger.warn(
+      JSON.stringify({
+        tag: TAG,
+        message: "ffmpeg-static not available; will fall back to original audio",
+        error: (e as { message?: string })?.message || String(e),
+      }),
+    );
+    ffmpegPath = null;
+    return null;
+  }
+}
+
+/**
+ * Convert an input audio file (m4a/aac) into 16 kHz mono WAV next to it, so
+ * the output stays inside the caller's per-run work dir.
+ *
+ * @param {string} inputPath Absolute path to the source audio file.
+ * @return {Promise<string>} Absolute path to the converted WAV file.
+ */
+async function convertToWav16kMono(inputPath: string): Promise<string> {
+  const bin = await getFfmpegPath();
+  if (!bin) {
+    throw new Error("ffmpeg binary not found (ffmpeg-static).");
+  }
+  const outPath = path.join(
+    path.dirname(inputPath),
+    `${path.basename(inputPath, path.extname(inputPath))}.16kmono.wav`,
+  );
+
+  const args = [
+    "-y",
+    "-i",
+    inputPath,
+    "-ac",
+    "1", // mono
+    "-ar",
+    "16000", // 16kHz
+    "-sample_fmt",
+    "s16", // 16-bit PCM
+    outPath,
+  ];
+
+  await new Promise<void>((resolve, reject) => {
+    const p = spawn(bin, args, { stdio: "inherit" });
+    p.on("error", reject);
+    p.on("close", (code) => {
+      if (code === 0) resolve();
+      else reject(new Error(`ffmpeg exited with code ${code}`));
+    });
+  });
+
+  return outPath;
+}
+
+/** Where one recording is cut into parts; cuts === null means fixed SEGMENT_SECONDS parts. */
+interface SegmentPlan {
+  cuts: number[] | null;
+  durationSec: number;
+  key: string; // identifies the layout for checkpoints
+}
+
+/** One produced part with its real offsets in the recording. */
+interface AudioPart {
+  path: string;
+  start: number;
+  end: number;
+}
+
+/** Transcript text of one part with its real offsets. */
+interface TimedPiece {
+  text: string;
+  start: number;
+  end: number;
+}
+
+/**
+ * Decode the audio once with ffmpeg's silencedetect filter and return the
+ * pauses it found plus the total duration. Much cheaper than the segment
+ * pass: nothing is written, only decoded.
+ *
+ * @param {string} input Local path, or "pipe:0" to read `source` via stdin.
+ * @param {StorageFile|null} source Storage object fed to stdin for "pipe:0".
+ * @return {Promise<{silences: {start: number, end: number}[], durationSec: number}>} Pauses and duration.
+ */
+async function detectSilences(input: string, source: StorageFile | null): Promise<{ silences: { start: number; end: number }[]; durationSec: number }> {
+  const bin = await getFfmpegPath();
+  if (!bin) throw new Error("ffmpeg not available for silence detection");
+  const args = [
+    "-hide_banner",
+    "-nostdin",
+    "-i", input,
+    "-vn",
+    "-af", `silencedetect=noise=${SILENCE_NOISE_DB}dB:d=${SILENCE_MIN_SECONDS}`,
+    "-f", "null", "-",
+  ];
+  // stderr is parsed line by line as it arrives (progress lines end in \r),
+  // so memory stays flat however long the recording is and no silence line
+  // is lost to trimming.
+  const silences: { start: number; end: number }[] = [];
+  let open: number | null = null;
+  let durationSec = 0;
+  const parseLine = (line: string): void => {
+    const sil = /silence_(start|end): (-?[0-9.]+)/.exec(line);
+    if (sil) {
+      const t = Math.max(0, Number(sil[2]));
+      if (sil[1] === "start") open = t;
+      else if (open !== null) {
+        silences.push({ start: open, end: t });
+        open = null;
+      }
+    }
+    const time = /time=(\d+):(\d+):([0-9.]+)/.exec(line);
+    if (time) durationSec = Number(time[1]) * 3600 + Number(time[2]) * 60 + Number(time[3]);
+  };
+  await new Promise<void>((resolve, reject) => {
+    const p = spawn(bin, args, { stdio: [input === "pipe:0" ? "pipe" : "ignore", "ignore", "pipe"] });
+    let pending = "";
+    p.stderr?.setEncoding("utf8");
+    p.stderr?.on("data", (chunk: string) => {
+      const lines = (pending + chunk).split(/[\r\n]/);
+      pending = lines.pop() ?? "";
+      lines.forEach(parseLine);
+    });
+    if (input === "pipe:0" && source && p.stdin) {
+      const rs = source.createReadStream();
+      rs.on("error", reject);
+      p.stdin.on("error", (e: NodeJS.ErrnoException) => {
+        if (e.code !== "EPIPE") reject(e);
+      });
+      rs.pipe(p.stdin);
+    }
+    p.on("error", reject);
+    p.on("close", (code) => {
+      if (code !== 0) return reject(new Error(`ffmpeg silencedetect exited ${code}`));
+      parseLine(pending);
+      resolve();
+    });
+  });
+  if (open !== null) silences.push({ start: open, end: durationSec });
+  return { silences, durationSec };
+}
+
+/**
+ * Pick cut points: parts aim for duration / TRANSCRIBE_CONCURRENCY (so every
+ * lane gets work) within [SEGMENT_MIN_SECONDS, SEGMENT_SECONDS], and each cut
+ * moves to the middle of the nearest pause within SEGMENT_WINDOW_SECONDS so
+ * no word is split. Without a pause nearby the ideal point is used.
+ *
+ * @param {number} durationSec Recording length.
+ * @param {{start: number, end: number}[]} silences Pauses from detectSilences.
+ * @return {SegmentPlan} Cut plan.
+ */
+function planSegments(durationSec: number, silences: { start: number; end: number }[]): SegmentPlan {
+  const target = Math.min(SEGMENT_SECONDS - SEGMENT_WINDOW_SECONDS, Math.max(SEGMENT_MIN_SECONDS, durationSec / TRANSCRIBE_CONCURRENCY));
+  const mids = silences.map((x) => ({ at: (x.start + x.end) / 2, len: x.end - x.start }));
+  const cuts: number[] = [];
+  let last = 0;
+  // The last part may run up to 1.25 × target rather than leave a sliver,
+  // but never past SEGMENT_SECONDS (the per-request upload bound)
+  const maxTail = Math.min(target * 1.25, SEGMENT_SECONDS);
+  while (durationSec - last > maxTail) {
+    const ideal = last + target;
+    let best: number | null = null;
+    let bestScore = Infinity;
+    for (const m of mids) {
+      if (m.at <= last + SEGMENT_MIN_SECONDS / 2 || Math.abs(m.at - ideal) > SEGMENT_WINDOW_SECONDS) continue;
+      // Prefer close cuts, then long pauses (sentence ends over breaths)
+      const score = Math.abs(m.at - ideal) - Math.min(m.len, 3) * 5;
+      if (score < bestScore) {
+        bestScore = score;
+        best = m.at;
+      }
+    }
+    const cut = Math.round((best ?? ideal) * 1000) / 1000;
+    cuts.push(cut);
+    last = cut;
+  }
+  const key = `${SEGMENT_LAYOUT}-${createHash("md5").update(cuts.join(",")).digest("hex").slice(0, 10)}`;
+  return { cuts, durationSec, key };
+}
+
+/**
+ * Plan the parts of a recording; falls back to fixed SEGMENT_SECONDS parts
+ * when silence detection fails.
+ *
+ * @param {PartContext} ctx Job context (for logs).
+ * @param {string} input Local path, or "pipe:0" to stream `source`.
+ * @param {StorageFile|null} source Storage object for "pipe:0".
+ * @return {Promise<SegmentPlan>} Cut plan.
+ */
+async function planRecording(ctx: PartContext, input: string, source: StorageFile | null): Promise<SegmentPlan> {
+  const t0 = Date.now();
+  try {
+    const { silences, durationSec } = await ctx.trace.span("detectSilences", () => detectSilences(input, source), (r) => ({ audioSec: r.durationSec }));
+    const plan = planSegments(durationSec, silences);
+    ctx.trace.audioSec = durationSec;
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Segment plan", durationSec: Math.round(durationSec), silences: silences.length, parts: (plan.cuts?.length ?? 0) + 1, cuts: plan.cuts, ms: Date.now() - t0 }));
+    return plan;
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Silence detection failed; using fixed parts", error: (e as { message?: string })?.message || String(e) }));
+    return { cuts: null, durationSec: 0, key: `fixed-${SEGMENT_SECONDS}s` };
+  }
+}
+
+/**
+ * ffmpeg segment muxer arguments for a plan.
+ *
+ * @param {SegmentPlan} plan Cut plan.
+ * @return {string[]} Arguments.
+ */
+function segmentArgs(plan: SegmentPlan): string[] {
+  if (plan.cuts === null) return ["-segment_time", `${SEGMENT_SECONDS}`];
+  if (plan.cuts.length === 0) return ["-segment_time", "86400"]; // a single part
+  return ["-segment_times", plan.cuts.map((c) => c.toFixed(3)).join(",")];
+}
+
+/**
+ * Parse one line of ffmpeg's csv segment list ("name,start,end").
+ *
+ * @param {string} dir Directory the segments were written to.
+ * @param {string} line CSV line.
+ * @return {AudioPart|null} Part, or null for a blank line.
+ */
+function parseSegmentListLine(dir: string, line: string): AudioPart | null {
+  const trimmed = line.trim();
+  if (!trimmed) return null;
+  const [name, start, end] = trimmed.split(",");
+  return { path: path.join(dir, name), start: Number(start) || 0, end: Number(end) || 0 };
+}
+
+/**
+ * Segment an audio file at the plan's cut points using ffmpeg's segment
+ * muxer. Returns the produced parts (same dir as input) with their real
+ * offsets from the segment list. If ffmpeg is unavailable, throws; caller
+ * should fall back.
+ *
+ * @param {string} inputPath Absolute path to the source audio file.
+ * @param {SegmentPlan} plan Where to cut.
+ * @return {Promise<AudioPart[]>} Produced parts in order.
+ */
+async function segmentAudio(inputPath: string, plan: SegmentPlan): Promise<AudioPart[]> {
+  const bin = await getFfmpegPath();
+  if (!bin) throw new Error("ffmpeg not available for segmentation");
+  const dir = path.dirname(inputPath);
+  const base = path.basename(inputPath, path.extname(inputPath));
+  const outPattern = path.join(dir, `${base}.part-%03d${path.extname(inputPath)}`);
+  const listPath = path.join(dir, `${base}.parts.csv`);
+
+  const args = [
+    "-y",
+    "-i", inputPath,
+    "-f", "segment",
+    ...segmentArgs(plan),
+    "-segment_list", listPath,
+    "-segment_list_type", "csv",
+    "-reset_timestamps", "1",
+    outPattern,
+  ];
+
+  await new Promise<void>((resolve, reject) => {
+    const p = spawn(bin, args, { stdio: "inherit" });
+    p.on("error", reject);
+    p.on("close", (code) => code === 0 ? resolve() : reject(new Error(`ffmpeg segment exited ${code}`)));
+  });
+
+  try {
+    const list = await fs.readFile(listPath, "utf8");
+    const parts: AudioPart[] = [];
+    for (const line of list.split("\n")) {
+      const part = parseSegmentListLine(dir, line);
+      if (!part) continue;
+      const st = await fs.stat(part.path).catch(() => null);
+      if (st?.isFile() && st.size > 0) parts.push(part);
+    }
+    return parts;
+  } finally {
+    await fs.rm(listPath, { force: true });
+  }
+}
+
+/**
+ * Run an async worker over items with at most `limit` calls in flight.
+ * Results come back in input order. Fails fast: after the first rejection no
+ * new items are started, and that error is re-thrown once in-flight calls settle.
+ *
+ * @param {T[]} items Inputs to process.
+ * @param {number} limit Maximum number of concurrent worker calls.
+ * @param {Function} worker Async function called as worker(item, index).
+ * @return {Promise<R[]>} Results aligned with the input indexes.
+ */
+async function mapWithConcurrency<T, R>(
+  items: T[],
+  limit: number,
+  worker: (item: T, index: number) => Promise<R>,
+): Promise<R[]> {
+  const results = new Array<R>(items.length);
+  const state = { next: 0, failed: false, error: undefined as unknown };
+
+  const run = async (): Promise<void> => {
+    while (!state.failed && state.next < items.length) {
+      const i = state.next++;
+      try {
+        results[i] = await worker(items[i], i);
+      } catch (e) {
+        if (!state.failed) {
+          state.failed = true;
+          state.error = e;
+        }
+      }
+    }
+  };
+
+  const lanes = Math.min(Math.max(1, limit), items.length);
+  await Promise.all(Array.from({ length: lanes }, run));
+  if (state.failed) throw state.error;
+  return results;
+}
+
+/**
+ * Create a limiter that runs at most `limit` tasks at once; extra tasks wait
+ * in FIFO order. Unlike mapWithConcurrency this accepts work as it arrives.
+ *
+ * @param {number} limit Maximum number of tasks in flight.
+ * @return {Function} run(task) resolving with the task's result.
+ */
+function createLimiter(limit: number): <R>(task: () => Promise<R>) => Promise<R> {
+  let active = 0;
+  const waiting: Array<() => void> = [];
+  return async <R>(task: () => Promise<R>): Promise<R> => {
+    if (active >= limit) {
+      // The finishing task hands its slot straight to us (active is unchanged).
+      await new Promise<void>((resolve) => waiting.push(resolve));
+    } else {
+      active++;
+    }
+    try {
+      return await task();
+    } finally {
+      const next = waiting.shift();
+      if (next) next();
+      else active--;
+    }
+  };
+}
+
+/**
+ * Format seconds as mm:ss (or hh:mm:ss past the hour) for transcript markers.
+ *
+ * @param {number} s Offset in whole seconds.
+ * @return {string} Formatted timestamp.
+ */
+function fmtTimestamp(s: number): string {
+  const h = Math.floor(s / 3600);
+  const m = Math.floor((s % 3600) / 60);
+  const sec = s % 60;
+  const hh = h > 0 ? `${h.toString().padStart(2, "0")}:` : "";
+  return `${hh}${m.toString().padStart(2, "0")}:${sec.toString().padStart(2, "0")}`;
+}
+
+/**
+ * Return the PCM samples of a WAV buffer (the "data" chunk), so cache keys
+ * don't depend on header fields such as the ffmpeg encoder tag. Non-WAV
+ * buffers are returned unchanged.
+ *
+ * @param {Buffer} buf Audio bytes.
+ * @return {Buffer} PCM payload, or the original buffer.
+ */
+function pcmPayload(buf: Buffer): Buffer {
+  if (buf.length < 12 || buf.toString("latin1", 0, 4) !== "RIFF" || buf.toString("latin1", 8, 12) !== "WAVE") {
+    return buf;
+  }
+  let off = 12;
+  while (off + 8 <= buf.length) {
+    const id = buf.toString("latin1", off, off + 4);
+    const size = buf.readUInt32LE(off + 4);
+    if (id === "data") return buf.subarray(off + 8, Math.min(buf.length, off + 8 + size));
+    off += 8 + size + (size % 2); // chunks are word-aligned
+  }
+  return buf;
+}
+
+/**
+ * Cache object for one segment: sha256 of the model name + 16 kHz mono PCM.
+ *
+ * @param {string} uid User ID (cache is scoped per user).
+ * @param {Buffer} bytes Segment audio bytes as sent to OpenAI.
+ * @return {string} Storage object path.
+ */
+function chunkCachePath(uid: string, bytes: Buffer): string {
+  const key = createHash("sha256").update(`${TRANSCRIBE_MODEL}\0`).update(pcmPayload(bytes)).digest("hex");
+  return `${TRANSCRIPT_CACHE_DIR}/${uid}/chunks/${key}.txt`;
+}
+
+/**
+ * Cache object for a whole recording, keyed by the Storage MD5 of the audio
+ * object (no download needed), the model and the segment layout.
+ *
+ * @param {string} uid User ID (cache is scoped per user).
+ * @param {string|undefined} md5Hash Base64 MD5 from object metadata.
+ * @return {string|null} Storage object path, or null without an MD5.
+ */
+function audioCachePath(uid: string, md5Hash: string | undefined): string | null {
+  if (!md5Hash) return null; // composite objects carry no MD5
+  const md5 = Buffer.from(md5Hash, "base64").toString("hex");
+  const key = createHash("sha256").update(`${TRANSCRIBE_MODEL}\0${SEGMENT_LAYOUT}\0${md5}`).digest("hex");
+  return `${TRANSCRIPT_CACHE_DIR}/${uid}/audio/${key}.txt`;
+}
+
+/**
+ * Read cached text; a missing object (or any read error) is a miss.
+ *
+ * @param {string} objectPath Cache object path.
+ * @return {Promise<string|null>} Cached text or null.
+ */
+async function readCachedText(objectPath: string): Promise<string | null> {
+  try {
+    const [buf] = await getStorage().bucket().file(objectPath).download();
+    return buf.toString("utf8");
+  } catch {
+    return null;
+  }
+}
+
+/**
+ * Write text to the cache (best-effort).
+ *
+ * @param {string} objectPath Cache object path.
+ * @param {string} text Text to store.
+ * @return {Promise<void>} Resolves when written or the failure was logged.
+ */
+async function writeCachedText(objectPath: string, text: string): Promise<void> {
+  try {
+    await getStorage().bucket().file(objectPath).save(text, {
+      resumable: false,
+      contentType: "text/plain; charset=utf-8",
+    });
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: TAG, message: "Transcript cache write failed", objectPath, error: (e as { message?: string })?.message || String(e) }));
+  }
+}
+
+/**
+ * Transcribe a single audio chunk with OpenAI (expects a small chunk).
+ *
+ * @param {OpenAI} openai An initialized OpenAI client.
+ * @param {Trace} trace Job trace (counts retries).
+ * @param {Buffer} bytes Audio bytes for this chunk.
+ * @param {string} name A filename for the upload (helps OpenAI determine type).
+ * @return {Promise<string>} Transcript text for this chunk.
+ */
+async function transcribeChunk(openai: OpenAI, trace: Trace, bytes: Buffer, name: string): Promise<string> {
+  const r = await withRetry(trace, "transcribeChunk", async () => openai.audio.transcriptions.create({
+    model: TRANSCRIBE_MODEL,
+    file: await toFile(bytes, name),
+  }));
+  return typeof r === "string" ? r : (r.text || "");
+}
+
+/**
+ * Peek at the head of an audio object to decide whether ffmpeg can demux it
+ * from a pipe. MP4/M4A written by MediaRecorder puts the `moov` atom after
+ * `mdat`, which a non-seekable input can't handle, so those are read from a
+ * seekable input instead (see rangeReadUrl).
+ *
+ * @param {StorageFile} file Storage object to inspect.
+ * @return {Promise<boolean>} True if the object can be streamed via stdin.
+ */
+async function canDemuxFromPipe(file: StorageFile): Promise<boolean> {
+  try {
+    const [head] = await file.download({ start: 0, end: 65535 });
+    // Not an ISO-BMFF container (wav/mp3/ogg…): sequential demuxing is fine.
+    if (head.length < 8 || head.toString("latin1", 4, 8) !== "ftyp") return true;
+    let off = 0;
+    while (off + 8 <= head.length) {
+      let size = head.readUInt32BE(off);
+      const type = head.toString("latin1", off + 4, off + 8);
+      if (type === "moov") return true;
+      if (type === "mdat") return false;
+      if (size === 1 && off + 16 <= head.length) size = Number(head.readBigUInt64BE(off + 8));
+      if (size < 8) return false;
+      off += size;
+    }
+    return false;
+  } catch {
+    return false;
+  }
+}
+
+/**
+ * Short-lived signed URL ffmpeg can open as a seekable HTTP input: it reads
+ * a trailing `moov` with a range request instead of the object being spooled
+ * to /tmp (RAM-backed on Cloud Functions). Null when the runtime can't sign
+ * (e.g. no signing credentials in the emulator); the caller spools then.
+ *
+ * @param {StorageFile} file Storage object.
+ * @return {Promise<string | null>} URL valid for the invocation, or null.
+ */
+async function rangeReadUrl(file: StorageFile): Promise<string | null> {
+  try {
+    const [url] = await file.getSignedUrl({ version: "v4", action: "read", expires: Date.now() + TRANSCRIBE_TIMEOUT_MS });
+    return url;
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: TAG, message: "Signed URL unavailable; spooling instead", error: (e as { message?: string })?.message || String(e) }));
+    return null;
+  }
+}
+
+/**
+ * Single-pass pipeline: feed a Storage object into ONE ffmpeg process that
+ * resamples to 16 kHz mono PCM and segments in the same pass. ffmpeg reports
+ * each finished segment on stdout (segment list, csv) and we hand it to
+ * `onSegment` immediately, so transcription overlaps decoding and the audio
+ * is never held in memory as a whole.
+ *
+ * When `inputPath` is set the container isn't pipe-demuxable and ffmpeg
+ * opens that instead of stdin: a signed URL it range-reads, or a local spool
+ * of the object that the caller removes.
+ *
+ * @param {StorageFile} source Storage object to read.
+ * @param {string} workDir Scratch directory for segment files.
+ * @param {SegmentPlan} plan Where to cut.
+ * @param {string|null} inputPath URL or local copy to read instead of piping to stdin.
+ * @param {Function} onSegment Called as onSegment(path, index, startSec, endSec); throwing aborts ffmpeg.
+ * @return {Promise<number>} Number of segments produced.
+ */
+async function streamSegmentsWav16kMono(
+  source: StorageFile,
+  workDir: string,
+  plan: SegmentPlan,
+  inputPath: string | null,
+  onSegment: (segPath: string, index: number, startSec: number, endSec: number) => void,
+): Promise<number> {
+  const bin = await getFfmpegPath();
+  if (!bin) throw new Error("ffmpeg not available for streaming pipeline");
+
+  const spool = inputPath !== null;
+  const input = inputPath ?? "pipe:0";
+
+  const args = [
+    "-y",
+    "-hide_banner",
+    "-loglevel", "error",
+    "-i", input,
+    "-vn",
+    "-ac", "1", // mono
+    "-ar", "16000", // 16kHz
+    "-sample_fmt", "s16", // 16-bit PCM
+    "-f", "segment",
+    ...segmentArgs(plan),
+    "-segment_format", "wav",
+    "-segment_list", "pipe:1",
+    "-segment_list_type", "csv",
+    "-reset_timestamps", "1",
+    path.join(workDir, "part-%03d.wav"),
+  ];
+
+  return new Promise<number>((resolve, reject) => {
+    const p = spawn(bin, args, { stdio: [spool ? "ignore" : "pipe", "pipe", "inherit"] });
+    let count = 0;
+    let pending = "";
+    let settled = false;
+    const fail = (e: unknown) => {
+      if (settled) return;
+      settled = true;
+      p.kill("SIGKILL");
+      reject(e);
+    };
+
+    p.stdout?.setEncoding("utf8");
+    p.stdout?.on("data", (chunk: string) => {
+      pending += chunk;
+      let nl = pending.indexOf("\n");
+      while (nl >= 0) {
+        const line = pending.substring(0, nl).trim();
+        pending = pending.substring(nl + 1);
+        nl = pending.indexOf("\n");
+        const part = parseSegmentListLine(workDir, line);
+        if (!part || settled) continue;
+        try {
+          onSegment(part.path, count++, part.start, part.end);
+        } catch (e) {
+          fail(e);
+        }
+      }
+    });
+
+    if (!spool && p.stdin) {
+      const rs = source.createReadStream();
+      rs.on("error", fail);
+      // ffmpeg closing stdin early (e.g. after an abort) is not an error on our side.
+      p.stdin.on("error", (e: NodeJS.ErrnoException) => {
+        if (e.code !== "EPIPE") fail(e);
+      });
+      rs.pipe(p.stdin);
+    }
+
+    p.on("error", fail);
+    p.on("close", (code) => {
+      if (settled) return;
+      settled = true;
+      if (code === 0) resolve(count);
+      else reject(new Error(`ffmpeg stream exited ${code}`));
+    });
+  });
+}
+
+/** Raised when one segment can't be transcribed; carries the segment index. */
+class ChunkError extends Error {
+  /**
+   * @param {number} index Zero-based segment index that failed.
+   * @param {string} message Error message to surface on the recording.
+   */
+  constructor(readonly index: number, message: string) {
+    super(message);
+  }
+}
+
+/** Raised when the invocation's time budget is spent before all chunks started. */
+class DeadlineError extends Error {
+  /** Create the error with a fixed message. */
+  constructor() {
+    super("Transcription time budget reached");
+  }
+}
+
+/** Per-chunk transcript checkpoints for one recording + audio version. */
+interface Checkpoints {
+  prefix: string;
+  done: Map<number, string>;
+}
+
+/**
+ * Storage prefix holding all chunk checkpoints of a recording.
+ *
+ * @param {string} uid User ID.
+ * @param {string} id Recording document ID.
+ * @return {string} Prefix ending in "/".
+ */
+function checkpointRoot(uid: string, id: string): string {
+  return `${TRANSCRIPTS_DIR}/${uid}/${id}.parts/`;
+}
+
+/**
+ * Load finished chunk texts saved by earlier (failed or timed-out) runs.
+ * Checkpoints are keyed by the audio object's generation and the part
+ * layout, so a re-upload or different cut points never reuse stale text.
+ *
+ * @param {string} uid User ID.
+ * @param {string} id Recording document ID.
+ * @param {string} generation Generation of the audio object.
+ * @param {string} layout SegmentPlan key.
+ * @return {Promise<Checkpoints>} Checkpoint prefix and restored chunk texts.
+ */
+async function loadCheckpoints(uid: string, id: string, generation: string, layout: string): Promise<Checkpoints> {
+  const prefix = `${checkpointRoot(uid, id)}${generation}-${layout}/`;
+  const done = new Map<number, string>();
+  const [files] = await getStorage().bucket().getFiles({ prefix });
+  await Promise.all(files.map(async (f) => {
+    const idx = parseInt(path.basename(f.name, ".txt"), 10);
+    if (Number.isNaN(idx)) return;
+    const [buf] = await f.download();
+    done.set(idx, buf.toString("utf8"));
+  }));
+  return { prefix, done };
+}
+
+/**
+ * Persist one finished chunk so a retry or follow-up invocation can skip it.
+ * Best-effort: a failed write only costs a re-transcription later.
+ *
+ * @param {Checkpoints} cp Checkpoints of the current job.
+ * @param {number} idx Segment index.
+ * @param {string} text Transcript text for the segment.
+ * @return {Promise<void>} Resolves when saved (or the failure was logged).
+ */
+async function saveCheckpoint(cp: Checkpoints, idx: number, text: string): Promise<void> {
+  if (!cp.prefix) {
+    // Not persisted for this run, but still reused within the invocation
+    cp.done.set(idx, text);
+    return;
+  }
+  try {
+    await getStorage().bucket().file(`${cp.prefix}${idx}.txt`).save(text, {
+      resumable: false,
+      contentType: "text/plain; charset=utf-8",
+    });
+    cp.done.set(idx, text);
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: TAG, message: "Checkpoint write failed", prefix: cp.prefix, index: idx, error: (e as { message?: string })?.message || String(e) }));
+  }
+}
+
+/** Shared state for the parts of one transcription job. */
+interface PartContext {
+  openai: OpenAI;
+  trace: Trace;
+  uid: string;
+  docId: string;
+  stats: { busyMs: number; cacheHits: number; cacheMisses: number };
+  // Loaded once the part layout is known; generation null = no checkpoints
+  checkpoints: Checkpoints;
+  generation: string | null;
+  deadline: number;
+  // Set once the streaming pipeline planned the parts; a buffered fallback
+  // keeps this layout so the parts finished so far are not paid for again.
+  plan?: SegmentPlan;
+}
+
+/**
+ * Load the checkpoints matching this job's part layout into the context.
+ * A failure only means starting fresh.
+ *
+ * @param {PartContext} ctx Job context.
+ * @param {SegmentPlan} plan Part layout.
+ * @return {Promise<void>} Resolves when loaded (or skipped).
+ */
+async function attachCheckpoints(ctx: PartContext, plan: SegmentPlan): Promise<void> {
+  if (ctx.generation === null) return;
+  try {
+    ctx.checkpoints = await loadCheckpoints(ctx.uid, ctx.docId, ctx.generation, plan.key);
+    if (ctx.checkpoints.done.size > 0) {
+      logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Resuming from checkpoints", restored: ctx.checkpoints.done.size }));
+    }
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Checkpoints unavailable; starting fresh", error: (e as { message?: string })?.message || String(e) }));
+  }
+}
+
+/**
+ * Transcribe one segment file. Parts that are not already 16 kHz mono WAV are
+ * converted first (falling back to the original bytes if that fails).
+ * Checkpointed parts are returned without calling OpenAI, and no new part is
+ * started once the invocation's deadline has passed.
+ *
+ * @param {PartContext} ctx Job context.
+ * @param {string} partPath Absolute path of the segment file.
+ * @param {number} idx Segment index (for logs and errors).
+ * @param {boolean} isWav16k True when the part is already 16 kHz mono WAV.
+ * @param {number} audioSec Length of the part (for throughput).
+ * @return {Promise<string>} Transcript text for this part.
+ */
+async function transcribePart(ctx: PartContext, partPath: string, idx: number, isWav16k: boolean, audioSec: number): Promise<string> {
+  const restored = ctx.checkpoints.done.get(idx);
+  if (restored !== undefined) {
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Chunk restored from checkpoint", index: idx }));
+    return restored;
+  }
+  if (Date.now() > ctx.deadline) throw new DeadlineError();
+
+  const trace = ctx.trace;
+  try {
+    const t0 = Date.now();
+    let bytesForOpenAI: Buffer;
+    let nameForOpenAI = path.basename(partPath);
+    if (isWav16k) {
+      bytesForOpenAI = await fs.readFile(partPath);
+    } else {
+      try {
+        const wavPath = await trace.span("convertToWav16kMono", () => convertToWav16kMono(partPath), () => ({ audioSec }));
+        bytesForOpenAI = await fs.readFile(wavPath);
+        nameForOpenAI = path.basename(wavPath);
+        await fs.rm(wavPath, { force: true });
+      } catch (convErr) {
+        bytesForOpenAI = await fs.readFile(partPath);
+      }
+    }
+    const t1 = Date.now();
+
+    // Identical audio (re-upload, duplicate, retry) is served from the cache.
+    const cacheObject = chunkCachePath(ctx.uid, bytesForOpenAI);
+    let piece = await trace.span("chunkCacheRead", () => readCachedText(cacheObject));
+    const cache = piece !== null ? "hit" : "miss";
+    if (piece !== null) {
+      ctx.stats.cacheHits++;
+    } else {
+      ctx.stats.cacheMisses++;
+      piece = await trace.span("transcribeChunk", () => transcribeChunk(ctx.openai, trace, bytesForOpenAI, nameForOpenAI), () => ({ bytes: bytesForOpenAI.length, audioSec }));
+      await writeCachedText(cacheObject, piece);
+    }
+    const t2 = Date.now();
+    ctx.stats.busyMs += t2 - t0;
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Chunk transcribed", index: idx, chars: piece.length, cache, convertMs: t1 - t0, transcribeMs: t2 - t1 }));
+    await trace.span("saveCheckpoint", () => saveCheckpoint(ctx.checkpoints, idx, piece as string));
+    return piece;
+  } catch (err) {
+    const msg =
+      (err as { message?: string })?.message ||
+      `OpenAI transcription failed for chunk ${idx}`;
+    throw new ChunkError(idx, msg);
+  }
+}
+
+/**
+ * Buffered pipeline: download → write /tmp → segmentAudio → convert each part.
+ * Kept as the fallback when the streaming pipeline is disabled or unavailable.
+ *
+ * @param {PartContext} ctx Job context.
+ * @param {StorageFile} audioFile Storage object with the recording.
+ * @return {Promise<TimedPiece[]>} Transcript text per part, in index order.
+ */
+async function transcribeBuffered(ctx: PartContext, audioFile: StorageFile): Promise<TimedPiece[]> {
+  const [audioBytes] = await ctx.trace.span("download", () => audioFile.download(), ([b]) => ({ bytes: b.length }));
+  logger.info(
+    JSON.stringify({
+      tag: `${TAG}:onTranscriptRequested`,
+      docId: ctx.docId,
+      message: "Downloaded audio",
+      bytes: audioBytes.length,
+    }),
+  );
+
+  // Prepare local temp file (own directory: live segments of one recording run concurrently)
+  const tmpDir = await fs.mkdtemp(path.join(os.tmpdir(), `${ctx.docId}-`));
+  const tmpIn = path.join(tmpDir, "source.m4a");
+  await fs.writeFile(tmpIn, audioBytes);
+
+  // Attempt segmentation at pauses (see planSegments). If segmentation fails or yields
+  // no parts, fall back to the original single file. After a failed streaming
+  // run its plan (and the checkpoints it attached) is kept.
+  const planned = ctx.plan;
+  const plan = planned ?? await planRecording(ctx, tmpIn, null);
+  const whole: AudioPart = { path: tmpIn, start: 0, end: plan.durationSec || SEGMENT_SECONDS };
+  let parts: AudioPart[] = [];
+  try {
+    parts = await ctx.trace.span("segmentAudio", () => segmentAudio(tmpIn, plan), () => ({ audioSec: plan.durationSec }));
+    if (parts.length === 0) parts = [whole];
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Segmentation complete", parts: parts.length }));
+  } catch (e) {
+    const errMsg = (e as { message?: string })?.message || String(e);
+    logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Segmentation unavailable; using single-shot", error: errMsg }));
+    parts = [whole];
+  }
+  if (parts.length === 1 && parts[0] === whole) {
+    // Whole-file indices don't match the planned parts
+    ctx.checkpoints = { prefix: "", done: new Map() };
+    await attachCheckpoints(ctx, { ...plan, key: `${plan.key}-whole` });
+  } else if (!planned) {
+    await attachCheckpoints(ctx, plan);
+  }
+
+  try {
+    return await mapWithConcurrency(parts, TRANSCRIBE_CONCURRENCY, async (part, idx) => ({
+      text: await transcribePart(ctx, part.path, idx, false, part.end - part.start),
+      start: part.start,
+      end: part.end,
+    }));
+  } finally {
+    // Cleanup temp pieces
+    try {
+      for (const p of parts) {
+        if (p.path !== tmpIn) await fs.rm(p.path, { force: true });
+      }
+      await fs.rm(tmpDir, { recursive: true, force: true });
+    } catch {
+      // noop: best-effort cleanup
+    }
+  }
+}
+
+/**
+ * Streaming pipeline: one ffmpeg pass (see streamSegmentsWav16kMono) with each
+ * finished segment transcribed right away through the bounded pool. Segment
+ * files are deleted as soon as they've been sent, so /tmp stays flat.
+ *
+ * @param {PartContext} ctx Job context.
+ * @param {StorageFile} audioFile Storage object with the recording.
+ * @return {Promise<TimedPiece[]>} Transcript text per part, in index order.
  */
-async function getFfmpegPath(): Promise<string | null> {
-  if (ffmpegPath !== null) return ffmpegPath;
+async function transcribeStreaming(ctx: PartContext, audioFile: StorageFile): Promise<TimedPiece[]> {
+  // Unique per run: live segments of one recording are transcribed concurrently
+  const workDir = await fs.mkdtemp(path.join(os.tmpdir(), `${ctx.docId}-stream-`));
+  const pipeable = await canDemuxFromPipe(audioFile);
+
+  const limit = createLimiter(TRANSCRIBE_CONCURRENCY);
+  const tasks: Promise<TimedPiece>[] = [];
+  const state = { failed: false };
+  let spoolPath: string | null = null;
+
   try {
-    // eslint-disable-next-line @typescript-eslint/no-var-requires
-    const mod = await import("ffmpeg-static");
-    // some bundlers export default, some export the path directly
-    ffmpegPath =
-      (mod as unknown as { default?: string }).default ||
-      ((mod as unknown) as string);
-    logger.info(
-      JSON.stringify({ tag: TAG, message: "ffmpeg-static resolved", ffmpegPath }),
-    );
-    return ffmpegPath;
+    // Non-pipeable containers (MediaRecorder's moov-at-end m4a, i.e. the
+    // normal upload) are range-read through a signed URL by both passes. Only
+    // if signing is unavailable are they spooled to /tmp, which is RAM on
+    // Cloud Functions: that costs the object's size (~30 MB/h at 64 kbps)
+    // on top of the pipeline, within the trigger's 1 GiB for any lecture.
+    const url = pipeable ? null : await rangeReadUrl(audioFile);
+    if (!pipeable && url === null) {
+      spoolPath = path.join(workDir, "source");
+      const spoolTo = spoolPath;
+      await ctx.trace.span("spool", async () => {
+        await pipeline(audioFile.createReadStream(), createWriteStream(spoolTo));
+        return (await fs.stat(spoolTo)).size;
+      }, (bytes) => ({ bytes }));
+    }
+    const input = url ?? spoolPath;
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Streaming pipeline", input: pipeable ? "pipe" : url ? "range" : "spool" }));
+    const plan = await planRecording(ctx, input ?? "pipe:0", input ? null : audioFile);
+    await attachCheckpoints(ctx, plan);
+    ctx.plan = plan;
+
+    // The ffmpeg pass overlaps transcription, so its span is close to the job's wall time
+    const count = await ctx.trace.span("segmentStream", () => streamSegmentsWav16kMono(audioFile, workDir, plan, input, (segPath, idx, start, end) => {
+      if (state.failed) throw new Error("Streaming aborted after chunk failure");
+      const readyAt = Date.now();
+      const task = limit(async () => {
+        // Time a finished segment waited for a free transcription slot
+        ctx.trace.record("partQueue", Date.now() - readyAt);
+        try {
+          if (state.failed) throw new Error("Skipped after chunk failure");
+          return { text: await transcribePart(ctx, segPath, idx, true, end - start), start, end };
+        } catch (e) {
+          state.failed = true;
+          throw e;
+        } finally {
+          await fs.rm(segPath, { force: true });
+        }
+      });
+      // Observed via Promise.all/allSettled below; avoid unhandled-rejection noise meanwhile.
+      task.catch(() => undefined);
+      tasks.push(task);
+    }), () => ({ audioSec: plan.durationSec }));
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Segmentation complete", parts: count }));
+    if (spoolPath) await fs.rm(spoolPath, { force: true });
+    if (count === 0) throw new Error("ffmpeg produced no segments");
+    return await Promise.all(tasks);
   } catch (e) {
-    logger.warn(
-      JSON.stringify({
-        tag: TAG,
-        message: "ffmpeg-static not available; will fall back to original audio",
-        error: (e as { message?: string })?.message || String(e),
-      }),
-    );
-    ffmpegPath = null;
-    return null;
+    // Surface the chunk failure / deadline (if any) rather than the resulting ffmpeg abort.
+    const settled = await Promise.allSettled(tasks);
+    const rejected = settled.filter((r): r is PromiseRejectedResult => r.status === "rejected");
+    const cause =
+      rejected.find((r) => r.reason instanceof ChunkError) ||
+      rejected.find((r) => r.reason instanceof DeadlineError);
+    throw cause ? cause.reason : e;
+  } finally {
+    await fs.rm(workDir, { recursive: true, force: true }).catch(() => undefined);
   }
 }
 
 /**
- * Convert an input audio file (m4a/aac) into 16 kHz mono WAV in /tmp.
+ * Run the transcription pipeline for one recording and stitch the result.
+ * Prefers the single-pass streaming pipeline and falls back to the buffered
+ * one; ChunkError and DeadlineError are propagated to the caller.
  *
- * @param {string} inputPath Absolute path to the source audio file.
- * @return {Promise<string>} Absolute path to the converted WAV file.
+ * @param {PartContext} ctx Job context.
+ * @param {StorageFile} audioFile Storage object with the recording.
+ * @return {Promise<string>} Transcript text with time markers.
  */
-async function convertToWav16kMono(inputPath: string): Promise<string> {
-  const bin = await getFfmpegPath();
-  if (!bin) {
-    throw new Error("ffmpeg binary not found (ffmpeg-static).");
+async function transcribeRecording(ctx: PartContext, audioFile: StorageFile): Promise<string> {
+  const startedAt = Date.now();
+  let pieces: TimedPiece[] | null = null;
+  let pipelineMode = "buffered";
+
+  if (TRANSCRIBE_STREAMING) {
+    try {
+      pieces = await transcribeStreaming(ctx, audioFile);
+      pipelineMode = "streaming";
+    } catch (e) {
+      if (e instanceof ChunkError || e instanceof DeadlineError) throw e;
+      const errMsg = (e as { message?: string })?.message || String(e);
+      logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "Streaming pipeline failed; using buffered", error: errMsg }));
+    }
   }
-  const outPath = path.join(
-    os.tmpdir(),
-    `${path.basename(inputPath, path.extname(inputPath))}.16kmono.wav`,
-  );
+  if (pieces === null) pieces = await transcribeBuffered(ctx, audioFile);
 
-  const args = [
-    "-y",
-    "-i",
-    inputPath,
-    "-ac",
-    "1", // mono
-    "-ar",
-    "16000", // 16kHz
-    "-sample_fmt",
-    "s16", // 16-bit PCM
-    outPath,
-  ];
+  const wallMs = Date.now() - startedAt;
+  logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId: ctx.docId, message: "All chunks transcribed", pipeline: pipelineMode, parts: pieces.length, concurrency: TRANSCRIBE_CONCURRENCY, wallMs, busyMs: ctx.stats.busyMs, cacheHits: ctx.stats.cacheHits, cacheMisses: ctx.stats.cacheMisses }));
 
-  await new Promise<void>((resolve, reject) => {
-    const p = spawn(bin, args, { stdio: "inherit" });
-    p.on("error", reject);
-    p.on("close", (code) => {
-      if (code === 0) resolve();
-      else reject(new Error(`ffmpeg exited with code ${code}`));
-    });
-  });
+  // Reassemble in index order with each part's real offsets
+  return pieces
+    .map((piece) => `\n[${fmtTimestamp(Math.round(piece.start))}–${fmtTimestamp(Math.round(piece.end))}]\n${piece.text}\n`)
+    .join("");
+}
 
-  return outPath;
+/** Silence the app removed while recording: removedMs cut at atMs of the uploaded audio. */
+interface TimeCut {
+  atMs: number;
+  removedMs: number;
 }
 
 /**
- * Segment an audio file into N pieces using ffmpeg's segment muxer.
- * Returns absolute paths of the produced segment files (same dir as input).
- * If ffmpeg is unavailable, throws; caller should fall back.
+ * Read the recording doc's timeMap field, dropping malformed entries.
  *
- * @param {string} inputPath Absolute path to the source audio file.
- * @param {number} [segmentSeconds=600] Segment duration in seconds (default 10 min).
- * @return {Promise<string[]>} Absolute paths of the produced segment files.
+ * @param {unknown} raw Firestore value.
+ * @return {TimeCut[]} Cuts sorted by position.
  */
-async function segmentAudio(inputPath: string, segmentSeconds = 600): Promise<string[]> {
-  const bin = await getFfmpegPath();
-  if (!bin) throw new Error("ffmpeg not available for segmentation");
-  const dir = path.dirname(inputPath);
-  const base = path.basename(inputPath, path.extname(inputPath));
-  const outPattern = path.join(dir, `${base}.part-%03d${path.extname(inputPath)}`);
+function parseTimeMap(raw: unknown): TimeCut[] {
+  if (!Array.isArray(raw)) return [];
+  return raw
+    .map((c) => ({ atMs: Number(c?.atMs), removedMs: Number(c?.removedMs) }))
+    .filter((c) => Number.isFinite(c.atMs) && Number.isFinite(c.removedMs) && c.removedMs > 0)
+    .sort((a, b) => a.atMs - b.atMs);
+}
 
-  const args = [
-    "-y",
-    "-i", inputPath,
-    "-f", "segment",
-    "-segment_time", `${segmentSeconds}`,
-    "-reset_timestamps", "1",
-    outPattern,
-  ];
+/**
+ * Rewrite the "[start–end]" markers of a transcript of trimmed audio into
+ * the lecture's real time by adding back the silence removed before each.
+ *
+ * @param {string} text Transcript text with markers.
+ * @param {TimeCut[]} cuts Sorted cuts.
+ * @return {string} Transcript with original-time markers.
+ */
+function applyTimeMap(text: string, cuts: TimeCut[]): string {
+  const toOriginal = (sec: number): number => {
+    let removed = 0;
+    for (const c of cuts) {
+      if (c.atMs / 1000 > sec) break;
+      removed += c.removedMs / 1000;
+    }
+    return Math.round(sec + removed);
+  };
+  return text.replace(/^\[([0-9:]+)–([0-9:]+)\]$/gm, (_m, a: string, b: string) =>
+    `[${fmtTimestamp(toOriginal(parseTimestamp(a)))}–${fmtTimestamp(toOriginal(parseTimestamp(b)))}]`);
+}
 
-  await new Promise<void>((resolve, reject) => {
-    const p = spawn(bin, args, { stdio: "inherit" });
-    p.on("error", reject);
-    p.on("close", (code) => code === 0 ? resolve() : reject(new Error(`ffmpeg segment exited ${code}`)));
-  });
+/** Transcript of one live segment, saved as it arrives. */
+interface LiveSegmentText {
+  index: number;
+  durationSec: number;
+  text: string;
+}
 
-  // Collect produced files (conservative: list part-000..part-999)
-  const outFiles: string[] = [];
-  for (let i = 0; i < 1000; i++) {
-    const pth = path.join(dir, `${base}.part-${i.toString().padStart(3, "0")}${path.extname(inputPath)}`);
-    try {
-      // eslint-disable-next-line no-await-in-loop
-      const st = await fs.stat(pth);
-      if (st.isFile() && st.size > 0) outFiles.push(pth);
-    } catch {
-      break;
-    }
+/**
+ * Storage prefix of a live recording's segment transcripts.
+ *
+ * @param {string} uid Owner.
+ * @param {string} recordingId Recording doc ID.
+ * @return {string} Prefix ending in "/".
+ */
+function liveTextPrefix(uid: string, recordingId: string): string {
+  return `${TRANSCRIPTS_DIR}/${uid}/${recordingId}.live/`;
+}
+
+/**
+ * Storage path of a live segment's transcript.
+ *
+ * @param {string} uid Owner.
+ * @param {string} recordingId Recording doc ID.
+ * @param {number} index Segment index.
+ * @return {string} Object path.
+ */
+function liveTextPath(uid: string, recordingId: string, index: number): string {
+  return `${liveTextPrefix(uid, recordingId)}seg-${index.toString().padStart(3, "0")}.json`;
+}
+
+/**
+ * Assemble a live transcript, waiting (until `until`) for segment texts that
+ * onLiveSegmentUploaded is still producing or retrying. Null if some are
+ * still missing then; the caller transcribes the whole recording instead.
+ *
+ * @param {string} uid Owner.
+ * @param {string} recordingId Recording doc ID.
+ * @param {number} count Number of segments.
+ * @param {number} until Deadline (ms since epoch).
+ * @return {Promise<string | null>} Transcript text, or null.
+ */
+async function awaitLiveTranscript(uid: string, recordingId: string, count: number, until: number): Promise<string | null> {
+  for (;;) {
+    const text = await assembleLiveTranscript(uid, recordingId, count);
+    if (text !== null || Date.now() + LIVE_TEXT_POLL_MS > until) return text;
+    await new Promise((r) => setTimeout(r, LIVE_TEXT_POLL_MS));
   }
-  return outFiles;
 }
 
 /**
- * Transcribe a single audio chunk with OpenAI (expects a small chunk).
+ * Remove a live recording's uploaded segments and their transcripts, once
+ * the recording is transcribed or was discarded.
  *
- * @param {OpenAI} openai An initialized OpenAI client.
- * @param {Buffer} bytes Audio bytes for this chunk.
- * @param {string} name A filename for the upload (helps OpenAI determine type).
- * @return {Promise<string>} Transcript text for this chunk.
+ * @param {string} uid Owner.
+ * @param {string} recordingId Recording doc ID.
+ * @return {Promise<void>} Resolves when deleted.
  */
-async function transcribeChunk(openai: OpenAI, bytes: Buffer, name: string): Promise<string> {
-  const r = await openai.audio.transcriptions.create({
-    model: "gpt-4o-mini-transcribe",
-    file: await toFile(bytes, name),
-  });
-  return typeof r === "string" ? r : (r.text || "");
+async function deleteLiveArtifacts(uid: string, recordingId: string): Promise<void> {
+  const bucket = getStorage().bucket();
+  await Promise.all([
+    bucket.deleteFiles({ prefix: `recordings/${uid}/live/${recordingId}/` }),
+    bucket.deleteFiles({ prefix: liveTextPrefix(uid, recordingId) }),
+  ]);
+}
+
+/**
+ * Join the per-segment transcripts of a live recording, shifting each
+ * segment's markers by the recorded length of the segments before it.
+ * Returns null unless every segment has been transcribed.
+ *
+ * @param {string} uid Owner.
+ * @param {string} recordingId Recording doc ID.
+ * @param {number} count Number of segments the recording was split into.
+ * @return {Promise<string | null>} Transcript text with time markers, or null.
+ */
+async function assembleLiveTranscript(uid: string, recordingId: string, count: number): Promise<string | null> {
+  const bucket = getStorage().bucket();
+  // One listing tells whether all texts exist before anything is downloaded
+  const [listed] = await bucket.getFiles({ prefix: liveTextPrefix(uid, recordingId) });
+  const names = new Set(listed.map((f) => f.name));
+  for (let i = 0; i < count; i++) {
+    if (!names.has(liveTextPath(uid, recordingId, i))) return null;
+  }
+  const parts = await Promise.all(Array.from({ length: count }, async (_v, i) => {
+    const [buf] = await bucket.file(liveTextPath(uid, recordingId, i)).download();
+    return JSON.parse(buf.toString("utf8")) as LiveSegmentText;
+  }));
+
+  let offset = 0;
+  const out: string[] = [];
+  for (const part of parts) {
+    const end = offset + part.durationSec;
+    out.push(part.text.replace(/^\[([0-9:]+)–([0-9:]+)\]$/gm, (_m, a: string, b: string) => {
+      const from = Math.round(offset + parseTimestamp(a));
+      const to = Math.round(Math.min(offset + parseTimestamp(b), end));
+      return `[${fmtTimestamp(from)}–${fmtTimestamp(to)}]`;
+    }));
+    offset = end;
+  }
+  return out.join("");
+}
+
+/**
+ * Short-lived read URL for a private object, so the client downloads it from
+ * Storage (gzip-encoded where stored that way) instead of through the function.
+ * Signing needs the runtime service account to hold signBlob
+ * (Service Account Token Creator); without it callers return the payload inline.
+ *
+ * @param {StorageFile} file Object to expose.
+ * @return {Promise<{url: string, expiresAt: number}|null>} URL and expiry (ms), or null.
+ */
+async function signedReadUrl(file: StorageFile): Promise<{ url: string; expiresAt: number } | null> {
+  const expiresAt = Date.now() + SIGNED_URL_TTL_MS;
+  try {
+    const [url] = await file.getSignedUrl({ version: "v4", action: "read", expires: expiresAt });
+    return { url, expiresAt };
+  } catch (e) {
+    logger.warn(JSON.stringify({ tag: `${TAG}:signedReadUrl`, object: file.name, error: (e as { message?: string })?.message || String(e) }));
+    return null;
+  }
+}
+
+/**
+ * Whether a Storage error means the object does not exist.
+ *
+ * @param {unknown} e Error thrown by a Storage call.
+ * @return {boolean} True for a 404.
+ */
+function isNotFound(e: unknown): boolean {
+  return (e as { code?: number })?.code === 404;
 }
 
 /**
  * Callable used by the app to fetch the (private) transcript text.
  * Requires a signed-in user; verifies the user owns the recording.
- * data: { recordingId: string }
+ * data: { recordingId: string, delivery?: "url" }
+ * With delivery "url" the response is { url, expiresAt } (a signed Storage
+ * URL) instead of { text }, unless the URL can't be signed.
  */
 export const getTranscriptText = onCall(
   { cors: true, secrets: ["OPENAI_API_KEY"] },
@@ -230,23 +1806,215 @@ export const getTranscriptText = onCall(
 
     // Read private transcript object
     const objectPath = `${TRANSCRIPTS_DIR}/${uid}/${recordingId}.txt`;
+    const file = getStorage().bucket().file(objectPath);
+    if (req.data?.delivery === "url") {
+      const signed = await signedReadUrl(file);
+      if (signed) return signed;
+    }
+
+    // A missing object surfaces as a 404 from the download itself
+    try {
+      const [buf] = await file.download();
+      return { text: buf.toString("utf8") };
+    } catch (e) {
+      if (isNotFound(e)) {
+        throw new HttpsError("not-found", "Transcript not found for this recording.");
+      }
+      throw e;
+    }
+  },
+);
+
+/**
+ * Callable used by the app to read part of a transcript without downloading
+ * all of it. Requires a signed-in user; verifies the user owns the recording.
+ * data: { recordingId: string, fromSec?: number, toSec?: number,
+ *         page?: number, pageSize?: number }
+ * Segments overlapping [fromSec, toSec) are paged (default 50, max 200).
+ * Only the index head and the shards holding the page are downloaded.
+ * Older transcripts without a sharded index get one built and saved on
+ * first use.
+ */
+export const getTranscriptSegments = onCall(
+  { cors: true },
+  async (req) => {
+    const uid = req.auth?.uid;
+    if (!uid) {
+      throw new HttpsError("unauthenticated", "Sign-in required.");
+    }
+
+    const recordingId = (req.data?.recordingId as string) || "";
+    if (!recordingId) {
+      throw new HttpsError("invalid-argument", "recordingId is required");
+    }
+    const fromSec = Number(req.data?.fromSec) || 0;
+    const toSec = req.data?.toSec == null ? Infinity : Number(req.data.toSec);
+    const page = Math.max(0, Math.floor(Number(req.data?.page) || 0));
+    const pageSize = Math.min(200, Math.max(1, Math.floor(Number(req.data?.pageSize) || 50)));
+
+    // Verify ownership in Firestore
+    const db = getFirestore();
+    const recSnap = await db.collection("users").doc(uid).collection("recordings").doc(recordingId).get();
+    if (!recSnap.exists) {
+      throw new HttpsError("not-found", "Recording not found.");
+    }
+    if ((recSnap.data() || {}).uid !== uid) {
+      throw new HttpsError("permission-denied", "Not your recording.");
+    }
+
     const bucket = getStorage().bucket();
-    const file = bucket.file(objectPath);
-    const [exists] = await file.exists();
-    if (!exists) {
-      throw new HttpsError("not-found", "Transcript not found for this recording.");
+    const prefix = segmentIndexPrefix(uid, recordingId);
+    let head: SegmentIndexHead;
+    let built: SegmentIndex | null = null;
+    try {
+      const [buf] = await bucket.file(`${prefix}head.json`).download();
+      head = JSON.parse(buf.toString("utf8")) as SegmentIndexHead;
+    } catch (e) {
+      if (!isNotFound(e)) throw e;
+      // Transcript predates the sharded index: build it from the .txt once.
+      const txtFile = bucket.file(`${TRANSCRIPTS_DIR}/${uid}/${recordingId}.txt`);
+      const [exists] = await txtFile.exists();
+      if (!exists) {
+        throw new HttpsError("not-found", "Transcript not found for this recording.");
+      }
+      const [buf] = await txtFile.download();
+      built = buildSegmentIndex(buf.toString("utf8"));
+      await saveTranscriptSegments(uid, recordingId, built)
+        .then(() => bucket.file(`${TRANSCRIPTS_DIR}/${uid}/${recordingId}.segments.json`).delete({ ignoreNotFound: true }))
+        .catch(() => undefined);
+      head = {
+        version: 2,
+        estimated: built.estimated,
+        durationSec: built.durationSec,
+        shardSize: SEGMENT_SHARD_SIZE,
+        starts: built.segments.map((sg) => sg.start),
+        ends: built.segments.map((sg) => sg.end),
+      };
+    }
+
+    // Segments are in time order: the ones overlapping [fromSec, toSec) are
+    // the run [lo, hi), and the page is a slice of it.
+    const lo = lowerBound(head.ends, (end) => end > fromSec);
+    const hi = Math.max(lo, lowerBound(head.starts, (start) => start >= toSec));
+    const first = lo + page * pageSize;
+    const last = Math.min(hi, first + pageSize);
+    let segments: TranscriptSegment[] = [];
+    if (first < last) {
+      if (built) {
+        segments = built.segments.slice(first, last);
+      } else {
+        const shardNos: number[] = [];
+        for (let n = Math.floor(first / head.shardSize); n <= Math.floor((last - 1) / head.shardSize); n++) shardNos.push(n);
+        const shards = await Promise.all(shardNos.map(async (n) => {
+          const [buf] = await bucket.file(segmentShardPath(prefix, n)).download();
+          return JSON.parse(buf.toString("utf8")) as TranscriptSegment[];
+        }));
+        segments = shards.flat().slice(first - shardNos[0] * head.shardSize, last - shardNos[0] * head.shardSize);
+      }
+    }
+    return {
+      recordingId,
+      estimated: head.estimated,
+      durationSec: head.durationSec,
+      total: hi - lo,
+      page,
+      pageSize,
+      hasMore: last < hi,
+      segments,
+    };
+  },
+);
+
+/**
+ * Callable used by the app to search what was said across the user's
+ * transcripts. Ranks recordings with BM25 over the inverted index and returns
+ * the timestamps where query terms occur.
+ * data: { query: string, limit?: number }
+ */
+export const searchTranscripts = onCall(
+  { cors: true },
+  async (req) => {
+    const uid = req.auth?.uid;
+    if (!uid) {
+      throw new HttpsError("unauthenticated", "Sign-in required.");
+    }
+
+    const terms = [...new Set(tokenize(String(req.data?.query || "")))].slice(0, 10);
+    if (terms.length === 0) {
+      throw new HttpsError("invalid-argument", "query is required");
+    }
+    const limit = Math.min(50, Math.max(1, Math.floor(Number(req.data?.limit) || 20)));
+
+    const bucket = getStorage().bucket();
+    const root = `${SEARCH_INDEX_DIR}/${uid}`;
+    const readJson = async <T>(objectPath: string, empty: T): Promise<T> => {
+      try {
+        const [buf] = await bucket.file(objectPath).download();
+        return JSON.parse(buf.toString("utf8")) as T;
+      } catch (e) {
+        if ((e as { code?: number }).code === 404) return empty;
+        throw e;
+      }
+    };
+
+    // Only the shards holding the query terms are read.
+    const shardIds = [...new Set(terms.map(shardOf))];
+    const docsRead = readJson<SearchDocs>(`${root}/docs.json`, { docs: {} });
+    const shards = await Promise.all(shardIds.map((n) => readJson<SearchShard>(`${root}/shards/${n}.json`, { terms: {} })));
+    const docs = await docsRead;
+    const lookup = new Map(shardIds.map((n, i) => [n, shards[i]]));
+
+    const n = Math.max(1, Object.keys(docs.docs).length);
+    const avgLen = Object.values(docs.docs).reduce((a, d) => a + d.len, 0) / n || 1;
+    const k1 = 1.2;
+    const b = 0.75;
+    const scored = new Map<string, { score: number; matched: number; hits: { term: string; sec: number }[] }>();
+    for (const term of terms) {
+      const postings = lookup.get(shardOf(term))?.terms[term] || {};
+      const df = Object.keys(postings).length;
+      if (df === 0) continue;
+      const idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+      for (const [recordingId, [tf, ...hits]] of Object.entries(postings)) {
+        const len = docs.docs[recordingId]?.len || avgLen;
+        const r = scored.get(recordingId) || { score: 0, matched: 0, hits: [] };
+        r.score += idf * (tf * (k1 + 1)) / (tf + k1 * (1 - b + (b * len) / avgLen));
+        r.matched++;
+        r.hits.push(...hits.map((sec) => ({ term, sec })));
+        scored.set(recordingId, r);
+      }
     }
 
-    const [buf] = await file.download();
-    const text = buf.toString("utf8");
-    return { text };
+    // Recordings matching more of the query first, then by score.
+    const ranked = [...scored.entries()]
+      .sort(([, x], [, y]) => y.matched - x.matched || y.score - x.score)
+      .slice(0, limit);
+    if (ranked.length === 0) return { results: [] };
+
+    // Join current metadata; recordings deleted since indexing drop out here.
+    const recs = getFirestore().collection("users").doc(uid).collection("recordings");
+    const snaps = await getFirestore().getAll(...ranked.map(([id]) => recs.doc(id)));
+    const results = ranked.flatMap(([recordingId, r], i) => {
+      if (!snaps[i].exists) return [];
+      const rec = snaps[i].data() || {};
+      return [{
+        recordingId,
+        className: rec.className || "",
+        topic: rec.topic || "",
+        score: Math.round(r.score * 1000) / 1000,
+        matchedTerms: r.matched,
+        hits: r.hits.sort((x, y) => x.sec - y.sec).slice(0, 10),
+      }];
+    });
+    return { results };
   },
 );
 
 /**
  * Callable used by the app to fetch an AI job's JSON output.
  * Requires a signed-in user; verifies the user owns the recording.
- * data: { recordingId: string, type: "summary"|"notes"|"quiz" }
+ * data: { recordingId: string, type: "summary"|"notes"|"quiz", delivery?: "url" }
+ * With delivery "url" the JSON is not returned inline: the response carries
+ * { url, expiresAt } for the client to download and parse itself.
  */
 export const getAiJobOutput = onCall(
   { cors: true, secrets: ["OPENAI_API_KEY"] },
@@ -284,16 +2052,31 @@ export const getAiJobOutput = onCall(
     if (!objectPath) {
       throw new HttpsError("not-found", `No ${type} output available.`);
     }
+    // The path lives on a client-writable doc; only ever expose this recording's outputs
+    if (!objectPath.startsWith(`ai/${uid}/${recordingId}/`)) {
+      throw new HttpsError("permission-denied", "Output path does not belong to this recording.");
+    }
 
-    // Download JSON from Storage and return parsed payload
-    const bucket = getStorage().bucket();
-    const file = bucket.file(objectPath);
-    const [exists] = await file.exists();
-    if (!exists) {
-      throw new HttpsError("not-found", `${type} output file not found in Storage.`);
+    // Include preview if stored
+    const previewField = `ai${cap}Preview`;
+    const preview = (rec[previewField] as string | undefined) || null;
+
+    const file = getStorage().bucket().file(objectPath);
+    if (req.data?.delivery === "url") {
+      const signed = await signedReadUrl(file);
+      if (signed) return { type, recordingId, path: objectPath, preview, ...signed };
     }
 
-    const [buf] = await file.download();
+    // Download JSON from Storage and return parsed payload
+    let buf: Buffer;
+    try {
+      [buf] = await file.download();
+    } catch (e) {
+      if (isNotFound(e)) {
+        throw new HttpsError("not-found", `${type} output file not found in Storage.`);
+      }
+      throw e;
+    }
     let data: unknown;
     try {
       data = JSON.parse(buf.toString("utf8"));
@@ -302,10 +2085,6 @@ export const getAiJobOutput = onCall(
       data = { raw: buf.toString("utf8") };
     }
 
-    // Include preview if stored
-    const previewField = `ai${cap}Preview`;
-    const preview = (rec[previewField] as string | undefined) || null;
-
     return { type, recordingId, path: objectPath, preview, data };
   },
 );
@@ -313,21 +2092,26 @@ export const getAiJobOutput = onCall(
 /**
  * Firestore trigger: when a recording moves to "pending", we:
  * 1) set status to "processing"
- * 2) download audio from Storage
- * 3) (attempt) convert to 16k mono WAV using ffmpeg (fallback to original on failure)
- * 4) transcribe via OpenAI (now chunked for long lectures, with fallback)
- * 5) save transcript to Storage
- * 6) update Firestore with preview + status "done"
+ * 2) stream audio from Storage into a single ffmpeg pass (16k mono WAV + segmentation),
+ *    or, as a fallback, download → segment → convert each part
+ * 3) transcribe via OpenAI (chunked for long lectures, parts run in parallel)
+ *    (each finished chunk is checkpointed; retries skip checkpointed chunks and
+ *    long recordings continue in a follow-up invocation near the timeout)
+ * 4) save transcript to Storage
+ * 5) update Firestore with preview + status "done"
+ * 6) if the recording has autoGenerate, produce those AI outputs from the
+ *    in-memory transcript (no aiJobs trigger hop, no transcript re-read)
  */
 export const onTranscriptRequested = onDocumentUpdated(
   {
     document: "users/{uid}/recordings/{id}",
     region: "us-central1",
-    timeoutSeconds: 540,
+    timeoutSeconds: TRANSCRIBE_TIMEOUT_MS / 1000,
     memory: "1GiB",
     secrets: ["OPENAI_API_KEY"],
   },
   async (event) => {
+    const invokedAt = Date.now();
     const snap = event.data;
     if (!snap) return;
 
@@ -341,6 +2125,9 @@ export const onTranscriptRequested = onDocumentUpdated(
 
     const docId = snap.after.id;
     const filename = (after.filename || after.name || "audio.m4a") as string;
+    // Stage timings for this invocation; written to the doc as transcriptMetrics
+    const trace = new Trace(`${TAG}:onTranscriptRequested`, { docId });
+    trace.queuedSince(event.time, invokedAt);
 
     // Resolve Storage object path
     let objectPath = (after.storagePath || "") as string;
@@ -366,10 +2153,14 @@ export const onTranscriptRequested = onDocumentUpdated(
         hasStorageUrl: !!after.storageUrl,
         hasDriveFileId: !!after.driveFileId,
         objectPath,
+        // Compare encoding profiles by size and transcription time per lecture
+        encodingProfile: after.encodingProfile || "standard",
+        sizeBytes: after.sizeBytes || null,
+        durationSeconds: after.durationSeconds || null,
       }),
     );
 
-    // Download audio from Storage
+    // Locate audio in Storage
     const bucket = getStorage().bucket();
     const audioFile = bucket.file(objectPath);
     const [exists] = await audioFile.exists();
@@ -390,108 +2181,120 @@ export const onTranscriptRequested = onDocumentUpdated(
       return;
     }
 
-    const [audioBytes] = await audioFile.download();
-    logger.info(
-      JSON.stringify({
-        tag: `${TAG}:onTranscriptRequested`,
-        docId,
-        message: "Downloaded audio",
-        bytes: audioBytes.length,
-      }),
-    );
-
-    // Prepare local temp file
-    const tmpIn = path.join(os.tmpdir(), `${docId}.m4a`);
-    await fs.writeFile(tmpIn, audioBytes);
-
-    // Attempt segmentation into ~10-minute parts. If segmentation fails or yields no parts,
-    // fall back to the original single-file path list with just [tmpIn].
-    let parts: string[] = [];
-    try {
-      parts = await segmentAudio(tmpIn, 600); // 600s = 10 minutes
-      if (parts.length === 0) parts = [tmpIn];
-      logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Segmentation complete", parts: parts.length }));
-    } catch (e) {
-      const errMsg = (e as { message?: string })?.message || String(e);
-      logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Segmentation unavailable; using single-shot", error: errMsg }));
-      parts = [tmpIn];
-    }
+    const uid = after.uid as string;
+    const [audioMeta] = await audioFile.getMetadata();
 
-    // Transcribe each part sequentially; convert each to 16k mono WAV to be safe; if conversion fails, use original bytes.
-    const openai = new OpenAI({ apiKey: process.env.OPENAI_API_KEY });
-    let transcriptText = "";
+    // Whole-recording cache: an identical upload is answered without any ffmpeg/OpenAI work.
+    const audioCacheObject = audioCachePath(uid, audioMeta.md5Hash);
+    let transcriptText = audioCacheObject ? await trace.span("audioCacheRead", () => readCachedText(audioCacheObject)) : null;
+    logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Transcript cache lookup", cache: transcriptText !== null ? "hit" : "miss" }));
 
-    for (let idx = 0; idx < parts.length; idx++) {
-      const partPath = parts[idx];
-      let bytesForOpenAI: Buffer;
-      let nameForOpenAI = path.basename(partPath);
+    // Live recordings: the segments were transcribed while recording.
+    const liveSegments = Number(after.liveSegmentCount || 0);
+    if (transcriptText === null && liveSegments > 0) {
       try {
-        const wavPath = await convertToWav16kMono(partPath);
-        const wavBytes = await fs.readFile(wavPath);
-        bytesForOpenAI = wavBytes;
-        nameForOpenAI = path.basename(wavPath);
-        await fs.rm(wavPath, { force: true });
-      } catch (convErr) {
-        const fallbackBytes = await fs.readFile(partPath);
-        bytesForOpenAI = fallbackBytes;
+        transcriptText = await trace.span("assembleLiveTranscript", () => awaitLiveTranscript(uid, docId, liveSegments, invokedAt + LIVE_TEXT_WAIT_MS));
+      } catch (e) {
+        logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Live transcript unavailable", error: (e as { message?: string })?.message || String(e) }));
       }
+      logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Live transcript lookup", segments: liveSegments, assembled: transcriptText !== null }));
+    }
 
-      // Add simple time markers based on segment index (10 min windows)
-      const startSec = idx * 600;
-      const endSec = (idx + 1) * 600;
-      const fmt = (s: number) => {
-        const h = Math.floor(s / 3600);
-        const m = Math.floor((s % 3600) / 60);
-        const sec = s % 60;
-        const hh = h > 0 ? `${h.toString().padStart(2, "0")}:` : "";
-        return `${hh}${m.toString().padStart(2, "0")}:${sec.toString().padStart(2, "0")}`;
+    if (transcriptText === null) {
+      // Checkpoints are loaded by the pipeline once the part layout is planned.
+      const ctx: PartContext = {
+        openai: openAiClient(),
+        trace,
+        uid,
+        docId,
+        stats: { busyMs: 0, cacheHits: 0, cacheMisses: 0 },
+        checkpoints: { prefix: "", done: new Map() },
+        generation: String(audioMeta.generation || "0"),
+        deadline: invokedAt + TRANSCRIBE_BUDGET_MS,
       };
 
+      // Transcribe parts in parallel (bounded pool).
       try {
-        const piece = await transcribeChunk(openai, bytesForOpenAI, nameForOpenAI);
-        transcriptText += `\n[${fmt(startSec)}–${fmt(endSec)}]\n${piece}\n`;
-        logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Chunk transcribed", index: idx, chars: piece.length }));
+        transcriptText = await transcribeRecording(ctx, audioFile);
       } catch (err) {
+        // Out of time: finished chunks are checkpointed, so hand the rest to a
+        // follow-up invocation by flipping the status back to "pending".
+        const resumes = Number(after.transcriptResumeCount || 0);
+        if (err instanceof DeadlineError && resumes < MAX_TRANSCRIBE_RESUMES) {
+          await snap.after.ref.update({
+            transcriptStatus: "pending",
+            transcriptResumeCount: resumes + 1,
+            transcriptPartsDone: ctx.checkpoints.done.size,
+            transcriptMetrics: { ...trace.summary(), resume: resumes },
+            transcriptLastUpdated: FieldValue.serverTimestamp(),
+          });
+          trace.logSummary();
+          logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Time budget reached; continuing in follow-up invocation", partsDone: ctx.checkpoints.done.size, resume: resumes + 1 }));
+          return;
+        }
+
+        const chunk = err instanceof ChunkError ? err.index : -1;
         const msg =
           (err as { message?: string })?.message ||
-          `OpenAI transcription failed for chunk ${idx}`;
+          `OpenAI transcription failed for chunk ${chunk}`;
+        // Checkpoints are kept, so a retry only pays for the chunks that are missing.
         await snap.after.ref.update({
           transcriptStatus: "error",
           transcriptError: msg,
+          transcriptResumeCount: FieldValue.delete(),
+          transcriptPartsDone: ctx.checkpoints.done.size,
+          transcriptMetrics: { ...trace.summary(), resume: resumes },
           transcriptLastUpdated: FieldValue.serverTimestamp(),
         });
-        logger.error(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, error: msg, chunk: idx }));
-        // cleanup temp files before returning
-        try {
-          for (const p of parts) await fs.rm(p, { force: true });
-          await fs.rm(tmpIn, { force: true });
-        } catch {
-          // noop: best-effort cleanup
-        }
+        trace.logSummary();
+        logger.error(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, error: msg, chunk }));
         return;
       }
-    }
 
-    // Cleanup temp pieces
-    try {
-      for (const p of parts) {
-        if (p !== tmpIn) await fs.rm(p, { force: true });
-      }
-      await fs.rm(tmpIn, { force: true });
-    } catch {
-      // noop: best-effort cleanup
+      if (audioCacheObject) await writeCachedText(audioCacheObject, transcriptText);
     }
 
+    // Silence trimmed on-device: markers move back to the lecture's real time
+    const timeMap = parseTimeMap(after.timeMap);
+    if (timeMap.length > 0) transcriptText = applyTimeMap(transcriptText, timeMap);
+
     // Save full transcript and update Firestore (single canonical path)
-    const objectPathTxt = await saveTranscriptText(after.uid as string, docId, transcriptText);
+    const finalText = transcriptText;
+    const objectPathTxt = await trace.span("saveTranscriptText", () => saveTranscriptText(uid, docId, finalText), () => ({ bytes: Buffer.byteLength(finalText) }));
     const preview = transcriptText.substring(0, 500);
 
+    // Structured, timestamped index next to the .txt (serves getTranscriptSegments).
+    let segmentsPath: string | null = null;
+    try {
+      const segmentIndex = buildSegmentIndex(transcriptText);
+      segmentsPath = await trace.span("saveTranscriptSegments", () => saveTranscriptSegments(uid, docId, segmentIndex));
+      const terms = await trace.span("updateSearchIndex", () => updateSearchIndex(uid, docId, segmentIndex));
+      logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Search index updated", terms }));
+    } catch (e) {
+      logger.warn(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Segment/search index not saved", error: (e as { message?: string })?.message || String(e) }));
+    }
+
     await snap.after.ref.update({
       transcriptStatus: "done",
       transcriptLastUpdated: FieldValue.serverTimestamp(),
       transcriptPreview: preview,
       transcriptPath: objectPathTxt,
+      transcriptSegmentsPath: segmentsPath,
+      // Covers this invocation only; earlier follow-ups wrote theirs before resuming
+      transcriptMetrics: { ...trace.summary(), resume: Number(after.transcriptResumeCount || 0) },
+      transcriptResumeCount: FieldValue.delete(),
+      transcriptPartsDone: FieldValue.delete(),
     });
+    trace.logSummary();
+
+    // The stitched transcript is canonical now; drop the per-chunk checkpoints
+    // and, for live recordings, the segments and their texts.
+    try {
+      await bucket.deleteFiles({ prefix: checkpointRoot(uid, docId) });
+      if (liveSegments > 0) await deleteLiveArtifacts(uid, docId);
+    } catch {
+      // noop: best-effort cleanup
+    }
 
     logger.info(
       JSON.stringify({
@@ -501,6 +2304,44 @@ export const onTranscriptRequested = onDocumentUpdated(
         transcriptPath: objectPathTxt,
       }),
     );
+
+    // Optional chaining: recordings with autoGenerate (e.g. ["summary","quiz"] or
+    // ["all"]) get their AI outputs straight from the in-memory transcript.
+    const requested = Array.isArray(after.autoGenerate) ? (after.autoGenerate as unknown[]).map(String) : [];
+    const autoTypes = AI_JOB_TYPES.filter((t) => requested.includes(t) || requested.includes("all"));
+    if (autoTypes.length === 0) return;
+
+    const db = getFirestore();
+    const remainingMs = invokedAt + TRANSCRIBE_TIMEOUT_MS - Date.now();
+    if (transcriptText.length >= AI_MAP_REDUCE_MIN_CHARS || remainingMs < AUTO_GENERATE_INLINE_RESERVE_MS) {
+      // Map-reduce or not enough time left in this invocation: fall back to regular aiJobs docs.
+      await Promise.all(autoTypes.map((t) => db.collection("aiJobs").add({
+        uid,
+        type: t,
+        recordingId: docId,
+        status: "pending",
+        source: "autoGenerate",
+        createdAt: new Date().toISOString(),
+      })));
+      logger.info(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Auto-generate queued as aiJobs", types: autoTypes, chars: transcriptText.length, remainingMs }));
+      return;
+    }
+
+    try {
+      await runCombinedAiJob({
+        jobRef: null,
+        recRef: snap.after.ref,
+        uid,
+        recordingId: docId,
+        jobId: db.collection("aiJobs").doc().id, // output file name only; no job doc is written
+        recMeta: after,
+        types: autoTypes,
+        transcript: transcriptText,
+        trace: new Trace(`${TAG}:onAiJobCreated`, { recordingId: docId, source: "autoGenerate" }),
+      });
+    } catch (e) {
+      logger.error(JSON.stringify({ tag: `${TAG}:onTranscriptRequested`, docId, message: "Auto-generate failed", error: (e as { message?: string })?.message || String(e) }));
+    }
   },
 );
 
@@ -557,44 +2398,22 @@ function systemPrompt(jobType: "summary" | "notes" | "quiz"): string {
 }
 
 /**
- * Build the user prompt that includes the transcript and the schema for the job.
+ * JSON schema text for a job type (shared by the single, map and reduce prompts).
  * @param {string} jobType "summary"|"notes"|"quiz"
- * @param {string} transcript plain transcript text
- * @param {Record<string, unknown>} _recMeta minimal recording metadata
- * @return {string} user content
+ * @return {string} schema description
  */
-function userPrompt(
-  jobType: "summary" | "notes" | "quiz",
-  transcript: string,
-  _recMeta: Record<string, unknown>, // kept for future use; underscore silences unused-var
-): string {
-  void _recMeta;
-  const common = [
-    "TRANSCRIPT (verbatim):",
-    "<<<TRANSCRIPT_START>>>",
-    transcript,
-    "<<<TRANSCRIPT_END>>>",
-    "",
-  ].join("\n");
-
+function jobSchema(jobType: "summary" | "notes" | "quiz"): string {
   if (jobType === "summary") {
-    return [
-      common,
-      "Return JSON with schema:",
-      `{
+    return `{
   "title": string|null,           // from transcript, or null
   "abstract": string,             // 3–6 sentences, extractive/faithful
   "key_points": string[],         // 5–12 bullets from transcript
   "terms": string[]               // glossary terms if explicitly present
-}`,
-    ].join("\n");
+}`;
   }
 
   if (jobType === "notes") {
-    return [
-      common,
-      "Return JSON with schema:",
-      `{
+    return `{
   "outline": [
     {
       "heading": string,
@@ -603,15 +2422,11 @@ function userPrompt(
   ],
   "equations": string[],          // equations exactly as they appear, or []
   "references": string[]          // sources/figures mentioned explicitly, or []
-}`,
-    ].join("\n");
+}`;
   }
 
   // quiz
-  return [
-    common,
-    "Return JSON with schema:",
-    `{
+  return `{
   "questions": [
     {
       "type": "mcq"|"short"|"true_false",
@@ -621,10 +2436,194 @@ function userPrompt(
       "rationale": string|null    // cite wording from transcript if helpful
     }
   ]
-}`,
+}`;
+}
+
+/**
+ * Build the user prompt that includes the transcript and the schema for the job.
+ * @param {string} jobType "summary"|"notes"|"quiz"
+ * @param {string} transcript plain transcript text
+ * @param {Record<string, unknown>} _recMeta minimal recording metadata
+ * @return {string} user content
+ */
+function userPrompt(
+  jobType: "summary" | "notes" | "quiz",
+  transcript: string,
+  _recMeta: Record<string, unknown>, // kept for future use; underscore silences unused-var
+): string {
+  void _recMeta;
+  return [
+    "TRANSCRIPT (verbatim):",
+    "<<<TRANSCRIPT_START>>>",
+    transcript,
+    "<<<TRANSCRIPT_END>>>",
+    "",
+    "Return JSON with schema:",
+    jobSchema(jobType),
+  ].join("\n");
+}
+
+/**
+ * Map step prompt: the regular prompt for one transcript window, told that it
+ * only sees an excerpt so it doesn't pad the output with missing context.
+ * @param {string} jobType "summary"|"notes"|"quiz"
+ * @param {string} window transcript window text
+ * @param {number} index zero-based window index
+ * @param {number} total number of windows
+ * @param {Record<string, unknown>} recMeta minimal recording metadata
+ * @return {string} user content
+ */
+function mapPrompt(
+  jobType: "summary" | "notes" | "quiz",
+  window: string,
+  index: number,
+  total: number,
+  recMeta: Record<string, unknown>,
+): string {
+  return [
+    userPrompt(jobType, window, recMeta),
+    "",
+    `This transcript is excerpt ${index + 1} of ${total} of a longer lecture. Cover only this excerpt.`,
+  ].join("\n");
+}
+
+/**
+ * Reduce step prompt: merge the per-window JSON results into one object.
+ * @param {string} jobType "summary"|"quiz"
+ * @param {unknown[]} partials map results in transcript order
+ * @return {string} user content
+ */
+function reducePrompt(jobType: "summary" | "notes" | "quiz", partials: unknown[]): string {
+  const guidance = jobType === "quiz" ?
+    "Remove duplicate questions and keep 10–20 that cover the whole lecture." :
+    "Write the abstract for the whole lecture; merge and de-duplicate key points and terms.";
+  return [
+    "PARTIAL RESULTS (JSON, one per transcript excerpt, in lecture order):",
+    "<<<PARTIALS_START>>>",
+    JSON.stringify(partials),
+    "<<<PARTIALS_END>>>",
+    "",
+    "Merge them into ONE JSON object. Use ONLY information present in the partial results.",
+    guidance,
+    "Return JSON with schema:",
+    jobSchema(jobType),
   ].join("\n");
 }
 
+/**
+ * Split a transcript into windows of roughly `maxChars`, cutting only before a
+ * "[mm:ss–mm:ss]" marker line so every window holds whole segments. A single
+ * segment longer than `maxChars` is cut at the last line break that fits.
+ * @param {string} text transcript text
+ * @param {number} maxChars target window size
+ * @return {string[]} windows in transcript order
+ */
+function splitTranscriptWindows(text: string, maxChars: number): string[] {
+  const blocks: string[] = [];
+  for (const block of text.split(/\n(?=\[[0-9:]+–[0-9:]+\]\n)/)) {
+    let rest = block;
+    while (rest.length > maxChars) {
+      const cut = rest.lastIndexOf("\n", maxChars);
+      const at = cut > maxChars / 2 ? cut : maxChars;
+      blocks.push(rest.substring(0, at));
+      rest = rest.substring(at);
+    }
+    blocks.push(rest);
+  }
+
+  const windows: string[] = [];
+  let cur = "";
+  for (const b of blocks) {
+    if (cur && cur.length + b.length > maxChars) {
+      windows.push(cur);
+      cur = "";
+    }
+    cur += (cur ? "\n" : "") + b;
+  }
+  if (cur.trim()) windows.push(cur);
+  return windows;
+}
+
+/**
+ * Notes reduce is a plain merge: outline sections stay in lecture order, and
+ * equations/references are de-duplicated. No model call is needed.
+ * @param {unknown[]} partials notes JSON per window
+ * @return {unknown} merged notes JSON
+ */
+function mergeNotes(partials: unknown[]): unknown {
+  const outline: unknown[] = [];
+  const equations = new Set<string>();
+  const references = new Set<string>();
+  for (const p of partials) {
+    const d = (p || {}) as { outline?: unknown; equations?: unknown; references?: unknown };
+    if (Array.isArray(d.outline)) outline.push(...d.outline);
+    if (Array.isArray(d.equations)) d.equations.forEach((e) => equations.add(String(e)));
+    if (Array.isArray(d.references)) d.references.forEach((r) => references.add(String(r)));
+  }
+  return { outline, equations: [...equations], references: [...references] };
+}
+
+/**
+ * One JSON-only chat completion (zero temperature), traced as "chatCompletion".
+ * @param {OpenAI} openai client
+ * @param {Trace} trace job trace
+ * @param {string} sys system message
+ * @param {string} usr user message
+ * @return {Promise<unknown>} parsed JSON
+ */
+async function generateJson(openai: OpenAI, trace: Trace, sys: string, usr: string): Promise<unknown> {
+  const resp = await trace.span("chatCompletion", () => withRetry(trace, "chatCompletion", () => openai.chat.completions.create({
+    model: AI_MODEL,
+    messages: [
+      { role: "system", content: sys },
+      { role: "user", content: usr },
+    ],
+    temperature: 0,
+    response_format: { type: "json_object" },
+  })), () => ({ bytes: Buffer.byteLength(sys) + Buffer.byteLength(usr) }));
+  const raw = resp.choices?.[0]?.message?.content?.trim() || "{}";
+  return safeParseJson(raw);
+}
+
+/**
+ * Generate the job output. Short transcripts use one call; long ones are split
+ * into marker-aligned windows that are mapped in parallel (bounded), then
+ * reduced into the job's schema (model call for summary/quiz, merge for notes).
+ * @param {OpenAI} openai client
+ * @param {Trace} trace job trace
+ * @param {string} jobType "summary"|"notes"|"quiz"
+ * @param {string} transcript transcript text
+ * @param {Record<string, unknown>} recMeta minimal recording metadata
+ * @param {Record<string, unknown>} logFields fields added to log lines
+ * @return {Promise<unknown>} parsed JSON output
+ */
+async function generateAiOutput(
+  openai: OpenAI,
+  trace: Trace,
+  jobType: "summary" | "notes" | "quiz",
+  transcript: string,
+  recMeta: Record<string, unknown>,
+  logFields: Record<string, unknown>,
+): Promise<unknown> {
+  const sys = systemPrompt(jobType);
+  const windows = transcript.length >= AI_MAP_REDUCE_MIN_CHARS ?
+    splitTranscriptWindows(transcript, AI_WINDOW_CHARS) :
+    [transcript];
+  if (windows.length <= 1) {
+    return generateJson(openai, trace, sys, userPrompt(jobType, transcript, recMeta));
+  }
+
+  const t0 = Date.now();
+  const partials = await mapWithConcurrency(windows, AI_MAP_CONCURRENCY, (w, i) =>
+    generateJson(openai, trace, sys, mapPrompt(jobType, w, i, windows.length, recMeta)));
+  const t1 = Date.now();
+  const merged = jobType === "notes" ?
+    mergeNotes(partials) :
+    await generateJson(openai, trace, sys, reducePrompt(jobType, partials));
+  logger.info(JSON.stringify({ tag: `${TAG}:onAiJobCreated`, ...logFields, message: "Map-reduce generation", type: jobType, windows: windows.length, chars: transcript.length, mapMs: t1 - t0, reduceMs: Date.now() - t1 }));
+  return merged;
+}
+
 /**
  * Produce a short preview string for UI from the JSON payload.
  * @param {"summary"|"notes"|"quiz"} jobType type
@@ -674,26 +2673,154 @@ async function saveAiJson(
   const file = bucket.file(objectPath);
   await file.save(JSON.stringify(jsonObj, null, 2), {
     resumable: false,
+    gzip: true,
     contentType: "application/json; charset=utf-8",
     metadata: { cacheControl: "no-store" },
   });
   return objectPath;
 }
 
+const AI_JOB_TYPES = ["summary", "notes", "quiz"] as const;
+
+/**
+ * Recording status field for a job type, e.g. "summaryStatus".
+ * @param {"summary"|"notes"|"quiz"} jobType type
+ * @return {string} field name
+ */
+function statusFieldFor(jobType: "summary" | "notes" | "quiz"): string {
+  return jobType === "summary"
+    ? "summaryStatus"
+    : jobType === "notes"
+      ? "notesStatus"
+      : "quizStatus";
+}
+
+/** Inputs of a combined (multi-type) AI generation run. */
+interface CombinedJob {
+  jobRef: DocumentReference | null; // aiJobs doc, if the run belongs to one
+  recRef: DocumentReference;
+  uid: string;
+  recordingId: string;
+  jobId: string;
+  recMeta: Record<string, unknown>;
+  types: ReadonlyArray<"summary" | "notes" | "quiz">;
+  transcript?: string; // already in memory (skips the Storage read)
+  trace: Trace;
+}
+
+/**
+ * Combined job: load the transcript once (unless the caller already has it),
+ * generate the requested types concurrently, save each through saveAiJson,
+ * then flip the recording statuses (and the job doc, if any) in one batched
+ * write. A failing type only marks its own status as "error".
+ *
+ * @param {CombinedJob} job what to generate and where to record it
+ * @return {Promise<void>} resolves when statuses are written
+ */
+async function runCombinedAiJob(job: CombinedJob): Promise<void> {
+  const { jobRef, recRef, uid, recordingId, jobId, recMeta, types, trace } = job;
+  const db = getFirestore();
+  const metricsField = `aiMetrics.${types.length === 1 ? types[0] : "combined"}`;
+  const statusUpdate = (status: string): Record<string, unknown> => {
+    const u: Record<string, unknown> = {};
+    for (const t of types) {
+      u[statusFieldFor(t)] = status;
+      u[`${statusFieldFor(t)}Updated`] = FieldValue.serverTimestamp();
+    }
+    return u;
+  };
+
+  await recRef.update(statusUpdate("processing"));
+
+  let transcript = job.transcript ?? "";
+  if (job.transcript === undefined) {
+    try {
+      transcript = await trace.span("readTranscriptText", () => readTranscriptText(uid, recordingId), (t) => ({ bytes: Buffer.byteLength(t) }));
+    } catch (e) {
+      const msg = (e as { message?: string })?.message || "Transcript missing.";
+      const batch = db.batch();
+      if (jobRef) batch.update(jobRef, { status: "error", error: msg, updatedAt: FieldValue.serverTimestamp() });
+      batch.update(recRef, statusUpdate("error"));
+      await batch.commit();
+      logger.error(JSON.stringify({ tag: `${TAG}:onAiJobCreated`, jobId, recordingId, types, error: msg }));
+      return;
+    }
+  }
+
+  const openai = openAiClient();
+  const results = await Promise.allSettled(types.map(async (t) => {
+    const json = await trace.span(`generate:${t}`, () => generateAiOutput(openai, trace, t, transcript, recMeta, { jobId, recordingId }));
+    const outPath = await trace.span("saveAiJson", () => saveAiJson(uid, recordingId, t, jobId, json));
+    return { outPath, preview: makePreview(t, json) };
+  }));
+
+  const recUpdate: Record<string, unknown> = {};
+  const outputPaths: Record<string, string> = {};
+  const previews: Record<string, string> = {};
+  const errors: Record<string, string> = {};
+  results.forEach((r, i) => {
+    const t = types[i];
+    const field = statusFieldFor(t);
+    const cap = `${t[0].toUpperCase()}${t.slice(1)}`;
+    recUpdate[`${field}Updated`] = FieldValue.serverTimestamp();
+    if (r.status === "fulfilled") {
+      recUpdate[field] = "done";
+      recUpdate[`ai${cap}Path`] = r.value.outPath;
+      recUpdate[`ai${cap}Preview`] = r.value.preview;
+      outputPaths[t] = r.value.outPath;
+      previews[t] = r.value.preview;
+    } else {
+      recUpdate[field] = "error";
+      errors[t] = (r.reason as { message?: string })?.message || "OpenAI generation failed.";
+    }
+  });
+
+  const metrics = trace.summary();
+  recUpdate[metricsField] = metrics;
+  const batch = db.batch();
+  batch.update(recRef, recUpdate);
+  if (jobRef) {
+    batch.update(jobRef, {
+      status: Object.keys(outputPaths).length > 0 ? "done" : "error",
+      outputPaths,
+      previews,
+      metrics,
+      ...(Object.keys(errors).length > 0 ? { errors } : {}),
+      completedAt: FieldValue.serverTimestamp(),
+      updatedAt: FieldValue.serverTimestamp(),
+    });
+  }
+  await batch.commit();
+  trace.logSummary();
+
+  logger.info(
+    JSON.stringify({
+      tag: `${TAG}:onAiJobCreated`,
+      jobId,
+      recordingId,
+      types,
+      outputPaths,
+      errors,
+    }),
+  );
+}
+
 /**
  * Trigger on new AI job. Expects docs in collection "aiJobs" with:
- * { type: "summary"|"notes"|"quiz", recordingId: string, uid: string,
+ * { type: "summary"|"notes"|"quiz"|"all", recordingId: string, uid: string,
  *   status: "pending", createdAt: string }
+ * "all" generates the three outputs from one transcript read (runCombinedAiJob).
  */
 export const onAiJobCreated = onDocumentCreated(
-  { document: "aiJobs/{id}", secrets: ["OPENAI_API_KEY"] },
+  { document: "aiJobs/{id}", timeoutSeconds: 540, secrets: ["OPENAI_API_KEY"] },
   async (event) => {
+    const invokedAt = Date.now();
     const snap = event.data;
     if (!snap) return;
 
     const jobId = snap.id;
     const job = (snap.data() || {}) as {
-      type?: "summary" | "notes" | "quiz";
+      type?: "summary" | "notes" | "quiz" | "all";
       recordingId?: string;
       uid?: string;
       status?: string;
@@ -721,6 +2848,9 @@ export const onAiJobCreated = onDocumentCreated(
       return;
     }
 
+    const trace = new Trace(`${TAG}:onAiJobCreated`, { jobId, recordingId, type: jobType });
+    trace.queuedSince(event.time, invokedAt);
+
     // Mark processing
     await snap.ref.update({
       status: "processing",
@@ -749,13 +2879,22 @@ export const onAiJobCreated = onDocumentCreated(
       return;
     }
 
+    if (jobType === "all") {
+      await runCombinedAiJob({
+        jobRef: snap.ref,
+        recRef,
+        uid: job.uid!,
+        recordingId,
+        jobId,
+        recMeta: recSnap.data() || {},
+        types: AI_JOB_TYPES,
+        trace,
+      });
+      return;
+    }
+
     // Bump recording status to processing (non-breaking for your UI).
-    const recStatusField =
-      jobType === "summary"
-        ? "summaryStatus"
-        : jobType === "notes"
-          ? "notesStatus"
-          : "quizStatus";
+    const recStatusField = statusFieldFor(jobType);
     await recRef.update({
       [recStatusField]: "processing",
       [`${recStatusField}Updated`]: FieldValue.serverTimestamp(),
@@ -764,7 +2903,7 @@ export const onAiJobCreated = onDocumentCreated(
     // Load transcript
     let transcript = "";
     try {
-      transcript = await readTranscriptText(job.uid!, recordingId);
+      transcript = await trace.span("readTranscriptText", () => readTranscriptText(job.uid!, recordingId), (t) => ({ bytes: Buffer.byteLength(t) }));
     } catch (e) {
       const msg = (e as { message?: string })?.message || "Transcript missing.";
       await snap.ref.update({
@@ -787,36 +2926,28 @@ export const onAiJobCreated = onDocumentCreated(
       return;
     }
 
-    // Generate with OpenAI (JSON only, zero temperature)
-    const openai = new OpenAI({ apiKey: process.env.OPENAI_API_KEY });
-    const sys = systemPrompt(jobType as "summary" | "notes" | "quiz");
-    const usr = userPrompt(jobType as "summary" | "notes" | "quiz", transcript, recSnap.data() || {});
+    // Generate with OpenAI (JSON only, zero temperature; map-reduce for long transcripts)
+    const openai = openAiClient();
 
     let modelJson: unknown;
     try {
-      const resp = await openai.chat.completions.create({
-        model: "gpt-4o-mini",
-        messages: [
-          { role: "system", content: sys },
-          { role: "user", content: usr },
-        ],
-        temperature: 0,
-        response_format: { type: "json_object" },
-      });
-      const raw = resp.choices?.[0]?.message?.content?.trim() || "{}";
-      modelJson = safeParseJson(raw);
+      modelJson = await trace.span(`generate:${jobType}`, () => generateAiOutput(openai, trace, jobType, transcript, recSnap.data() || {}, { jobId, recordingId }));
     } catch (e) {
       const msg =
         (e as { message?: string })?.message || "OpenAI generation failed.";
+      const metrics = trace.summary();
       await snap.ref.update({
         status: "error",
         error: msg,
+        metrics,
         updatedAt: FieldValue.serverTimestamp(),
       });
       await recRef.update({
         [recStatusField]: "error",
         [`${recStatusField}Updated`]: FieldValue.serverTimestamp(),
+        [`aiMetrics.${jobType}`]: metrics,
       });
+      trace.logSummary();
       logger.error(
         JSON.stringify({
           tag: `${TAG}:onAiJobCreated`,
@@ -831,7 +2962,7 @@ export const onAiJobCreated = onDocumentCreated(
     // Save JSON to Storage
     let outPath = "";
     try {
-      outPath = await saveAiJson(job.uid!, recordingId, jobType, jobId, modelJson);
+      outPath = await trace.span("saveAiJson", () => saveAiJson(job.uid!, recordingId, jobType, jobId, modelJson));
     } catch (e) {
       const msg =
         (e as { message?: string })?.message || "Failed to write AI output.";
@@ -857,11 +2988,13 @@ export const onAiJobCreated = onDocumentCreated(
 
     // Preview + finalize statuses
     const preview = makePreview(jobType, modelJson);
+    const metrics = trace.summary();
 
     await snap.ref.update({
       status: "done",
       outputPath: outPath,
       preview,
+      metrics,
       completedAt: FieldValue.serverTimestamp(),
       updatedAt: FieldValue.serverTimestamp(),
     });
@@ -872,7 +3005,10 @@ export const onAiJobCreated = onDocumentCreated(
       // Optional, additive pointers (won’t break your UI):
       [`ai${jobType[0].toUpperCase()}${jobType.slice(1)}Path`]: outPath,
       [`ai${jobType[0].toUpperCase()}${jobType.slice(1)}Preview`]: preview,
+      // Stage timings of this job (see Trace)
+      [`aiMetrics.${jobType}`]: metrics,
     });
+    trace.logSummary();
 
     logger.info(
       JSON.stringify({
@@ -885,3 +3021,316 @@ export const onAiJobCreated = onDocumentCreated(
     );
   },
 );
+
+// ---------- Per-class summaries (users/<uid>/classes/<id>) ----------
+
+// Stored as classSummariesVersion on users/<uid> once a full rebuild ran;
+// bump it when the summary shape changes to backfill every library again.
+const CLASS_SUMMARIES_VERSION = 1;
+
+/**
+ * Summary doc ID for a class name (names may contain "/").
+ *
+ * @param {string} className Class name as stored on recordings.
+ * @return {string} Stable document ID.
+ */
+function classSummaryId(className: string): string {
+  return createHash("md5").update(className).digest("hex");
+}
+
+/**
+ * Normalize a recording's createdAt (Timestamp or ISO string) to a Timestamp,
+ * so summaries order consistently.
+ *
+ * @param {unknown} v Stored createdAt value.
+ * @return {Timestamp | null} Timestamp, or null if unparseable.
+ */
+function toTimestamp(v: unknown): Timestamp | null {
+  if (v instanceof Timestamp) return v;
+  if (typeof v === "string") {
+    const ms = Date.parse(v);
+    return Number.isNaN(ms) ? null : Timestamp.fromMillis(ms);
+  }
+  return null;
+}
+
+/**
+ * Recompute one class summary from the recordings themselves (count
+ * aggregation + newest recording), so replays and deletes stay correct.
+ *
+ * @param {string} uid User ID.
+ * @param {string} className Class name as stored on recordings.
+ * @return {Promise<number>} Lectures counted for the class.
+ */
+async function refreshClassSummary(uid: string, className: string): Promise<number> {
+  const userRef = getFirestore().collection("users").doc(uid);
+  const byClass = userRef.collection("recordings").where("className", "==", className);
+  const [countSnap, latestSnap] = await Promise.all([
+    byClass.count().get(),
+    byClass.orderBy("createdAt", "desc").limit(1).get(),
+  ]);
+  const count = countSnap.data().count;
+  const ref = userRef.collection("classes").doc(classSummaryId(className));
+  if (count === 0) {
+    await ref.delete();
+    return 0;
+  }
+  await ref.set({
+    className,
+    count,
+    latestCreatedAt: toTimestamp(latestSnap.docs[0]?.get("createdAt")),
+    updatedAt: FieldValue.serverTimestamp(),
+  });
+  return count;
+}
+
+/**
+ * Keep users/<uid>/classes in sync with recordings. Only writes that add,
+ * remove or move a recording between classes (or change its createdAt) do
+ * any work; status updates from the pipeline return immediately. A deleted
+ * recording also leaves the transcript search index.
+ */
+export const onRecordingWritten = onDocumentWritten(
+  {
+    document: "users/{uid}/recordings/{id}",
+    region: "us-central1",
+  },
+  async (event) => {
+    const uid = event.params.uid as string;
+    const before = event.data?.before?.data();
+    const after = event.data?.after?.data();
+    if (before && !after) {
+      const recordingId = event.params.id as string;
+      try {
+        await updateSearchIndex(uid, recordingId, null);
+      } catch (e) {
+        logger.warn(JSON.stringify({ tag: `${TAG}:onRecordingWritten`, uid, recordingId, message: "Search index cleanup failed", error: (e as { message?: string })?.message || String(e) }));
+      }
+    }
+    const beforeClass = String(before?.className ?? "");
+    const afterClass = String(after?.className ?? "");
+    const sameCreated = toTimestamp(before?.createdAt)?.toMillis() === toTimestamp(after?.createdAt)?.toMillis();
+    if (before && after && beforeClass === afterClass && sameCreated) return;
+
+    const classes = [...new Set([beforeClass, afterClass])].filter((c) => c.trim());
+    for (const className of classes) {
+      const count = await refreshClassSummary(uid, className);
+      logger.info(JSON.stringify({ tag: `${TAG}:onRecordingWritten`, uid, className, count }));
+    }
+  },
+);
+
+/**
+ * Callable that rebuilds all of the caller's class summaries from their
+ * recordings (one-time backfill for libraries that predate the trigger).
+ * A no-op once users/<uid>.classSummariesVersion is current, unless
+ * data.force is set.
+ */
+export const rebuildClassSummaries = onCall(
+  { cors: true },
+  async (req) => {
+    const uid = req.auth?.uid;
+    if (!uid) {
+      throw new HttpsError("unauthenticated", "Sign-in required.");
+    }
+
+    const db = getFirestore();
+    const userRef = db.collection("users").doc(uid);
+    if (req.data?.force !== true) {
+      const user = await userRef.get();
+      if (Number(user.get("classSummariesVersion") || 0) >= CLASS_SUMMARIES_VERSION) {
+        return { classes: null, upToDate: true };
+      }
+    }
+    const [recs, existing] = await Promise.all([
+      userRef.collection("recordings").select("className", "createdAt").get(),
+      userRef.collection("classes").select().get(),
+    ]);
+
+    const rows = new Map<string, { count: number; latest: Timestamp | null }>();
+    for (const d of recs.docs) {
+      const className = String(d.get("className") ?? "");
+      if (!className.trim()) continue;
+      const row = rows.get(className) || { count: 0, latest: null };
+      const created = toTimestamp(d.get("createdAt"));
+      row.count++;
+      if (created && (!row.latest || created.toMillis() > row.latest.toMillis())) row.latest = created;
+      rows.set(className, row);
+    }
+
+    const writer = db.bulkWriter();
+    const keep = new Set<string>();
+    for (const [className, row] of rows) {
+      const id = classSummaryId(className);
+      keep.add(id);
+      writer.set(userRef.collection("classes").doc(id), {
+        className,
+        count: row.count,
+        latestCreatedAt: row.latest,
+        updatedAt: FieldValue.serverTimestamp(),
+      });
+    }
+    existing.docs.filter((d) => !keep.has(d.id)).forEach((d) => writer.delete(d.ref));
+    await writer.close();
+    await userRef.set({ classSummariesVersion: CLASS_SUMMARIES_VERSION }, { merge: true });
+
+    logger.info(JSON.stringify({ tag: `${TAG}:rebuildClassSummaries`, uid, classes: rows.size, recordings: recs.size }));
+    return { classes: rows.size };
+  },
+);
+
+/**
+ * Transcribe a live segment as soon as the app uploads it, so a recording
+ * that was uploaded while it was being made is transcribed by the time it
+ * ends. Only objects the app tagged with liveTranscribe=1 are handled.
+ * Failures are retried (for up to LIVE_RETRY_WINDOW_MS); segments are kept
+ * until the recording's transcript is saved or the recording is discarded.
+ */
+export const onLiveSegmentUploaded = onObjectFinalized(
+  {
+    region: "us-central1",
+    timeoutSeconds: 540,
+    memory: "1GiB",
+    secrets: ["OPENAI_API_KEY"],
+    retry: true,
+  },
+  async (event) => {
+    const object = event.data;
+    const m = LIVE_SEGMENT_RE.exec(object.name || "");
+    if (!m || object.metadata?.liveTranscribe !== "1") return;
+    const [, uid, recordingId, idx] = m;
+    const index = Number(idx);
+    const ageMs = Date.now() - Date.parse(event.time);
+    if (ageMs > LIVE_RETRY_WINDOW_MS) {
+      // Give up; onTranscriptRequested transcribes the whole recording instead.
+      logger.warn(JSON.stringify({ tag: `${TAG}:onLiveSegmentUploaded`, recordingId, index, message: "Retry window exceeded; dropping event", ageMs }));
+      return;
+    }
+    const bucket = getStorage().bucket(object.bucket);
+    const source = bucket.file(object.name);
+    const target = bucket.file(liveTextPath(uid, recordingId, index));
+    const [[done], [present]] = await Promise.all([target.exists(), source.exists()]);
+    if (done || !present) return; // already transcribed, or cleaned up/discarded meanwhile
+
+    const trace = new Trace(`${TAG}:onLiveSegmentUploaded`, { recordingId, index });
+    const ctx: PartContext = {
+      openai: openAiClient(),
+      trace,
+      uid,
+      docId: `${recordingId}#${index}`,
+      stats: { busyMs: 0, cacheHits: 0, cacheMisses: 0 },
+      checkpoints: { prefix: "", done: new Map() },
+      generation: null,
+      deadline: Date.now() + TRANSCRIBE_BUDGET_MS,
+    };
+    try {
+      const text = await transcribeRecording(ctx, source);
+      const durationMs = Number(object.metadata?.durationMs || 0);
+      const body: LiveSegmentText = { index, durationSec: durationMs / 1000, text };
+      await target.save(JSON.stringify(body), { contentType: "application/json", resumable: false });
+      // Recording transcribed or discarded while this ran: don't leave the text behind
+      const [stillThere] = await source.exists();
+      if (!stillThere) await target.delete({ ignoreNotFound: true });
+      logger.info(JSON.stringify({ tag: `${TAG}:onLiveSegmentUploaded`, recordingId, index, chars: text.length, busyMs: ctx.stats.busyMs }));
+      trace.logSummary();
+    } catch (e) {
+      // Thrown so the event is retried; past the window the recording is transcribed whole.
+      logger.warn(JSON.stringify({ tag: `${TAG}:onLiveSegmentUploaded`, recordingId, index, error: (e as { message?: string })?.message || String(e) }));
+      throw e;
+    }
+  },
+);
+
+/**
+ * Callable the upload queue uses once recording stops: joins the uploaded
+ * live segments into the recording's Storage object (stream copy, no
+ * re-encode). The segments stay until onTranscriptRequested has assembled
+ * their transcripts (see deleteLiveArtifacts). Safe to call again.
+ * data: { recordingId: string, storagePath: string, segmentCount: number }
+ */
+export const finalizeLiveRecording = onCall(
+  { cors: true, timeoutSeconds: 540, memory: "1GiB" },
+  async (req) => {
+    const uid = req.auth?.uid;
+    if (!uid) throw new HttpsError("unauthenticated", "Sign in required.");
+    const recordingId = String(req.data?.recordingId || "");
+    const storagePath = String(req.data?.storagePath || "");
+    const segmentCount = Number(req.data?.segmentCount || 0);
+    if (!recordingId || recordingId.includes("/") || !Number.isInteger(segmentCount) || segmentCount < 1) {
+      throw new HttpsError("invalid-argument", "recordingId and segmentCount are required.");
+    }
+    if (!storagePath.startsWith(`recordings/${uid}/`) || storagePath.includes("/live/")) {
+      throw new HttpsError("permission-denied", "Invalid storage path.");
+    }
+
+    const bucket = getStorage().bucket();
+    const target = bucket.file(storagePath);
+    const prefix = `recordings/${uid}/live/${recordingId}/`;
+    const [objects] = await bucket.getFiles({ prefix });
+    const segments = objects
+      .map((f) => ({ file: f, m: LIVE_SEGMENT_RE.exec(f.name) }))
+      .filter((s) => s.m !== null)
+      .map((s) => ({ file: s.file, index: Number(s.m?.[3]) }))
+      .sort((a, b) => a.index - b.index);
+    const [targetExists] = await target.exists();
+    const joined = targetExists ? (await target.getMetadata())[0].metadata?.liveJoined : undefined;
+    // Already joined (segments kept for transcription) or already cleaned up
+    if (targetExists && (segments.length === 0 || joined === String(segmentCount))) {
+      return { ok: true, storagePath, joined: 0 };
+    }
+    if (segments.length !== segmentCount || segments.some((s, i) => s.index !== i)) {
+      throw new HttpsError("failed-precondition", `Expected ${segmentCount} segments, found ${segments.length}.`);
+    }
+
+    const startedAt = Date.now();
+    const tmpDir = await fs.mkdtemp(path.join(os.tmpdir(), "live-"));
+    try {
+      const locals = segments.map((s) => path.join(tmpDir, path.basename(s.file.name)));
+      await Promise.all(segments.map((s, i) => s.file.download({ destination: locals[i] })));
+      const lines = locals.map((l) => `file '${l}'`);
+      const listPath = path.join(tmpDir, "list.txt");
+      await fs.writeFile(listPath, lines.join("\n"));
+      const outPath = path.join(tmpDir, "joined.m4a");
+      const bin = await getFfmpegPath();
+      if (!bin) throw new HttpsError("internal", "ffmpeg not available.");
+      const args = ["-y", "-f", "concat", "-safe", "0", "-i", listPath, "-c", "copy", "-movflags", "+faststart", outPath];
+      await new Promise<void>((resolve, reject) => {
+        const p = spawn(bin, args, { stdio: "inherit" });
+        p.on("error", reject);
+        p.on("close", (code) => {
+          if (code === 0) resolve();
+          else reject(new Error(`ffmpeg exited with code ${code}`));
+        });
+      });
+      await bucket.upload(outPath, {
+        destination: storagePath,
+        resumable: false,
+        metadata: { contentType: "audio/mp4", metadata: { liveJoined: String(segmentCount) } },
+      });
+      logger.info(JSON.stringify({ tag: `${TAG}:finalizeLiveRecording`, recordingId, segments: segments.length, ms: Date.now() - startedAt }));
+      return { ok: true, storagePath, joined: segments.length };
+    } finally {
+      await fs.rm(tmpDir, { recursive: true, force: true });
+    }
+  },
+);
+
+/**
+ * Callable the app uses when a live recording is discarded: removes its
+ * uploaded segments and any segment transcripts. Safe to call again.
+ * data: { recordingId: string }
+ */
+export const discardLiveRecording = onCall(
+  { cors: true },
+  async (req) => {
+    const uid = req.auth?.uid;
+    if (!uid) throw new HttpsError("unauthenticated", "Sign in required.");
+    const recordingId = String(req.data?.recordingId || "");
+    if (!recordingId || recordingId.includes("/")) {
+      throw new HttpsError("invalid-argument", "recordingId is required.");
+    }
+    await deleteLiveArtifacts(uid, recordingId);
+    logger.info(JSON.stringify({ tag: `${TAG}:discardLiveRecording`, recordingId }));
+    return { ok: true };
+  },
+);
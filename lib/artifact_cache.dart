@@ -0,0 +1,215 @@
+// lib/artifact_cache.dart
+//
+// Persistent on-device cache for transcripts and AI outputs. Entries are
+// keyed by recording id and artifact type and stamped with the version the
+// recording doc reported when they were fetched (transcriptLastUpdated, or
+// the aiXxxPath, which changes with every generation). The detail screen's
+// Firestore stream feeds the current versions in through [observe]; anything
+// older is dropped, so a reopened lecture is served from disk (also offline)
+// until the server actually produces something new.
+
+import 'dart:async';
+import 'dart:convert';
+import 'dart:io';
+
+import 'package:cloud_firestore/cloud_firestore.dart';
+import 'package:flutter/widgets.dart';
+import 'package:path/path.dart' as path;
+import 'package:path_provider/path_provider.dart';
+
+void _log(String msg) => debugPrint('[StudyBuddy] $msg');
+
+class _Entry {
+  final String version;
+  int size;
+  DateTime lastAccess;
+
+  _Entry(this.version, this.size, this.lastAccess);
+
+  Map<String, dynamic> toJson() => {
+        'version': version,
+        'size': size,
+        'lastAccess': lastAccess.toIso8601String(),
+      };
+
+  static _Entry fromJson(Map<String, dynamic> m) => _Entry(
+        m['version'] as String,
+        (m['size'] as num?)?.toInt() ?? 0,
+        DateTime.tryParse(m['lastAccess'] as String? ?? '') ?? DateTime.now(),
+      );
+}
+
+class ArtifactCache {
+  ArtifactCache._();
+  static final ArtifactCache instance = ArtifactCache._();
+
+  /// Total payload bytes kept on disk; least recently read entries go first.
+  static const int maxBytes = 32 * 1024 * 1024;
+
+  Directory? _dir;
+  Future<void>? _loading;
+  final Map<String, _Entry> _index = {}; // "$recordingId|$type" -> entry
+  // Latest versions seen on each recording doc: recordingId -> family -> version
+  final Map<String, Map<String, String?>> _versions = {};
+  Future<void> _writes = Future.value();
+
+  /// Versions of the cacheable artifacts of a recording doc. The transcript
+  /// family covers the full text and every page of its segment index.
+  static Map<String, String?> versionsOf(Map<String, dynamic> doc) {
+    String? transcript;
+    if (doc['transcriptStatus'] == 'done') {
+      final updated = doc['transcriptLastUpdated'];
+      transcript = updated is Timestamp
+          ? updated.millisecondsSinceEpoch.toString()
+          : (doc['transcriptPath'] as String?);
+    }
+    return {
+      'transcript': transcript,
+      'summary': doc['aiSummaryPath'] as String?,
+      'notes': doc['aiNotesPath'] as String?,
+      'quiz': doc['aiQuizPath'] as String?,
+    };
+  }
+
+  /// Called with every snapshot of a recording doc: remembers its current
+  /// versions and removes cached artifacts that no longer match them.
+  void observe(String recordingId, Map<String, dynamic> doc) {
+    final versions = versionsOf(doc);
+    _versions[recordingId] = versions;
+    unawaited(_ready().then((_) async {
+      final stale = _index.entries
+          .where((e) {
+            final (id, type) = _split(e.key);
+            if (id != recordingId) return false;
+            final current = versions[_family(type)];
+            return current != e.value.version;
+          })
+          .map((e) => e.key)
+          .toList();
+      if (stale.isEmpty) return;
+      for (final key in stale) {
+        await _remove(key);
+      }
+      _persistIndex();
+    }));
+  }
+
+  /// Cached value of [type] for [recordingId], or null when it is missing or
+  /// older than the version last seen on the recording doc.
+  Future<Object?> read(String recordingId, String type) async {
+    final version = _versions[recordingId]?[_family(type)];
+    if (version == null) return null;
+    await _ready();
+    final key = _key(recordingId, type);
+    final entry = _index[key];
+    if (entry == null || entry.version != version) return null;
+    try {
+      final text = await _file(key).readAsString();
+      entry.lastAccess = DateTime.now();
+      _persistIndex();
+      return jsonDecode(text);
+    } catch (e) {
+      _log('Artifact cache read failed ($key): $e');
+      await _remove(key);
+      _persistIndex();
+      return null;
+    }
+  }
+
+  /// Version [type] of [recordingId] currently has, as last seen on its
+  /// doc. Capture it before fetching and hand it to [write].
+  String? versionOf(String recordingId, String type) =>
+      _versions[recordingId]?[_family(type)];
+
+  /// Stores [value] (JSON-encodable) under [version], the one captured with
+  /// [versionOf] before it was fetched. Skipped when no version was known,
+  /// or when the doc moved on while fetching: the value may predate the new
+  /// version and could not be told apart from it.
+  Future<void> write(String recordingId, String type, Object value,
+      {required String? version}) async {
+    if (version == null || versionOf(recordingId, type) != version) return;
+    await _ready();
+    final key = _key(recordingId, type);
+    try {
+      final bytes = utf8.encode(jsonEncode(value));
+      if (bytes.length > maxBytes ~/ 4) return; // one lecture shouldn't flush the rest
+      final tmp = File('${_file(key).path}.tmp');
+      await tmp.writeAsBytes(bytes, flush: true);
+      await tmp.rename(_file(key).path);
+      _index[key] = _Entry(version, bytes.length, DateTime.now());
+      await _evict();
+      _persistIndex();
+    } catch (e) {
+      _log('Artifact cache write failed ($key): $e');
+    }
+  }
+
+  // ---------------- Internals ----------------
+
+  static String _key(String recordingId, String type) => '$recordingId|$type';
+
+  static (String, String) _split(String key) {
+    final i = key.indexOf('|');
+    return (key.substring(0, i), key.substring(i + 1));
+  }
+
+  /// "transcript:segments:0:50" belongs to the "transcript" family.
+  static String _family(String type) => type.split(':').first;
+
+  File _file(String key) => File(path.join(
+      _dir!.path, '${base64Url.encode(utf8.encode(key)).replaceAll('=', '')}.json'));
+
+  Future<void> _ready() => _loading ??= _load();
+
+  Future<void> _load() async {
+    final base = await getApplicationSupportDirectory();
+    final dir = Directory(path.join(base.path, 'artifact_cache'));
+    await dir.create(recursive: true);
+    _dir = dir;
+    try {
+      final file = File(path.join(dir.path, 'index.json'));
+      if (await file.exists()) {
+        final raw = jsonDecode(await file.readAsString()) as Map;
+        raw.forEach((k, v) {
+          _index[k as String] = _Entry.fromJson(Map<String, dynamic>.from(v as Map));
+        });
+      }
+    } catch (e) {
+      _log('Artifact cache index unreadable, starting empty: $e');
+      _index.clear();
+    }
+  }
+
+  Future<void> _remove(String key) async {
+    _index.remove(key);
+    try {
+      await _file(key).delete();
+    } catch (_) {}
+  }
+
+  Future<void> _evict() async {
+    var total = _index.values.fold<int>(0, (sum, e) => sum + e.size);
+    if (total <= maxBytes) return;
+    final byAge = _index.entries.toList()
+      ..sort((a, b) => a.value.lastAccess.compareTo(b.value.lastAccess));
+    for (final e in byAge) {
+      if (total <= maxBytes) break;
+      total -= e.value.size;
+      await _remove(e.key);
+    }
+  }
+
+  /// Serialized write-then-rename so a crash never leaves a torn index.
+  void _persistIndex() {
+    final snapshot = jsonEncode(_index.map((k, v) => MapEntry(k, v.toJson())));
+    _writes = _writes.then((_) async {
+      try {
+        final tmp = File(path.join(_dir!.path, 'index.json.tmp'));
+        await tmp.writeAsString(snapshot, flush: true);
+        await tmp.rename(path.join(_dir!.path, 'index.json'));
+      } catch (e) {
+        _log('Artifact cache persist failed: $e');
+      }
+    });
+  }
+}
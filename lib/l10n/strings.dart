@@ -59,6 +59,12 @@ class SBStrings {
       'recording': 'Recording...',
       'readyToRecord': 'Ready to record',
       'uploading': 'Uploading...',
+      'uploadQueued': 'Saved. Uploading in the background — ready for your next lecture!',
+      'waitingToRetry': 'waiting to retry',
+      'liveSegment': 'Live segment',
+      'recordingRecovered': 'Recovered an interrupted recording',
+      'micStalled': 'The microphone is not picking up any sound',
+      'recordingError': 'Recording error',
       'chooseUploadOrDiscard': 'Choose: upload or discard',
       'recordingPaused': 'Recording paused',
       'tapRedToStop': 'Tap red to stop',
@@ -96,6 +102,9 @@ class SBStrings {
       'generateSummary': 'Generate summary',
       'generateNotes': 'Generate notes',
       'generatePracticeTest': 'Generate practice test',
+      'generateAll': 'Generate all',
+      'searchTranscripts': 'Search transcripts',
+      'noMatches': 'No matches',
       'status': 'Status',
       'view': 'View',
       'request': 'Request',
@@ -109,6 +118,14 @@ class SBStrings {
       'academicSettingsTitle': 'Academic Settings',
       'selectAcademicLevel': 'Select your academic level',
       'selectTerm': 'Select current term',
+      'recordingQuality': 'Recording quality',
+      'profileStandard': 'Standard (44.1 kHz, 128 kbps)',
+      'profileCompact': 'Compact (22 kHz, 64 kbps)',
+      'profileSpeech': 'Speech (16 kHz, 32 kbps, smallest)',
+      'trimSilence': 'Skip long silences',
+      'trimSilenceHint': 'Shortens pauses while recording; transcript times still match the lecture',
+      'liveTranscribe': 'Transcribe during the lecture',
+      'liveTranscribeHint': 'Uploads and transcribes every 5 minutes while recording (uses mobile data)',
       'saving': 'Saving...',
       'saveChanges': 'Save changes',
     },
@@ -125,6 +142,12 @@ class SBStrings {
       'recording': 'Grabando...',
       'readyToRecord': 'Listo para grabar',
       'uploading': 'Subiendo...',
+      'uploadQueued': 'Guardado. Subiendo en segundo plano: ¡listo para tu próxima clase!',
+      'waitingToRetry': 'esperando para reintentar',
+      'liveSegment': 'Segmento en vivo',
+      'recordingRecovered': 'Se recuperó una grabación interrumpida',
+      'micStalled': 'El micrófono no está captando sonido',
+      'recordingError': 'Error de grabación',
       'chooseUploadOrDiscard': 'Elige: subir o descartar',
       'recordingPaused': 'Grabación en pausa',
       'tapRedToStop': 'Toca el rojo para detener',
@@ -162,6 +185,9 @@ class SBStrings {
       'generateSummary': 'Generar resumen',
       'generateNotes': 'Generar notas',
       'generatePracticeTest': 'Generar prueba práctica',
+      'generateAll': 'Generar todo',
+      'searchTranscripts': 'Buscar en transcripciones',
+      'noMatches': 'Sin resultados',
       'status': 'Estado',
       'view': 'Ver',
       'request': 'Solicitar',
@@ -174,6 +200,14 @@ class SBStrings {
       'academicSettingsTitle': 'Configuración Académica',
       'selectAcademicLevel': 'Selecciona tu nivel académico',
       'selectTerm': 'Selecciona el periodo actual',
+      'recordingQuality': 'Calidad de grabación',
+      'profileStandard': 'Estándar (44.1 kHz, 128 kbps)',
+      'profileCompact': 'Compacta (22 kHz, 64 kbps)',
+      'profileSpeech': 'Voz (16 kHz, 32 kbps, más pequeña)',
+      'trimSilence': 'Omitir silencios largos',
+      'trimSilenceHint': 'Acorta las pausas al grabar; los tiempos de la transcripción siguen coincidiendo con la clase',
+      'liveTranscribe': 'Transcribir durante la clase',
+      'liveTranscribeHint': 'Sube y transcribe cada 5 minutos mientras graba (usa datos móviles)',
       'saving': 'Guardando...',
       'saveChanges': 'Guardar cambios',
     },
@@ -198,6 +232,10 @@ class SBStrings {
   String get recording => _t('recording');
   String get readyToRecord => _t('readyToRecord');
   String get uploading => _t('uploading');
+  String get uploadQueued => _t('uploadQueued');
+  String get waitingToRetry => _t('waitingToRetry');
+  String get recordingRecovered => _t('recordingRecovered');
+  String get micStalled => _t('micStalled');
   String get chooseUploadOrDiscard => _t('chooseUploadOrDiscard');
   String get recordingPaused => _t('recordingPaused');
   String get tapRedToStop => _t('tapRedToStop');
@@ -235,6 +273,9 @@ class SBStrings {
   String get generateSummary => _t('generateSummary');
   String get generateNotes => _t('generateNotes');
   String get generatePracticeTest => _t('generatePracticeTest');
+  String get generateAll => _t('generateAll');
+  String get searchTranscripts => _t('searchTranscripts');
+  String get noMatches => _t('noMatches');
   String get status => _t('status');
   String get view => _t('view');
   String get request => _t('request');
@@ -248,11 +289,21 @@ class SBStrings {
   String get academicSettingsTitle => _t('academicSettingsTitle');
   String get selectAcademicLevel => _t('selectAcademicLevel');
   String get selectTerm => _t('selectTerm');
+  String get recordingQuality => _t('recordingQuality');
+  String get profileStandard => _t('profileStandard');
+  String get profileCompact => _t('profileCompact');
+  String get profileSpeech => _t('profileSpeech');
+  String get trimSilence => _t('trimSilence');
+  String get trimSilenceHint => _t('trimSilenceHint');
+  String get liveTranscribe => _t('liveTranscribe');
+  String get liveTranscribeHint => _t('liveTranscribeHint');
   String get saving => _t('saving');
   String get saveChanges => _t('saveChanges');
 
   // --- dynamic replacements ---
   String uploadingTo(String phase) => '${_t("uploading")} $phase...';
+  String liveSegment(int index) => '${_t("liveSegment")} ${index + 1}';
+  String recordingError(Object? message) => '${_t("recordingError")}: $message';
   String lectureCount(int count) => 'Lectures: $count';
 }
 
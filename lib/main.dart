@@ -27,13 +27,12 @@ import 'package:wakelock_plus/wakelock_plus.dart';
 import 'package:firebase_core/firebase_core.dart';
 import 'package:firebase_auth/firebase_auth.dart' as fb;
 import 'package:firebase_storage/firebase_storage.dart';
-import 'package:path/path.dart' as path;
 import 'package:cloud_firestore/cloud_firestore.dart';
 import 'package:cloud_functions/cloud_functions.dart'; // ✅ NEW
 import 'package:firebase_app_check/firebase_app_check.dart';
 import 'package:google_sign_in/google_sign_in.dart';
-import 'package:http/http.dart' as http;
 import 'package:googleapis/drive/v3.dart' as drive;
+import 'package:http/http.dart' as http;
 import 'package:url_launcher/url_launcher.dart';
 
 // --------------------
@@ -41,8 +40,10 @@ import 'package:url_launcher/url_launcher.dart';
 // --------------------
 import 'firebase_options.dart';
 import 'l10n/strings.dart';
+import 'artifact_cache.dart';
 // Added import for AcademicSettingsScreen at top-level to avoid misplaced directives.
 import 'screens/academic_settings_screen.dart';
+import 'upload_queue.dart';
 
 final ValueNotifier<Locale> appLocale = ValueNotifier(const Locale('en'));
 
@@ -67,6 +68,8 @@ const kBrandAccent = Color(0xFF9B6AF3); // Lighter accent if needed
 
 // Android service channel for foreground recording
 const _recSvc = MethodChannel('study_buddy/recorder_service');
+// Level, segment, finished, stalled and error events from RecorderService
+const _recEvents = EventChannel('study_buddy/recorder_events');
 
 // Small logger to keep output consistent
 void _log(String msg) => debugPrint('[StudyBuddy] $msg');
@@ -114,9 +117,22 @@ Future<void> main() async {
 
   _log('Using Storage bucket: ${FirebaseStorage.instance.bucket}');
 
+  // --dart-define=STORAGE_EMULATOR=host:port routes Storage (including the
+  // upload queue's resumable uploads) to the emulator.
+  const storageEmulator = String.fromEnvironment('STORAGE_EMULATOR');
+  if (storageEmulator.isNotEmpty) {
+    final i = storageEmulator.lastIndexOf(':');
+    await UploadQueue.instance.useStorageEmulator(
+        storageEmulator.substring(0, i), int.parse(storageEmulator.substring(i + 1)));
+    _log('Using Storage emulator at $storageEmulator');
+  }
+
   // Initialize global FirebaseFunctions handle after Firebase is ready
   functions = FirebaseFunctions.instanceFor(region: 'us-central1');
 
+  // Resume any uploads left over from a previous run
+  unawaited(UploadQueue.instance.start());
+
   runApp(const MyApp());
 }
 
@@ -417,13 +433,15 @@ class _RecorderPageState extends State<RecorderPage> {
   Future<List<String>> _fetchClassNames() async {
     final uid = fb.FirebaseAuth.instance.currentUser?.uid;
     if (uid == null) return [];
+    // One summary doc per class (maintained server-side), not every recording.
     final snap = await FirebaseFirestore.instance
         .collection('users')
         .doc(uid)
-        .collection('recordings')
+        .collection('classes')
+        .orderBy('className')
         .get();
     final classes = snap.docs
-        .map((d) => (d['className'] ?? '').toString().trim())
+        .map((d) => (d.data()['className'] ?? '').toString().trim())
         .where((s) => s.isNotEmpty)
         .toSet()
         .toList()
@@ -446,10 +464,37 @@ class _RecorderPageState extends State<RecorderPage> {
   // Re-enable service by default (baseline behavior). Set to true only for debugging.
   static const bool _debugForcePluginRecorder = false;
 
+  // Live mode (Android service, API 26+): rotate to a new segment file this
+  // often and upload each finished one while recording continues, so the
+  // server can transcribe during the lecture. 0 turns it off.
+  static const int _liveSegmentSeconds = 300;
+  String? _liveRecordingId;
+  bool _liveSegmented = false;
+  final Map<int, String> _liveSegments = {}; // index -> local path
+  // Recovered manifests not offered yet, oldest first
+  final List<Map<String, dynamic>> _recoveredPending = [];
+
+  // RecorderService events (Android): input level for the meter, encoded
+  // time for the clock, and start/finish signals instead of file polling.
+  StreamSubscription<dynamic>? _recEventsSub;
+  double _level = 0;
+  Completer<bool>? _recorderStarted;
+  Completer<void>? _recorderFinished;
+  // Encoding profile of the current recording (academicSettings
+  // recordingProfile); the plugin fallback uses the same rates.
+  static const Map<String, (int, int)> _profileRates = {
+    'standard': (44100, 128000),
+    'compact': (22050, 64000),
+    'speech': (16000, 32000),
+  };
+  String _recordingProfile = 'standard';
+  bool _trimSilence = false; // academicSettings trimSilence (service only)
+  // True while/after the Android service recorded the current file; it then
+  // keeps a manifest next to it (see RecorderService.writeManifest).
+  bool _serviceRecording = false;
+
   // Upload state
   bool _isUploading = false;
-  double? _uploadProgress; // 0..1 or null for indeterminate
-  String? _uploadPhase; // 'Firebase' | 'Google Drive'
 
   // Google Sign-In (kept here so Drive calls can reuse silently)
   final GoogleSignIn _gsi = GoogleSignIn(
@@ -485,11 +530,155 @@ class _RecorderPageState extends State<RecorderPage> {
     super.initState();
     _classCtl.addListener(_recomputeReady);
     _topicCtl.addListener(_recomputeReady);
+    if (Platform.isAndroid) {
+      _recEventsSub = _recEvents.receiveBroadcastStream().listen(
+        _onRecorderEvent,
+        onError: (Object e) => _log('recorder events error: $e'),
+      );
+      unawaited(_recoverInterruptedRecording());
+    }
+  }
+
+  void _onRecorderEvent(dynamic raw) {
+    if (raw is! Map) return;
+    final e = Map<String, dynamic>.from(raw);
+    switch (e['type']) {
+      case 'level':
+        final started = _recorderStarted;
+        if (started != null && !started.isCompleted) started.complete(true);
+        if (!mounted || !_serviceRecording || !_isRecording) return;
+        setState(() {
+          _level = (e['amplitude'] as num?)?.toDouble() ?? 0;
+          // Encoded time is the recording's length; with silence trimming
+          // it runs behind the lecture, so the ticker keeps the clock then.
+          if (!_trimSilence) {
+            _elapsedSeconds = ((e['encodedMs'] as num?)?.toInt() ?? 0) ~/ 1000;
+          }
+        });
+      case 'segment':
+        unawaited(_queueLiveSegment(e));
+      case 'finished':
+        final finished = _recorderFinished;
+        if (finished != null && !finished.isCompleted) finished.complete();
+      case 'stalled':
+        _log('Recorder stalled: mic delivers only silence');
+        if (mounted && _isRecording) {
+          ScaffoldMessenger.of(context).showSnackBar(
+            SnackBar(content: Text(SBStrings.of(context).micStalled)),
+          );
+        }
+      case 'error':
+        _log('Recorder error ${e['code']}: ${e['message']}');
+        final started = _recorderStarted;
+        if (started != null && !started.isCompleted) {
+          started.complete(false);
+        } else if (mounted) {
+          ScaffoldMessenger.of(context).showSnackBar(
+            SnackBar(content: Text(SBStrings.of(context).recordingError(e['message']))),
+          );
+        }
+    }
+  }
+
+  /// Queue a closed live segment for upload (once per index).
+  Future<void> _queueLiveSegment(Map<String, dynamic> seg) async {
+    final uid = fb.FirebaseAuth.instance.currentUser?.uid;
+    final recId = _liveRecordingId;
+    if (!_liveSegmented || uid == null || recId == null) return;
+    final index = (seg['index'] as num).toInt();
+    if (_liveSegments.containsKey(index)) return;
+    final segPath = seg['path'] as String;
+    _liveSegments[index] = segPath;
+    await UploadQueue.instance.enqueueSegment(
+      file: File(segPath),
+      uid: uid,
+      recordingDocId: recId,
+      index: index,
+      durationMs: (seg['durationMs'] as num?)?.toInt() ?? 0,
+    );
+  }
+
+  /// A recording cut off by a crash or kill is remuxed by the service and
+  /// offered again for upload or discard (class/topic must be re-entered).
+  /// Recordings the service still has a manifest for (interrupted, or
+  /// stopped but never queued), oldest first. They are offered one at a
+  /// time, newest first; each manifest stays on disk until its recording is
+  /// queued or discarded, so the rest are offered next (or on a later launch).
+  Future<void> _recoverInterruptedRecording() async {
+    try {
+      final dirs = [
+        (await getTemporaryDirectory()).path,
+        (await UploadQueue.instance.recordingDir()).path,
+      ];
+      final res = await _recSvc.invokeMethod('recoverRecordings', {'dirs': dirs});
+      _recoveredPending
+        ..clear()
+        ..addAll([
+          for (final m in (res as List? ?? const [])) Map<String, dynamic>.from(m as Map)
+        ]);
+      await _offerNextRecovered();
+    } catch (e) {
+      _log('recoverRecordings failed: $e');
+    }
+  }
+
+  /// Show the newest recording still waiting from recovery, if the recorder
+  /// screen is free.
+  Future<void> _offerNextRecovered() async {
+    while (_recoveredPending.isNotEmpty) {
+      if (!mounted || _isRecording || _recordingComplete) return;
+      final m = _recoveredPending.removeLast();
+      final segments = [
+        for (final raw in (m['segments'] as List? ?? const []))
+          Map<String, dynamic>.from(raw as Map)
+      ];
+      if (segments.isEmpty) {
+        await _deleteRecorderManifest(m['path'] as String);
+        continue;
+      }
+      final totalMs = segments.fold<int>(0, (a, s) => a + (s['durationMs'] as num).toInt());
+      final segmented = m['segmented'] == true && m['tag'] != null;
+      final uid = fb.FirebaseAuth.instance.currentUser?.uid;
+      setState(() {
+        _filePath = m['path'] as String;
+        _serviceRecording = true;
+        _recordingComplete = true;
+        _elapsedSeconds = totalMs ~/ 1000;
+        _liveSegmented = segmented;
+        _liveRecordingId = segmented ? m['tag'] as String : null;
+        _liveSegments
+          ..clear()
+          ..addAll({
+            if (segmented)
+              for (final s in segments) (s['index'] as num).toInt(): s['path'] as String
+          });
+      });
+      if (segmented && uid != null) {
+        for (final s in segments) {
+          await UploadQueue.instance.enqueueSegment(
+            file: File(s['path'] as String),
+            uid: uid,
+            recordingDocId: _liveRecordingId!,
+            index: (s['index'] as num).toInt(),
+            durationMs: (s['durationMs'] as num).toInt(),
+          );
+        }
+      }
+      _log('Recovered recording ${m['path']} (${segments.length} segment(s), ${totalMs}ms, '
+          '${_recoveredPending.length} more waiting)');
+      if (mounted) {
+        ScaffoldMessenger.of(context).showSnackBar(
+          SnackBar(content: Text(SBStrings.of(context).recordingRecovered)),
+        );
+      }
+      return;
+    }
   }
 
   @override
   void dispose() {
     _ticker?.cancel();
+    _recEventsSub?.cancel();
     _classCtl.dispose();
     _topicCtl.dispose();
     super.dispose();
@@ -527,30 +716,6 @@ class _RecorderPageState extends State<RecorderPage> {
     final rand = Random().nextInt(9999).toString().padLeft(4, '0');
     return '${c}_${t}_${y}-${m}-${d}_${hh}-${mm}-${ss}_$rand.m4a';
   }
-  // Helper to upload to Firebase Storage with retry on object-not-found, unauthorized, or canceled
-  Future<TaskSnapshot> _uploadToStorageWithRetry(Reference ref, File file,
-      {int maxRetries = 2}) async {
-    int attempt = 0;
-    while (true) {
-      attempt++;
-      try {
-        return await ref.putFile(
-          file,
-          SettableMetadata(contentType: 'audio/mp4'),
-        );
-      } on FirebaseException catch (e) {
-        // Retry on specific error codes
-        final retryableCodes = ['object-not-found', 'unauthorized', 'canceled'];
-        if (retryableCodes.contains(e.code) && attempt <= maxRetries) {
-          _log('Upload retry due to "${e.code}" (attempt $attempt)...');
-          await Future.delayed(const Duration(seconds: 1));
-          continue;
-        }
-        rethrow;
-      }
-    }
-  }
-
   Future<void> _logout() async {
     try {
       await fb.FirebaseAuth.instance.signOut();
@@ -597,6 +762,31 @@ class _RecorderPageState extends State<RecorderPage> {
     return false;
   }
 
+  /// The user's encoding profile, silence trimming and live transcription
+  /// choices; any failure keeps the defaults ("standard", both off).
+  Future<({String profile, bool trimSilence, bool liveTranscribe})> _loadRecorderSettings(String? uid) async {
+    const defaults = (profile: 'standard', trimSilence: false, liveTranscribe: false);
+    if (uid == null) return defaults;
+    try {
+      final snap = await FirebaseFirestore.instance
+          .collection('users')
+          .doc(uid)
+          .collection('academicSettings')
+          .doc('current')
+          .get()
+          .timeout(const Duration(seconds: 2));
+      final data = snap.data() ?? const {};
+      final profile = data['recordingProfile'];
+      return (
+        profile: _profileRates.containsKey(profile) ? profile as String : 'standard',
+        trimSilence: data['trimSilence'] == true,
+        liveTranscribe: data['liveTranscribe'] == true,
+      );
+    } catch (_) {
+      return defaults;
+    }
+  }
+
   Future<void> _startRecording() async {
     _log('Record button pressed');
     final perm = await _recorder.hasPermission();
@@ -610,13 +800,30 @@ class _RecorderPageState extends State<RecorderPage> {
       return;
     }
 
-    final tmp = await getTemporaryDirectory();
+    final uid = fb.FirebaseAuth.instance.currentUser?.uid;
+    final settings = await _loadRecorderSettings(uid);
+    // Live transcription is opt-in: it uploads and bills every segment
+    final live = Platform.isAndroid &&
+        !_debugForcePluginRecorder &&
+        settings.liveTranscribe &&
+        _liveSegmentSeconds > 0 &&
+        uid != null;
+    // Live segments are queued in place, so record straight into the queue dir
+    final dir = live
+        ? await UploadQueue.instance.recordingDir()
+        : await getTemporaryDirectory();
     final fname = _fileNameFormatted(
       className: _classCtl.text,
       topic: _topicCtl.text,
       when: DateTime.now(),
     );
-    final path = '${tmp.path}/$fname';
+    final path = '${dir.path}/$fname';
+    _liveSegmented = false;
+    _serviceRecording = false;
+    _liveSegments.clear();
+    _liveRecordingId = live ? UploadQueue.newRecordingId(uid) : null;
+    _recordingProfile = settings.profile;
+    _trimSilence = settings.trimSilence;
 
     await WakelockPlus.enable(); // keep screen on while recording
 
@@ -626,12 +833,29 @@ class _RecorderPageState extends State<RecorderPage> {
     if (Platform.isAndroid && !_debugForcePluginRecorder) {
       try {
         _log('Trying to start Android foreground service...');
-        final result =
-        await _recSvc.invokeMethod('startService', {'path': path});
+        _recorderStarted = Completer<bool>();
+        final result = await _recSvc.invokeMethod('startService', {
+          'path': path,
+          if (live) 'segmentSeconds': _liveSegmentSeconds,
+          if (live) 'tag': _liveRecordingId,
+          'profile': _recordingProfile,
+          'trimSilence': _trimSilence,
+        });
         _log('startService result: $result');
         usedService = true;
-        started = await _confirmFileAppearsAndGrows(path);
-        _log('Service start verified=$started');
+        final info = result is Map ? result : const {};
+        _liveSegmented = info['segmented'] == true;
+        // The first level event (or an error event) settles this at once;
+        // without events, fall back to watching the partial file grow.
+        final verdict = _recorderStarted!;
+        started = await verdict.future
+            .timeout(const Duration(seconds: 3), onTimeout: () => false);
+        if (!started && !verdict.isCompleted) {
+          started = await _confirmFileAppearsAndGrows(
+              (info['probePath'] as String?) ?? path);
+        }
+        _serviceRecording = started;
+        _log('Service start verified=$started live=$_liveSegmented');
       } catch (e) {
         _log('startService failed: $e');
         usedService = false;
@@ -642,12 +866,15 @@ class _RecorderPageState extends State<RecorderPage> {
     }
 
     if (!started) {
+      _liveSegmented = false;
+      _serviceRecording = false;
       _log('Falling back to record plugin start');
       try {
+        final (sampleRate, bitRate) = _profileRates[_recordingProfile]!;
         final config = RecordConfig(
           encoder: AudioEncoder.aacLc,
-          bitRate: 128000,
-          sampleRate: 44100,
+          bitRate: bitRate,
+          sampleRate: sampleRate,
           numChannels: 1, // force mono for broad compatibility
         );
         await _recorder.start(config, path: path);
@@ -686,12 +913,32 @@ class _RecorderPageState extends State<RecorderPage> {
 
     _log('Recording started. mode=${usedService ? 'service' : 'plugin'} path=$path');
 
+    // Service recordings take the clock from level events
     _ticker?.cancel();
-    _ticker = Timer.periodic(const Duration(seconds: 1), (_) {
-      if (mounted && _isRecording && !_isPaused) {
-        setState(() => _elapsedSeconds += 1);
+    if (!_serviceRecording || _trimSilence) {
+      _ticker = Timer.periodic(const Duration(seconds: 1), (_) {
+        if (mounted && _isRecording && !_isPaused) {
+          setState(() => _elapsedSeconds += 1);
+        }
+      });
+    }
+  }
+
+  /// Catch up on segments the service closed (in case an event was missed,
+  /// e.g. while no listener was attached). Returns whether the service has
+  /// closed its last segment.
+  Future<bool> _collectLiveSegments() async {
+    try {
+      final res = await _recSvc.invokeMethod('completedSegments');
+      final m = Map<String, dynamic>.from(res as Map);
+      for (final raw in (m['segments'] as List? ?? const [])) {
+        await _queueLiveSegment(Map<String, dynamic>.from(raw as Map));
       }
-    });
+      return m['finished'] == true;
+    } catch (e) {
+      _log('completedSegments failed: $e');
+      return false;
+    }
   }
 
   Future<void> _pauseOrResume() async {
@@ -733,8 +980,26 @@ class _RecorderPageState extends State<RecorderPage> {
       String? path = _filePath;
       if (Platform.isAndroid) {
         try {
+          _recorderFinished = Completer<void>();
           await _recSvc.invokeMethod('stopService');
           _log('Service stopped');
+          if (_serviceRecording) {
+            // STOP is delivered asynchronously; the "finished" event says
+            // the last .m4a is written. It may have been sent before this
+            // completer existed (e.g. after a recorder error), so ask first.
+            if (await _collectLiveSegments() && !_recorderFinished!.isCompleted) {
+              _recorderFinished!.complete();
+            }
+            // Poll only if the event never arrives.
+            await _recorderFinished!.future
+                .timeout(const Duration(seconds: 60), onTimeout: () {});
+            var done = await _collectLiveSegments() || _recorderFinished!.isCompleted;
+            for (var i = 0; i < 40 && !done; i++) {
+              await Future.delayed(const Duration(milliseconds: 250));
+              done = await _collectLiveSegments();
+            }
+            _log('Service recording closed (${_liveSegments.length} live segment(s))');
+          }
         } catch (e) {
           _log('Service stop failed: $e -> trying plugin stop');
           try {
@@ -765,7 +1030,8 @@ class _RecorderPageState extends State<RecorderPage> {
     if (_filePath == null) return;
 
     final fileOnDisk = File(_filePath!);
-    if (!await fileOnDisk.exists()) {
+    final live = _liveSegmented && _liveSegments.isNotEmpty;
+    if (!live && !await fileOnDisk.exists()) {
       _log('Upload requested but file missing: $_filePath');
       ScaffoldMessenger.of(context).showSnackBar(
         const SnackBar(content: Text('File missing')),
@@ -773,199 +1039,130 @@ class _RecorderPageState extends State<RecorderPage> {
       return;
     }
 
-    setState(() {
-      _isUploading = true;
-      _uploadProgress = 0;
-      _uploadPhase = 'Firebase';
-    });
-
-    // Ensure Firebase is initialized and user is authenticated
-    if (Firebase.apps.isEmpty) {
-      await Firebase.initializeApp(options: DefaultFirebaseOptions.currentPlatform);
-    }
     final user = fb.FirebaseAuth.instance.currentUser;
     if (user == null) {
       _log('No authenticated user. Aborting upload.');
       return;
     }
-    final uid = user.uid;
 
-    final createdAt = DateTime.now();
-    final filename = path.basename(_filePath!);
+    setState(() => _isUploading = true);
 
-    // ✅ Ensure the file is fully finalized before ANY upload
-    try {
-      await _ensureFinalizedRecording(fileOnDisk);
-    } catch (e) {
-      _log('Recording not ready for upload: $e');
-      if (mounted) {
-        setState(() {
-          _isUploading = false;
-          _uploadProgress = null;
-          _uploadPhase = null;
+    // Live recording: join the (already uploading) segments on-device for
+    // Drive; the server joins its copies for Storage.
+    if (live) {
+      try {
+        final ordered = _liveSegments.keys.toList()..sort();
+        await _recSvc.invokeMethod('concatSegments', {
+          'inputs': [for (final i in ordered) _liveSegments[i]!],
+          'output': _filePath,
         });
-        ScaffoldMessenger.of(context).showSnackBar(
-          SnackBar(content: Text('Recording not usable: $e')),
-        );
+      } catch (e) {
+        _log('concatSegments failed: $e');
+        if (mounted) {
+          setState(() => _isUploading = false);
+          ScaffoldMessenger.of(context).showSnackBar(
+            SnackBar(content: Text('Recording not usable: $e')),
+          );
+        }
+        return;
       }
-      return;
     }
 
-    // Upload to Firebase Storage using the new helper
+    // ✅ Ensure the file is fully finalized before it is queued
     try {
-      await uploadRecording(fileOnDisk, uid);
+      await _ensureFinalizedRecording(fileOnDisk);
     } catch (e) {
-      _log('Firebase upload failed for path=recordings/$uid/$filename: $e');
+      _log('Recording not ready for upload: $e');
       if (mounted) {
+        setState(() => _isUploading = false);
         ScaffoldMessenger.of(context).showSnackBar(
-          SnackBar(content: Text('Firebase upload failed: $e')),
+          SnackBar(content: Text('Recording not usable: $e')),
         );
       }
-      setState(() {
-        _isUploading = false;
-        _uploadProgress = null;
-        _uploadPhase = null;
-      });
       return;
     }
 
-    // Now Google Drive — upload the original .m4a
-    setState(() {
-      _uploadPhase = 'Google Drive';
-      _uploadProgress = null; // indeterminate for Drive
-    });
-
-    // Ensure file length is stable (Android MediaRecorder finalization safety)
-    await _waitForStableFileLength(fileOnDisk);
+    // Silence the service trimmed, so transcript times can be mapped back
+    final manifest = _serviceRecording ? await _readRecorderManifest(_filePath!) : null;
+    final timeMap = _timeMapFrom(manifest);
 
-    // Upload original .m4a to Drive (no conversion)
-    File driveFile = fileOnDisk;
-    String driveFilename = filename;
-
-    String? driveId;
+    // Hand off to the durable queue: Storage, metadata and Drive continue in
+    // the background (and after a restart) while the user records again.
     try {
-      driveId = await _uploadToGoogleDriveWithFolders(
-        fileOnDisk: driveFile,
-        filename: driveFilename,
+      await UploadQueue.instance.enqueue(
+        file: fileOnDisk,
+        uid: user.uid,
         className: _classCtl.text,
         topic: _topicCtl.text,
-        createdAt: createdAt,
+        createdAt: DateTime.now(),
+        durationSeconds: _elapsedSeconds,
+        recordingDocId: live ? _liveRecordingId : null,
+        liveSegments: live ? _liveSegments.length : 0,
+        encodingProfile: _recordingProfile,
+        timeMap: timeMap,
       );
-      _log('Drive upload ok. fileId=$driveId');
     } catch (e) {
-      _log('Drive upload failed: $e');
-      if (mounted) {
-        ScaffoldMessenger.of(context).showSnackBar(
-          SnackBar(content: Text('Drive upload failed: $e')),
-        );
-      }
-    }
-
-    // Firestore metadata (kept as before, with additive fields)
-    final durationSeconds = _elapsedSeconds;
-    final fileLen = await fileOnDisk.length();
-    try {
-      await _writeFirestoreMetadata(
-        filename: filename,
-        className: _classCtl.text,
-        topic: _topicCtl.text,
-        createdAt: createdAt,
-        durationSeconds: durationSeconds,
-        storageUrl: "", // Storage URL retrieval omitted in new helper; add if needed
-        storagePath: "recordings/$uid/$filename",
-        driveFileId: driveId,
-        sizeBytes: fileLen,
-        mimeType: 'audio/mp4',
-      );
-      _log('Firestore metadata written');
-    } on FirebaseException catch (e) {
-      _log('Firestore write failed (${e.code}): ${e.message}');
+      _log('Queueing upload failed: $e');
       if (mounted) {
+        setState(() => _isUploading = false);
         ScaffoldMessenger.of(context).showSnackBar(
-          SnackBar(content: Text('Firestore write failed: ${e.message}')),
+          SnackBar(content: Text('Upload failed: $e')),
         );
       }
+      return;
     }
 
+    await _deleteRecorderManifest(_filePath!);
     if (mounted) {
+      final strings = SBStrings.of(context);
       setState(() {
         _isUploading = false;
-        _uploadProgress = null;
-        _uploadPhase = null;
+        _filePath = null;
+        _recordingComplete = false;
+        _elapsedSeconds = 0;
+        // The queued job now owns the live segments
+        _liveSegmented = false;
+        _serviceRecording = false;
+        _liveSegments.clear();
+        _liveRecordingId = null;
       });
       // Clear class/topic inputs and reset selected class state
       _classCtl.clear();
       _topicCtl.clear();
       _selectedExistingClass = false;
       ScaffoldMessenger.of(context).showSnackBar(
-        const SnackBar(content: Text('Upload complete. Ready for your next lecture!')),
+        SnackBar(content: Text(strings.uploadQueued)),
       );
     }
-
-    // Cleanup local file
-    await _safeDeleteLocal(fileOnDisk);
-    _log('Local file deleted');
-
-    // Reset UI to fresh state
-    if (mounted) {
-      setState(() {
-        _filePath = null;
-        _recordingComplete = false;
-        _elapsedSeconds = 0;
-      });
-    }
-  }
-
-  Future<void> uploadRecording(File file, String uid) async {
-    // Ensure Firebase initialized and user authenticated
-    if (Firebase.apps.isEmpty) {
-      await Firebase.initializeApp(options: DefaultFirebaseOptions.currentPlatform);
-    }
-    final user = fb.FirebaseAuth.instance.currentUser;
-    if (user == null) throw Exception('No authenticated user for upload');
-
-    // We no longer read or use academic level/term for building the storage path.
-    // This restores the original upload structure where files are stored directly
-    // under recordings/{uid}/{filename}. Reading academic settings can be added
-    // separately without influencing the storage path.
-
-    final fileName = path.basename(file.path);
-    // Upload under recordings/{uid}/{fileName} with no intermediate level/term.
-    final storagePath = "recordings/$uid/$fileName";
-    _log("Uploading to Firebase Storage path=$storagePath");
-
-    final storageRef = FirebaseStorage.instance.ref().child(storagePath);
-    await storageRef.putFile(
-      file,
-      SettableMetadata(contentType: 'audio/mp4'),
-    );
-
-    // Save metadata to Firestore. Use className and topic if available via
-    // outer context (e.g. passed in from the recording page) instead of level/term.
-    await FirebaseFirestore.instance
-        .collection('users')
-        .doc(uid)
-        .collection('recordings')
-        .add({
-      'filename': fileName,
-      'storagePath': storagePath,
-      'createdAt': FieldValue.serverTimestamp(),
-      'uid': uid,
-    });
+    await _offerNextRecovered();
   }
 
   Future<void> _discardRecording() async {
     if (_filePath != null) {
       await _safeDeleteLocal(File(_filePath!));
+      await _deleteRecorderManifest(_filePath!);
       _log('Recording discarded & local file removed');
     }
+    final recId = _liveRecordingId;
+    if (recId != null) {
+      // The queue also has the server remove segments that already landed
+      await UploadQueue.instance.cancelLive(recId);
+      for (final path in _liveSegments.values) {
+        await _safeDeleteLocal(File(path));
+      }
+    }
     if (mounted) {
       setState(() {
         _filePath = null;
         _recordingComplete = false;
         _elapsedSeconds = 0;
+        _liveSegmented = false;
+        _serviceRecording = false;
+        _liveSegments.clear();
+        _liveRecordingId = null;
       });
     }
+    await _offerNextRecovered();
   }
 
   Future<void> _safeDeleteLocal(File f) async {
@@ -976,7 +1173,12 @@ class _RecorderPageState extends State<RecorderPage> {
 
   // ✅ NEW: finalize + minimum-size guard to prevent empty/corrupt uploads
   Future<void> _ensureFinalizedRecording(File f) async {
-    final len = await _waitForStableFileLength(f);
+    // The service records the close of every file in its manifest, so there
+    // is nothing to wait for; only the plugin path needs to poll.
+    final manifest = _serviceRecording ? await _readRecorderManifest(f.path) : null;
+    final len = manifest?['finished'] == true && await f.exists()
+        ? await f.length()
+        : await _waitForStableFileLength(f);
     _log('Finalized file length before upload: $len bytes');
     if (len < 4096) {
       // ~4 KB guard to catch empty/corrupt recordings
@@ -984,57 +1186,42 @@ class _RecorderPageState extends State<RecorderPage> {
     }
   }
 
-  Future<void> _writeFirestoreMetadata({
-    required String filename,
-    required String className,
-    required String topic,
-    required DateTime createdAt,
-    required int durationSeconds,
-    required String storageUrl,
-    required String storagePath,
-    required String? driveFileId,
-    int? sizeBytes,            // NEW optional
-    String? mimeType,          // NEW optional
-  }) async {
-    final uid = fb.FirebaseAuth.instance.currentUser?.uid;
-    final meta = <String, dynamic>{
-      'filename': filename,
-      'className': className,
-      'topic': topic,
-      'createdAt': createdAt.toIso8601String(),
-      'durationSeconds': durationSeconds,
-      'storageUrl': storageUrl,
-      'storagePath': storagePath,
-      'driveFileId': driveFileId,
-      'uid': uid,
-
-      // Phase-2 additive fields (non-breaking)
-      'transcriptStatus': 'none',
-      'transcribeRequested': false,
-      'transcriptDriveFileId': null,
-      'subtitleDriveFileIds': <String>[],
-      'summaryStatus': 'none',
-      'notesStatus': 'none',
-      'quizStatus': 'none',
-    };
-    if (sizeBytes != null) meta['sizeBytes'] = sizeBytes;
-    if (mimeType != null) meta['mimeType'] = mimeType;
-    if (uid == null) throw 'No authenticated user';
-    await FirebaseFirestore.instance
-        .collection('users')
-        .doc(uid)
-        .collection('recordings')
-        .add(meta);
+  // -------- Local file helpers --------
+
+  /// Cuts of all segments in the uploaded file's timeline (segments are
+  /// joined in order, so each one's cuts shift by the length before it).
+  List<Map<String, int>> _timeMapFrom(Map<String, dynamic>? manifest) {
+    final out = <Map<String, int>>[];
+    final segments = [
+      for (final raw in (manifest?['segments'] as List? ?? const []))
+        Map<String, dynamic>.from(raw as Map)
+    ]..sort((a, b) => (a['index'] as num).compareTo(b['index'] as num));
+    var offsetMs = 0;
+    for (final seg in segments) {
+      for (final raw in (seg['cuts'] as List? ?? const [])) {
+        final cut = Map<String, dynamic>.from(raw as Map);
+        out.add({
+          'atMs': offsetMs + (cut['atMs'] as num).toInt(),
+          'removedMs': (cut['removedMs'] as num).toInt(),
+        });
+      }
+      offsetMs += (seg['durationMs'] as num).toInt();
+    }
+    return out;
   }
 
-  // -------- Google Drive helpers --------
+  Future<void> _deleteRecorderManifest(String path) => _safeDeleteLocal(
+      File('${path.replaceAll(RegExp(r'\.m4a$'), '')}.manifest.json'));
 
-  // Small helper to compute semester string safely
-  String _semesterFor(DateTime dt) {
-    final m = dt.month;
-    if (m >= 1 && m <= 5) return 'Spring';
-    if (m >= 6 && m <= 8) return 'Summer';
-    return 'Fall';
+  /// RecorderService's "<base>.manifest.json" for [path], if present.
+  Future<Map<String, dynamic>?> _readRecorderManifest(String path) async {
+    final f = File('${path.replaceAll(RegExp(r'\.m4a$'), '')}.manifest.json');
+    try {
+      if (!await f.exists()) return null;
+      return Map<String, dynamic>.from(jsonDecode(await f.readAsString()) as Map);
+    } catch (_) {
+      return null;
+    }
   }
 
   Future<int> _waitForStableFileLength(
@@ -1068,90 +1255,6 @@ class _RecorderPageState extends State<RecorderPage> {
     return await f.length();
   }
 
-  Future<String?> _uploadToGoogleDriveWithFolders({
-    required File fileOnDisk,
-    required String filename,
-    required String className,
-    required String topic,
-    required DateTime createdAt,
-  }) async {
-    // Sign in (silently first)
-    GoogleSignInAccount? acc = await _gsi.signInSilently();
-    acc ??= await _gsi.signIn();
-    if (acc == null) throw 'Google Sign-In failed';
-
-    final authHeaders = await acc.authHeaders;
-    final httpClient = _GoogleAuthClient(authHeaders);
-
-    try {
-      final api = drive.DriveApi(httpClient);
-
-      // Build/ensure folder chain:
-      // Study Buddy / {Year}_{Semester} / {Class Name} / {Lecture Topic}
-      final rootFolderId =
-      await _getOrCreateFolder(api, 'Study Buddy', parentId: 'root');
-      final sem = _semesterFor(createdAt);
-      final yearSem = '${createdAt.year}_$sem';
-      final yearFolderId =
-      await _getOrCreateFolder(api, yearSem, parentId: rootFolderId);
-      final classFolderId =
-      await _getOrCreateFolder(api, className, parentId: yearFolderId);
-      final topicFolderId =
-      await _getOrCreateFolder(api, topic, parentId: classFolderId);
-
-      // Ensure filesystem has fully flushed/closed the file & stream exact bytes
-      final finalLength = await fileOnDisk.length();
-      final stream = fileOnDisk.openRead(0, finalLength);
-
-      final meta = drive.File()
-        ..name = filename
-        ..parents = [topicFolderId];
-      if (filename.toLowerCase().endsWith('.mp3')) {
-        meta.mimeType = 'audio/mpeg';
-      } else if (filename.toLowerCase().endsWith('.m4a')) {
-        meta.mimeType = 'audio/mp4';
-      }
-
-      // Resumable upload — reliable for large recordings
-      final media = drive.Media(stream, finalLength);
-      final uploaded = await api.files.create(
-        meta,
-        uploadMedia: media,
-        uploadOptions: drive.ResumableUploadOptions(),
-      );
-
-      return uploaded.id;
-    } finally {
-      httpClient.close(); // close only after the upload is done
-    }
-  }
-
-  Future<String> _getOrCreateFolder(
-      drive.DriveApi api,
-      String name, {
-        required String parentId,
-      }) async {
-    final q =
-        "mimeType='application/vnd.google-apps.folder' and name='${_escapeForDriveQuery(name)}' and '$parentId' in parents and trashed=false";
-    final res = await api.files.list(
-      q: q,
-      $fields: 'files(id,name)',
-      spaces: 'drive',
-      pageSize: 1,
-    );
-    if (res.files != null && res.files!.isNotEmpty) {
-      return res.files!.first.id!;
-    }
-    final folderMeta = drive.File()
-      ..name = name
-      ..mimeType = 'application/vnd.google-apps.folder'
-      ..parents = [parentId];
-    final created = await api.files.create(folderMeta);
-    return created.id!;
-  }
-
-  String _escapeForDriveQuery(String name) => name.replaceAll("'", r"\'");
-
   // ---------------- UI ----------------
   @override
   Widget build(BuildContext context) {
@@ -1214,6 +1317,17 @@ class _RecorderPageState extends State<RecorderPage> {
                             ),
                             textAlign: TextAlign.center,
                           ),
+                          if (_isRecording && _serviceRecording && !_isPaused)
+                            Padding(
+                              padding: const EdgeInsets.only(top: 6),
+                              child: SizedBox(
+                                width: 120,
+                                child: LinearProgressIndicator(
+                                  value: _level.clamp(0.0, 1.0),
+                                  minHeight: 4,
+                                ),
+                              ),
+                            ),
                         ],
                       ),
                       const SizedBox(height: 12),
@@ -1342,30 +1456,23 @@ class _RecorderPageState extends State<RecorderPage> {
 
                       const SizedBox(height: 14),
 
-                      // Upload progress
-                      if (_isUploading) ...[
+                      // Finalizing before the recording is queued
+                      if (_isUploading)
                         Row(
                           mainAxisAlignment: MainAxisAlignment.center,
                           children: [
-                            if (_uploadProgress == null)
-                              const SizedBox(
-                                width: 18,
-                                height: 18,
-                                child: CircularProgressIndicator(strokeWidth: 2),
-                              ),
-                            const SizedBox(width: 8),
-                            Text(
-                              _uploadPhase == null
-                                  ? strings.uploading
-                                  : strings.uploadingTo(_uploadPhase!),
+                            const SizedBox(
+                              width: 18,
+                              height: 18,
+                              child: CircularProgressIndicator(strokeWidth: 2),
                             ),
+                            const SizedBox(width: 8),
+                            Text(strings.uploading),
                           ],
                         ),
-                        const SizedBox(height: 8),
-                        if (_uploadProgress != null)
-                          LinearProgressIndicator(
-                              value: _uploadProgress, minHeight: 6),
-                      ],
+
+                      // Background uploads still in flight
+                      const _UploadQueueStatus(),
 
                       // Upload / Discard
                       if (_recordingComplete) ...[
@@ -1412,6 +1519,52 @@ class _RecorderPageState extends State<RecorderPage> {
   }
 }
 
+/// Compact list of queued uploads (progress, or when the next retry is).
+class _UploadQueueStatus extends StatelessWidget {
+  const _UploadQueueStatus();
+
+  static String _rate(double bytesPerSecond) => bytesPerSecond >= 1024 * 1024
+      ? '${(bytesPerSecond / (1024 * 1024)).toStringAsFixed(1)} MB/s'
+      : '${(bytesPerSecond / 1024).toStringAsFixed(0)} KB/s';
+
+  @override
+  Widget build(BuildContext context) {
+    final strings = SBStrings.of(context);
+    return AnimatedBuilder(
+      animation: UploadQueue.instance,
+      builder: (context, _) {
+        final jobs = UploadQueue.instance.jobs;
+        if (jobs.isEmpty) return const SizedBox.shrink();
+        return Column(
+          children: [
+            for (final job in jobs)
+              Padding(
+                padding: const EdgeInsets.symmetric(vertical: 4),
+                child: Column(
+                  crossAxisAlignment: CrossAxisAlignment.start,
+                  children: [
+                    Text(
+                      '${job.isSegment ? strings.liveSegment(job.segmentIndex) : '${job.className} — ${job.topic}'}: '
+                      '${job.phase != null ? strings.uploadingTo(job.phase!) : strings.waitingToRetry}'
+                      '${job.phase != null && job.storageBytesPerSecond != null ? ' · ${_rate(job.storageBytesPerSecond!)}' : ''}',
+                      maxLines: 1,
+                      overflow: TextOverflow.ellipsis,
+                    ),
+                    const SizedBox(height: 4),
+                    LinearProgressIndicator(
+                      value: job.phase == null ? 0 : job.progress,
+                      minHeight: 4,
+                    ),
+                  ],
+                ),
+              ),
+          ],
+        );
+      },
+    );
+  }
+}
+
 // ---------------------------
 // Library & Detail (Additive)
 // ---------------------------
@@ -1423,7 +1576,45 @@ class LibraryScreen extends StatefulWidget {
 }
 
 class _LibraryScreenState extends State<LibraryScreen> {
+  static const int _pageSize = 30;
+  // Ask for the class summary backfill at most once per app session; the
+  // server skips it once the user's marker is current.
+  static bool _rebuildRequested = false;
+
   String _search = '';
+  int _limit = _pageSize;
+  int _loaded = 0; // docs in the last snapshot; == _limit means maybe more
+  final ScrollController _scroll = ScrollController();
+
+  @override
+  void initState() {
+    super.initState();
+    _maybeRebuildSummaries();
+    _scroll.addListener(() {
+      if (_search.isEmpty && _loaded >= _limit && _scroll.position.extentAfter < 300) {
+        setState(() => _limit += _pageSize);
+      }
+    });
+  }
+
+  @override
+  void dispose() {
+    _scroll.dispose();
+    super.dispose();
+  }
+
+  /// Libraries created before class summaries existed lack some or all of
+  /// them; the server rebuilds them unless the user's
+  /// classSummariesVersion says it already did (the stream picks them up).
+  void _maybeRebuildSummaries() {
+    if (_rebuildRequested) return;
+    _rebuildRequested = true;
+    functions.httpsCallable('rebuildClassSummaries').call().then((r) {
+      _log('rebuildClassSummaries: ${r.data}');
+    }).catchError((e) {
+      _log('rebuildClassSummaries failed: $e');
+    });
+  }
 
   DateTime? _toDt(dynamic v) {
     if (v is Timestamp) return v.toDate();
@@ -1438,14 +1629,30 @@ class _LibraryScreenState extends State<LibraryScreen> {
       return Scaffold(body: Center(child: Text(SBStrings.of(context).notSignedIn)));
     }
 
-    final q = FirebaseFirestore.instance
+    // Reads O(classes): newest classes first, paged by growing the limit.
+    // Searching matches substrings, which Firestore can't, so it filters
+    // every summary rather than only the loaded page.
+    Query<Map<String, dynamic>> q = FirebaseFirestore.instance
         .collection('users')
         .doc(uid)
-        .collection('recordings');
+        .collection('classes')
+        .orderBy('latestCreatedAt', descending: true);
+    if (_search.isEmpty) q = q.limit(_limit);
 
     final strings = SBStrings.of(context);
     return Scaffold(
-      appBar: AppBar(title: Text(strings.library)),
+      appBar: AppBar(
+        title: Text(strings.library),
+        actions: [
+          IconButton(
+            tooltip: strings.searchTranscripts,
+            icon: const Icon(Icons.manage_search),
+            onPressed: () => Navigator.of(context).push(MaterialPageRoute(
+              builder: (_) => const TranscriptSearchScreen(),
+            )),
+          ),
+        ],
+      ),
       body: Column(
         children: [
           Padding(
@@ -1479,53 +1686,32 @@ class _LibraryScreenState extends State<LibraryScreen> {
                 }
 
                 final docs = (snap.data?.docs ?? []);
+                if (_search.isEmpty) _loaded = docs.length;
                 if (docs.isEmpty) {
                   return Center(child: Text(strings.noRecordingsYet));
                 }
 
-                // Aggregate by className
-                final Map<String, _ClassRow> classes = {};
+                // One summary doc per class, already ordered by the query
+                final items = <_ClassRow>[];
                 for (final d in docs) {
                   final m = (d.data() as Map<String, dynamic>?) ?? const {};
                   final className = (m['className'] ?? '').toString().trim();
                   if (className.isEmpty) continue;
-
-                  final createdAt = _toDt(m['createdAt']);
-                  final row =
-                  classes.putIfAbsent(className, () => _ClassRow(className));
-                  row.count += 1;
-                  if (createdAt != null &&
-                      (row.latest == null || createdAt.isAfter(row.latest!))) {
-                    row.latest = createdAt;
+                  if (_search.isNotEmpty &&
+                      !className.toLowerCase().contains(_search)) {
+                    continue;
                   }
+                  items.add(_ClassRow(className)
+                    ..count = (m['count'] as num?)?.toInt() ?? 0
+                    ..latest = _toDt(m['latestCreatedAt']));
                 }
 
-                // Filter by class search
-                var items = classes.values
-                    .where((r) =>
-                _search.isEmpty ||
-                    r.className.toLowerCase().contains(_search))
-                    .toList();
-
-                // Sort by latest desc, then name
-                items.sort((a, b) {
-                  final la = a.latest;
-                  final lb = b.latest;
-                  if (la == null && lb == null) {
-                    return a.className.compareTo(b.className);
-                  }
-                  if (la == null) return 1;
-                  if (lb == null) return -1;
-                  final cmp = lb.compareTo(la);
-                  if (cmp != 0) return cmp;
-                  return a.className.compareTo(b.className);
-                });
-
                 if (items.isEmpty) {
                   return Center(child: Text(strings.noClassesMatch));
                 }
 
                 return ListView.separated(
+                  controller: _scroll,
                   itemCount: items.length,
                   separatorBuilder: (_, __) => const Divider(height: 1),
                   itemBuilder: (ctx, i) {
@@ -1565,6 +1751,131 @@ class _ClassRow {
   _ClassRow(this.className);
 }
 
+// --------------------------------------
+// Transcript search (server-side inverted index)
+// --------------------------------------
+
+/// "mm:ss" (or "h:mm:ss") for a position in a recording, in seconds.
+String _fmtOffset(num sec) {
+  final s = sec.floor();
+  final h = s ~/ 3600, m = (s % 3600) ~/ 60, r = s % 60;
+  String two(int v) => v.toString().padLeft(2, '0');
+  return h > 0 ? '$h:${two(m)}:${two(r)}' : '${two(m)}:${two(r)}';
+}
+
+class TranscriptSearchScreen extends StatefulWidget {
+  const TranscriptSearchScreen({super.key});
+
+  @override
+  State<TranscriptSearchScreen> createState() => _TranscriptSearchScreenState();
+}
+
+class _TranscriptSearchScreenState extends State<TranscriptSearchScreen> {
+  List<Map> _results = const [];
+  bool _loading = false;
+  bool _searched = false;
+  String? _error;
+
+  Future<void> _search(String query) async {
+    if (query.trim().isEmpty) return;
+    setState(() {
+      _loading = true;
+      _error = null;
+    });
+    try {
+      final callable = functions.httpsCallable('searchTranscripts');
+      final result = await callable.call({'query': query.trim()});
+      final data = result.data as Map;
+      if (!mounted) return;
+      setState(() {
+        _results = ((data['results'] as List?) ?? const []).cast<Map>();
+        _searched = true;
+        _loading = false;
+      });
+    } on FirebaseFunctionsException catch (e) {
+      _log('searchTranscripts failed: code=${e.code} message=${e.message} details=${e.details}');
+      if (!mounted) return;
+      setState(() {
+        _error = e.message ?? e.code;
+        _loading = false;
+      });
+    } catch (e) {
+      _log('searchTranscripts failed: $e');
+      if (!mounted) return;
+      setState(() {
+        _error = e.toString();
+        _loading = false;
+      });
+    }
+  }
+
+  @override
+  Widget build(BuildContext context) {
+    final strings = SBStrings.of(context);
+    Widget body;
+    if (_loading) {
+      body = const Center(child: CircularProgressIndicator());
+    } else if (_error != null) {
+      body = Center(child: Text('${strings.errorLoading}: $_error'));
+    } else if (_searched && _results.isEmpty) {
+      body = Center(child: Text(strings.noMatches));
+    } else {
+      body = ListView.separated(
+        itemCount: _results.length,
+        separatorBuilder: (_, __) => const Divider(height: 1),
+        itemBuilder: (context, i) {
+          final r = _results[i];
+          final hits = ((r['hits'] as List?) ?? const []).cast<Map>();
+          final topic = (r['topic'] ?? '').toString();
+          final className = (r['className'] ?? '').toString();
+          return ListTile(
+            leading: const Icon(Icons.audiotrack),
+            title: Text(topic.isNotEmpty ? topic : className,
+                maxLines: 1, overflow: TextOverflow.ellipsis),
+            subtitle: Text(
+              [
+                if (topic.isNotEmpty) className,
+                hits.map((h) => '${_fmtOffset((h['sec'] as num?) ?? 0)} ${h['term']}').join(' · '),
+              ].join('\n'),
+              maxLines: 3,
+              overflow: TextOverflow.ellipsis,
+            ),
+            trailing: const Icon(Icons.chevron_right),
+            onTap: () {
+              Navigator.of(context).push(MaterialPageRoute(
+                builder: (_) => LectureDetailScreen(
+                  recordingId: (r['recordingId'] ?? '').toString(),
+                ),
+              ));
+            },
+          );
+        },
+      );
+    }
+    return Scaffold(
+      appBar: AppBar(title: Text(strings.searchTranscripts)),
+      body: Column(
+        children: [
+          Padding(
+            padding: const EdgeInsets.all(12),
+            child: TextField(
+              autofocus: true,
+              textInputAction: TextInputAction.search,
+              decoration: InputDecoration(
+                prefixIcon: const Icon(Icons.search),
+                hintText: strings.searchTranscripts,
+                border: const OutlineInputBorder(),
+              ),
+              onSubmitted: _search,
+            ),
+          ),
+          Expanded(child: body),
+        ],
+      ),
+    );
+  }
+}
+
 // --------------------------------------
 // Class Lectures (drilldown per class)
 // --------------------------------------
@@ -1577,7 +1888,28 @@ class ClassLecturesScreen extends StatefulWidget {
 }
 
 class _ClassLecturesScreenState extends State<ClassLecturesScreen> {
+  static const int _pageSize = 25;
+
   String _search = '';
+  Timer? _searchDebounce;
+  final ScrollController _scroll = ScrollController();
+
+  // Newest page is live (statuses update in place); older pages are fetched
+  // once with a cursor as the user scrolls. _older always continues right
+  // after the live page's last doc (_olderAnchor); when that changes (a
+  // lecture added or removed) the older rows are fetched again from there.
+  StreamSubscription<QuerySnapshot<Map<String, dynamic>>>? _liveSub;
+  List<_LectureRow> _live = const [];
+  final List<_LectureRow> _older = [];
+  String? _olderAnchor;
+  bool _liveLoaded = false;
+  bool _hasMore = true;
+  bool _loadingMore = false;
+  Object? _error;
+  // Failed page loads back off instead of retrying on every scroll event.
+  int _pageFailures = 0;
+  DateTime? _retryAt;
+  Timer? _retryTimer;
 
   DateTime? _toDt(dynamic v) {
     if (v is Timestamp) return v.toDate();
@@ -1585,6 +1917,172 @@ class _ClassLecturesScreenState extends State<ClassLecturesScreen> {
     return null;
   }
 
+  Query<Map<String, dynamic>>? get _query {
+    final uid = fb.FirebaseAuth.instance.currentUser?.uid;
+    if (uid == null) return null;
+    // Served by the (className asc, createdAt desc) composite index
+    return FirebaseFirestore.instance
+        .collection('users')
+        .doc(uid)
+        .collection('recordings')
+        .where('className', isEqualTo: widget.className)
+        .orderBy('createdAt', descending: true);
+  }
+
+  _LectureRow _row(QueryDocumentSnapshot<Map<String, dynamic>> d) {
+    final m = d.data();
+    return _LectureRow(
+      d,
+      _toDt(m['createdAt']),
+      (m['topic'] ?? '').toString().toLowerCase(),
+    );
+  }
+
+  @override
+  void initState() {
+    super.initState();
+    _liveSub = _query?.limit(_pageSize).snapshots().listen((snap) {
+      if (!mounted) return;
+      final live = snap.docs.map(_row).toList();
+      final anchor = live.isEmpty ? null : live.last.doc.id;
+      final reanchor = _older.isNotEmpty && anchor != _olderAnchor;
+      setState(() {
+        _live = live;
+        _liveLoaded = true;
+        if (_older.isEmpty) {
+          _olderAnchor = anchor;
+          _hasMore = live.length >= _pageSize;
+        }
+      });
+      // A load in flight re-checks the anchor when it completes
+      if (!_loadingMore) _continuePaging(reanchor: reanchor);
+    }, onError: (e) {
+      _log('ClassLectures stream error: $e');
+      if (mounted) setState(() => _error = e);
+    });
+    _scroll.addListener(() {
+      if (_scroll.position.extentAfter < 400) _loadMore();
+    });
+  }
+
+  @override
+  void dispose() {
+    _liveSub?.cancel();
+    _searchDebounce?.cancel();
+    _retryTimer?.cancel();
+    _scroll.dispose();
+    super.dispose();
+  }
+
+  List<_LectureRow> get _rows {
+    final liveIds = _live.map((r) => r.doc.id).toSet();
+    return [..._live, ..._older.where((r) => !liveIds.contains(r.doc.id))];
+  }
+
+  List<_LectureRow> get _visibleRows => _search.isEmpty
+      ? _rows
+      : _rows.where((r) => r.topicLower.contains(_search)).toList();
+
+  /// Topic search filters what is loaded; keep paging while the filtered
+  /// list is too short to scroll.
+  void _fillIfShort() {
+    if (_hasMore && _visibleRows.length < _pageSize) _loadMore();
+  }
+
+  Future<void> _loadMore() async {
+    final q = _query;
+    if (q == null || !_liveLoaded || !_hasMore || _loadingMore || _live.isEmpty) {
+      return;
+    }
+    if (_retryAt != null && DateTime.now().isBefore(_retryAt!)) return;
+    final after = _older.isNotEmpty ? _older.last.doc : _live.last.doc;
+    final anchor = _olderAnchor;
+    await _fetchOlder(() => q.startAfterDocument(after).limit(_pageSize).get(), (docs) {
+      if (anchor != _olderAnchor) return; // re-anchored meanwhile
+      _older.addAll(docs.map(_row));
+      _hasMore = docs.length >= _pageSize;
+    });
+  }
+
+  /// The live page's last doc changed: fetch as many older rows as were
+  /// shown, starting right after it, so none are skipped or repeated.
+  Future<void> _reloadOlder() async {
+    final q = _query;
+    if (q == null) return;
+    final anchor = _live.isEmpty ? null : _live.last.doc;
+    final want = max(_older.length, _pageSize);
+    _olderAnchor = anchor?.id;
+    if (anchor == null) {
+      setState(() {
+        _older.clear();
+        _hasMore = false;
+      });
+      return;
+    }
+    await _fetchOlder(() => q.startAfterDocument(anchor).limit(want).get(), (docs) {
+      if (anchor.id != _olderAnchor) return;
+      _older
+        ..clear()
+        ..addAll(docs.map(_row));
+      _hasMore = docs.length >= want;
+    });
+  }
+
+  Future<void> _fetchOlder(
+    Future<QuerySnapshot<Map<String, dynamic>>> Function() fetch,
+    void Function(List<QueryDocumentSnapshot<Map<String, dynamic>>> docs) apply,
+  ) async {
+    _loadingMore = true;
+    var loaded = false;
+    try {
+      final snap = await fetch();
+      if (!mounted) return;
+      setState(() {
+        apply(snap.docs);
+        _error = null;
+      });
+      _pageFailures = 0;
+      _retryAt = null;
+      loaded = true;
+    } catch (e) {
+      _log('ClassLectures page load failed: $e');
+      _pageFailures++;
+      final wait = Duration(seconds: min(60, 2 << min(_pageFailures, 5)));
+      _retryAt = DateTime.now().add(wait);
+      _retryTimer?.cancel();
+      _retryTimer = Timer(wait, () {
+        if (mounted) _continuePaging();
+      });
+      if (mounted) setState(() => _error = e);
+    } finally {
+      _loadingMore = false;
+    }
+    if (loaded && mounted) _continuePaging();
+  }
+
+  /// Next step after the live page changed, a load finished or a backoff
+  /// expired: re-anchor the older rows if needed, else page while the list
+  /// is short or scrolled to the end.
+  void _continuePaging({bool? reanchor}) {
+    final anchor = _live.isEmpty ? null : _live.last.doc.id;
+    if (reanchor ?? (_older.isNotEmpty && anchor != _olderAnchor)) {
+      _reloadOlder();
+    } else if (_scroll.hasClients && _scroll.position.extentAfter < 400) {
+      _loadMore();
+    } else {
+      _fillIfShort();
+    }
+  }
+
+  void _onSearchChanged(String v) {
+    _searchDebounce?.cancel();
+    _searchDebounce = Timer(const Duration(milliseconds: 300), () {
+      if (!mounted) return;
+      setState(() => _search = v.trim().toLowerCase());
+      _fillIfShort();
+    });
+  }
+
   @override
   Widget build(BuildContext context) {
     final uid = fb.FirebaseAuth.instance.currentUser?.uid;
@@ -1592,14 +2090,62 @@ class _ClassLecturesScreenState extends State<ClassLecturesScreen> {
       return Scaffold(body: Center(child: Text(SBStrings.of(context).notSignedIn)));
     }
 
-    // Filter at source: only this class + this user
-    final q = FirebaseFirestore.instance
-        .collection('users')
-        .doc(uid)
-        .collection('recordings')
-        .where('className', isEqualTo: widget.className);
-
     final strings = SBStrings.of(context);
+    Widget body;
+    if (_error != null && _live.isEmpty && _older.isEmpty) {
+      body = Center(
+        child: Padding(
+          padding: const EdgeInsets.all(16),
+          child: Text(
+            '${strings.errorLoading}: $_error',
+            textAlign: TextAlign.center,
+          ),
+        ),
+      );
+    } else if (!_liveLoaded) {
+      body = const Center(child: CircularProgressIndicator());
+    } else {
+      final rows = _visibleRows;
+      if (rows.isEmpty && !_hasMore) {
+        body = Center(child: Text(strings.noLecturesYet));
+      } else {
+        body = ListView.separated(
+          controller: _scroll,
+          itemCount: rows.length + (_hasMore ? 1 : 0),
+          separatorBuilder: (_, __) => const Divider(height: 1),
+          itemBuilder: (ctx, i) {
+            if (i == rows.length) {
+              return const Padding(
+                padding: EdgeInsets.all(16),
+                child: Center(child: CircularProgressIndicator()),
+              );
+            }
+            final r = rows[i];
+            final m = r.doc.data();
+            final title =
+                '${(m['className'] ?? '').toString()} — ${(m['topic'] ?? '').toString()}';
+            final status = (m['transcriptStatus'] ?? 'none').toString();
+
+            return ListTile(
+              leading: const Icon(Icons.audiotrack),
+              title: Text(title,
+                  maxLines: 1, overflow: TextOverflow.ellipsis),
+              subtitle: Text(
+                '${r.createdAt != null ? r.createdAt!.toLocal().toString() : ''} • ${strings.transcript}: $status',
+              ),
+              trailing: const Icon(Icons.chevron_right),
+              onTap: () {
+                Navigator.of(context).push(MaterialPageRoute(
+                  builder: (_) =>
+                      LectureDetailScreen(recordingId: r.doc.id),
+                ));
+              },
+            );
+          },
+        );
+      }
+    }
+
     return Scaffold(
       appBar: AppBar(title: Text(widget.className)),
       body: Column(
@@ -1612,107 +2158,61 @@ class _ClassLecturesScreenState extends State<ClassLecturesScreen> {
                 hintText: '${strings.lectureTopic}...',
                 border: const OutlineInputBorder(),
               ),
-              onChanged: (v) => setState(() => _search = v.trim().toLowerCase()),
-            ),
-          ),
-          Expanded(
-            child: StreamBuilder<QuerySnapshot>(
-              stream: q.snapshots(),
-              builder: (ctx, snap) {
-                if (snap.connectionState == ConnectionState.waiting) {
-                  return const Center(child: CircularProgressIndicator());
-                }
-                if (snap.hasError) {
-                  return Center(
-                    child: Padding(
-                      padding: const EdgeInsets.all(16),
-                      child: Text(
-                        '${strings.errorLoading}: ${snap.error}',
-                        textAlign: TextAlign.center,
-                      ),
-                    ),
-                  );
-                }
-
-                var docs = (snap.data?.docs ?? []).toList();
-
-                // Filter by topic (safe reads)
-                docs = docs.where((d) {
-                  final m = (d.data() as Map<String, dynamic>?) ?? const {};
-                  final top = (m['topic'] ?? '').toString().toLowerCase();
-                  if (_search.isEmpty) return true;
-                  return top.contains(_search);
-                }).toList();
-
-                // Sort newest first
-                docs.sort((a, b) {
-                  final ma = (a.data() as Map<String, dynamic>?) ?? const {};
-                  final mb = (b.data() as Map<String, dynamic>?) ?? const {};
-                  final da = _toDt(ma['createdAt']);
-                  final db = _toDt(mb['createdAt']);
-                  if (da == null && db == null) return 0;
-                  if (da == null) return 1;
-                  if (db == null) return -1;
-                  return db.compareTo(da);
-                });
-
-                if (docs.isEmpty) {
-                  return Center(child: Text(strings.noLecturesYet));
-                }
-
-                return ListView.separated(
-                  itemCount: docs.length,
-                  separatorBuilder: (_, __) => const Divider(height: 1),
-                  itemBuilder: (ctx, i) {
-                    final d = docs[i];
-                    final m = (d.data() as Map<String, dynamic>?) ?? const {};
-                    final title =
-                        '${(m['className'] ?? '').toString()} — ${(m['topic'] ?? '').toString()}';
-
-                    final created = m['createdAt'];
-                    final dt = created is String
-                        ? DateTime.tryParse(created)
-                        : (created is Timestamp ? created.toDate() : null);
-
-                    final status = (m['transcriptStatus'] ?? 'none').toString();
-
-                    return ListTile(
-                      leading: const Icon(Icons.audiotrack),
-                      title: Text(title,
-                          maxLines: 1, overflow: TextOverflow.ellipsis),
-                      subtitle: Text(
-                        '${dt != null ? dt.toLocal().toString() : ''} • ${strings.transcript}: $status',
-                      ),
-                      trailing: const Icon(Icons.chevron_right),
-                      onTap: () {
-                        Navigator.of(context).push(MaterialPageRoute(
-                          builder: (_) =>
-                              LectureDetailScreen(recordingId: d.id),
-                        ));
-                      },
-                    );
-                  },
-                );
-              },
+              onChanged: _onSearchChanged,
             ),
           ),
+          Expanded(child: body),
         ],
       ),
     );
   }
 }
 
+/// A lecture list entry with its date and search key computed once.
+class _LectureRow {
+  final QueryDocumentSnapshot<Map<String, dynamic>> doc;
+  final DateTime? createdAt;
+  final String topicLower;
+  _LectureRow(this.doc, this.createdAt, this.topicLower);
+}
+
 // ---------------------------
 // Lecture Detail (safe reads + Drive playback preference)
 // ---------------------------
 
+/// Body of a signed Storage URL handed out by getTranscriptText /
+/// getAiJobOutput; the http client accepts (and inflates) the gzip encoding
+/// those objects are stored with.
+Future<String> _downloadSigned(String url, {required String notFound}) async {
+  final res = await http.get(Uri.parse(url));
+  if (res.statusCode == 404) {
+    // URLs are signed without an existence check; answer like the callable
+    throw FirebaseFunctionsException(code: 'not-found', message: notFound);
+  }
+  if (res.statusCode != 200) {
+    throw 'Download failed (HTTP ${res.statusCode})';
+  }
+  return utf8.decode(res.bodyBytes);
+}
+
 // Enhanced: surface detailed Cloud Functions errors to the UI
 Future<String> fetchTranscript(String recordingId) async {
+  final cached = await ArtifactCache.instance.read(recordingId, 'transcript');
+  if (cached is String) return cached;
+  final version = ArtifactCache.instance.versionOf(recordingId, 'transcript');
   try {
     final callable = functions.httpsCallable('getTranscriptText');
-    final result = await callable.call({'recordingId': recordingId});
+    final result = await callable.call({
+      'recordingId': recordingId,
+      'delivery': 'url',
+    });
     final data = result.data as Map;
-    return (data['text'] as String?) ?? '';
+    final url = data['url'] as String?;
+    final text = url != null
+        ? await _downloadSigned(url, notFound: 'Transcript not found for this recording.')
+        : (data['text'] as String?) ?? '';
+    await ArtifactCache.instance.write(recordingId, 'transcript', text, version: version);
+    return text;
   } on FirebaseFunctionsException catch (e) {
     _log('getTranscriptText failed: code=${e.code} message=${e.message} details=${e.details}');
     throw 'Transcript error (${e.code}): ${e.message ?? 'unknown error'}';
@@ -1722,6 +2222,161 @@ Future<String> fetchTranscript(String recordingId) async {
   }
 }
 
+/// One page of the timestamped transcript index (see getTranscriptSegments).
+Future<Map<String, dynamic>> fetchTranscriptSegments(
+  String recordingId, {
+  int page = 0,
+  int pageSize = 50,
+  double? fromSec,
+  double? toSec,
+}) async {
+  // Only plain pages are cached; time-range queries always go to the server.
+  final cacheType = fromSec == null && toSec == null
+      ? 'transcript:segments:$page:$pageSize'
+      : null;
+  if (cacheType != null) {
+    final cached = await ArtifactCache.instance.read(recordingId, cacheType);
+    if (cached is Map) return Map<String, dynamic>.from(cached);
+  }
+  final version = ArtifactCache.instance.versionOf(recordingId, 'transcript');
+  try {
+    final callable = functions.httpsCallable('getTranscriptSegments');
+    final result = await callable.call({
+      'recordingId': recordingId,
+      'page': page,
+      'pageSize': pageSize,
+      if (fromSec != null) 'fromSec': fromSec,
+      if (toSec != null) 'toSec': toSec,
+    });
+    final data = Map<String, dynamic>.from(result.data as Map);
+    if (cacheType != null) {
+      await ArtifactCache.instance.write(recordingId, cacheType, data, version: version);
+    }
+    return data;
+  } on FirebaseFunctionsException catch (e) {
+    _log('getTranscriptSegments failed: code=${e.code} message=${e.message} details=${e.details}');
+    throw 'Transcript error (${e.code}): ${e.message ?? 'unknown error'}';
+  } catch (e) {
+    _log('getTranscriptSegments failed: $e');
+    throw 'Transcript fetch failed: $e';
+  }
+}
+
+/// Transcript list that loads segment pages as the user scrolls.
+class _TranscriptSegmentsView extends StatefulWidget {
+  final String recordingId;
+  const _TranscriptSegmentsView({required this.recordingId});
+
+  @override
+  State<_TranscriptSegmentsView> createState() => _TranscriptSegmentsViewState();
+}
+
+class _TranscriptSegmentsViewState extends State<_TranscriptSegmentsView> {
+  static const int _pageSize = 50;
+  final ScrollController _scroll = ScrollController();
+  final List<Map> _segments = [];
+  int _nextPage = 0;
+  bool _hasMore = true;
+  bool _loading = false;
+  String? _error;
+
+  @override
+  void initState() {
+    super.initState();
+    _scroll.addListener(() {
+      if (_scroll.position.extentAfter < 400) _loadMore();
+    });
+    _loadMore();
+  }
+
+  @override
+  void dispose() {
+    _scroll.dispose();
+    super.dispose();
+  }
+
+  Future<void> _loadMore() async {
+    if (_loading || !_hasMore) return;
+    setState(() {
+      _loading = true;
+      _error = null; // a retry (scrolling, or tapping the error) starts clean
+    });
+    try {
+      final data = await fetchTranscriptSegments(
+        widget.recordingId,
+        page: _nextPage,
+        pageSize: _pageSize,
+      );
+      if (!mounted) return;
+      setState(() {
+        _segments.addAll(((data['segments'] as List?) ?? const []).cast<Map>());
+        _hasMore = data['hasMore'] == true;
+        _nextPage++;
+        _loading = false;
+      });
+    } catch (e) {
+      _log('Transcript UI error: $e');
+      if (!mounted) return;
+      setState(() {
+        _error = e.toString();
+        _loading = false;
+      });
+    }
+  }
+
+  @override
+  Widget build(BuildContext context) {
+    final strings = SBStrings.of(context);
+    if (_segments.isEmpty) {
+      if (_error != null) {
+        return Center(
+          child: TextButton(
+            onPressed: _loadMore,
+            child: Text('${strings.transcriptError}\n$_error', textAlign: TextAlign.center),
+          ),
+        );
+      }
+      if (_loading || _hasMore) {
+        return const Center(child: CircularProgressIndicator());
+      }
+      return Center(child: Text(strings.transcriptIsEmpty));
+    }
+    return ListView.builder(
+      controller: _scroll,
+      itemCount: _segments.length + (_hasMore || _error != null ? 1 : 0),
+      itemBuilder: (context, i) {
+        if (i == _segments.length) {
+          return Padding(
+            padding: const EdgeInsets.all(12),
+            child: Center(
+              child: _error != null
+                  ? TextButton(onPressed: _loadMore, child: Text(_error!))
+                  : const CircularProgressIndicator(),
+            ),
+          );
+        }
+        final seg = _segments[i];
+        return Padding(
+          padding: const EdgeInsets.symmetric(vertical: 4),
+          child: Row(
+            crossAxisAlignment: CrossAxisAlignment.start,
+            children: [
+              SizedBox(
+                width: 64,
+                child: Text(
+                  _fmtOffset((seg['start'] as num?) ?? 0),
+                  style: Theme.of(context).textTheme.bodySmall,
+                ),
+              ),
+              Expanded(child: Text((seg['text'] as String?) ?? '')),
+            ],
+          ),
+        );
+      },
+    );
+  }
+}
+
 class LectureDetailScreen extends StatelessWidget {
   final String recordingId;
   const LectureDetailScreen({super.key, required this.recordingId});
@@ -1745,19 +2400,37 @@ class LectureDetailScreen extends StatelessWidget {
         ),
       );
 
-      final callable = functions.httpsCallable('getAiJobOutput');
-      final result = await callable.call({
-        'recordingId': recordingId,
-        'type': type,
-      });
+      // Served from the on-device cache while the doc's aiXxxPath is unchanged
+      dynamic payload = await ArtifactCache.instance.read(recordingId, type);
+      if (payload == null) {
+        final version = ArtifactCache.instance.versionOf(recordingId, type);
+        final callable = functions.httpsCallable('getAiJobOutput');
+        final result = await callable.call({
+          'recordingId': recordingId,
+          'type': type,
+          'delivery': 'url',
+        });
+        final Map data = (result.data as Map?) ?? {};
+        final url = data['url'] as String?;
+        if (url != null) {
+          final raw = await _downloadSigned(url, notFound: '$type output file not found in Storage.');
+          try {
+            payload = json.decode(raw);
+          } on FormatException {
+            payload = {'raw': raw};
+          }
+        } else {
+          payload = data['data'];
+        }
+        if (payload != null) {
+          await ArtifactCache.instance.write(recordingId, type, payload, version: version);
+        }
+      }
 
       if (Navigator.of(context).canPop()) {
         Navigator.of(context).pop(); // close spinner
       }
 
-      final Map data = (result.data as Map?) ?? {};
-      final dynamic payload = data['data'];
-
       if (payload == null) {
         showDialog(
           context: context,
@@ -1965,6 +2638,8 @@ class LectureDetailScreen extends StatelessWidget {
 
         final doc = snap.data!;
         final m = (doc.data() as Map<String, dynamic>?) ?? const {};
+        // Drops cached transcript/AI outputs whose version changed
+        ArtifactCache.instance.observe(recordingId, m);
 
         final className = (m['className'] ?? '').toString();
         final topic = (m['topic'] ?? '').toString();
@@ -2040,62 +2715,26 @@ class LectureDetailScreen extends StatelessWidget {
               if (status == 'done') ...[
                 const SizedBox(height: 8),
                 ElevatedButton(
-                  onPressed: () async {
-                    try {
-                      showDialog(
-                        context: context,
-                        barrierDismissible: false,
-                        builder: (_) => const AlertDialog(
-                          content: SizedBox(
-                            height: 80,
-                            child: Center(child: CircularProgressIndicator()),
-                          ),
+                  onPressed: () {
+                    // Paged by segment so long lectures open without
+                    // downloading the whole transcript first.
+                    showDialog(
+                      context: context,
+                      builder: (_) => AlertDialog(
+                        title: Text(strings.transcript),
+                        content: SizedBox(
+                          width: double.maxFinite,
+                          height: 480,
+                          child: _TranscriptSegmentsView(recordingId: recordingId),
                         ),
-                      );
-                      final full = await fetchTranscript(recordingId);
-                      Navigator.of(context).pop(); // close progress
-                      if (full.isEmpty) {
-                        ScaffoldMessenger.of(context).showSnackBar(
-                          SnackBar(content: Text(strings.transcriptIsEmpty)),
-                        );
-                        return;
-                      }
-                      showDialog(
-                        context: context,
-                        builder: (_) => AlertDialog(
-                          title: Text(strings.transcript),
-                          content: SizedBox(
-                            width: double.maxFinite,
-                            child: SingleChildScrollView(child: Text(full)),
+                        actions: [
+                          TextButton(
+                            onPressed: () => Navigator.pop(context),
+                            child: Text(strings.close),
                           ),
-                          actions: [
-                            TextButton(
-                              onPressed: () => Navigator.pop(context),
-                              child: Text(strings.close),
-                            ),
-                          ],
-                        ),
-                      );
-                    } catch (e) {
-                      if (Navigator.of(context).canPop()) {
-                        Navigator.of(context).pop(); // ensure spinner closes on error
-                      }
-                      final msg = e.toString();
-                      _log('Transcript UI error: $msg');
-                      showDialog(
-                        context: context,
-                        builder: (_) => AlertDialog(
-                          title: Text(strings.transcriptError),
-                          content: Text(msg),
-                          actions: [
-                            TextButton(
-                              onPressed: () => Navigator.pop(context),
-                              child: Text(strings.ok),
-                            ),
-                          ],
-                        ),
-                      );
-                    }
+                        ],
+                      ),
+                    );
                   },
                   child: Text(strings.viewTranscript),
                 ),
@@ -2143,6 +2782,34 @@ class LectureDetailScreen extends StatelessWidget {
               Text(strings.aiOutputs, style: const TextStyle(fontWeight: FontWeight.bold)),
               const SizedBox(height: 8),
 
+              // One combined job: the function reads the transcript once and
+              // generates summary, notes and quiz together.
+              Builder(builder: (context) {
+                final aiStatuses = [
+                  (m['summaryStatus'] ?? 'none').toString(),
+                  (m['notesStatus'] ?? 'none').toString(),
+                  (m['quizStatus'] ?? 'none').toString(),
+                ];
+                final canRequestAll = status == 'done' &&
+                    aiStatuses.every((s) => s == 'none' || s == 'error');
+                if (!canRequestAll) return const SizedBox.shrink();
+                return ElevatedButton.icon(
+                  icon: const Icon(Icons.auto_awesome),
+                  label: Text(strings.generateAll),
+                  onPressed: () async {
+                    final uid = fb.FirebaseAuth.instance.currentUser?.uid;
+                    await FirebaseFirestore.instance.collection('aiJobs').add({
+                      'uid': uid,
+                      'type': 'all',
+                      'recordingId': recordingId,
+                      'status': 'pending',
+                      'createdAt': DateTime.now().toIso8601String(),
+                    });
+                  },
+                );
+              }),
+              const SizedBox(height: 8),
+
               _AiActionRow(
                 title: strings.generateSummary,
                 status: (m['summaryStatus'] ?? 'none').toString(),
@@ -2382,22 +3049,6 @@ class SettingsScreen extends StatelessWidget {
   }
 }
 
-// OUTSIDE the State class: small HTTP client wrapper for Google APIs.
-class _GoogleAuthClient extends http.BaseClient {
-  final Map<String, String> _headers;
-  final http.Client _client = http.Client();
-
-  _GoogleAuthClient(this._headers);
-
-  @override
-  Future<http.StreamedResponse> send(http.BaseRequest request) {
-    request.headers.addAll(_headers);
-    return _client.send(request);
-  }
-
-  void close() => _client.close();
-}
-
 // -----------------------------
 // MULTILINGUAL TRANSLATION FIX
 // -----------------------------
@@ -13,9 +13,14 @@ class AcademicSettingsScreen extends StatefulWidget {
 class _AcademicSettingsScreenState extends State<AcademicSettingsScreen> {
   final _levels = ['High School', 'Undergraduate', 'Graduate', 'Doctorate'];
   final _terms = ['Spring', 'Summer', 'Fall', 'Winter'];
+  // Encoding profiles understood by RecorderService (EncodingProfile.kt)
+  final _profiles = ['standard', 'compact', 'speech'];
 
   String? _selectedLevel;
   String? _selectedTerm;
+  String _selectedProfile = 'standard';
+  bool _trimSilence = false;
+  bool _liveTranscribe = false;
   bool _saving = false;
   bool _loading = true;
 
@@ -40,6 +45,11 @@ class _AcademicSettingsScreenState extends State<AcademicSettingsScreen> {
       setState(() {
         _selectedLevel = data['levelName'];
         _selectedTerm = data['termName'];
+        if (_profiles.contains(data['recordingProfile'])) {
+          _selectedProfile = data['recordingProfile'];
+        }
+        _trimSilence = data['trimSilence'] == true;
+        _liveTranscribe = data['liveTranscribe'] == true;
       });
     }
     setState(() => _loading = false);
@@ -67,6 +77,9 @@ class _AcademicSettingsScreenState extends State<AcademicSettingsScreen> {
     await docRef.set({
       'levelName': _selectedLevel,
       'termName': _selectedTerm,
+      'recordingProfile': _selectedProfile,
+      'trimSilence': _trimSilence,
+      'liveTranscribe': _liveTranscribe,
       'isActive': true,
       'updatedAt': FieldValue.serverTimestamp(),
     }, SetOptions(merge: true));
@@ -79,6 +92,17 @@ class _AcademicSettingsScreenState extends State<AcademicSettingsScreen> {
     Navigator.pop(context);
   }
 
+  String _profileLabel(SBStrings strings, String profile) {
+    switch (profile) {
+      case 'compact':
+        return strings.profileCompact;
+      case 'speech':
+        return strings.profileSpeech;
+      default:
+        return strings.profileStandard;
+    }
+  }
+
   @override
   Widget build(BuildContext context) {
     final strings = SBStrings.of(context);
@@ -133,6 +157,40 @@ class _AcademicSettingsScreenState extends State<AcademicSettingsScreen> {
               ),
               onChanged: (val) => setState(() => _selectedTerm = val),
             ),
+            const SizedBox(height: 24),
+            Text(
+              strings.recordingQuality,
+              style: Theme.of(context).textTheme.titleLarge,
+            ),
+            const SizedBox(height: 8),
+            DropdownButtonFormField<String>(
+              value: _selectedProfile,
+              items: _profiles
+                  .map((profile) => DropdownMenuItem(
+                value: profile,
+                child: Text(_profileLabel(strings, profile)),
+              ))
+                  .toList(),
+              decoration: const InputDecoration(
+                border: OutlineInputBorder(),
+              ),
+              onChanged: (val) => setState(() => _selectedProfile = val ?? 'standard'),
+            ),
+            const SizedBox(height: 8),
+            SwitchListTile(
+              contentPadding: EdgeInsets.zero,
+              title: Text(strings.trimSilence),
+              subtitle: Text(strings.trimSilenceHint),
+              value: _trimSilence,
+              onChanged: (val) => setState(() => _trimSilence = val),
+            ),
+            SwitchListTile(
+              contentPadding: EdgeInsets.zero,
+              title: Text(strings.liveTranscribe),
+              subtitle: Text(strings.liveTranscribeHint),
+              value: _liveTranscribe,
+              onChanged: (val) => setState(() => _liveTranscribe = val),
+            ),
             const SizedBox(height: 40),
             SizedBox(
               width: double.infinity,
@@ -0,0 +1,980 @@
+// lib/upload_queue.dart
+//
+// Durable on-device upload queue. A finished recording is moved out of the
+// temp dir and recorded as a job; each destination step (Storage, Firestore
+// metadata, Google Drive) is persisted as it completes, so a killed app or a
+// dropped network resumes where it stopped. The local file is deleted only
+// once every step is confirmed.
+
+import 'dart:async';
+import 'dart:convert';
+import 'dart:io';
+import 'dart:math';
+
+import 'package:flutter/widgets.dart';
+import 'package:path/path.dart' as path;
+import 'package:path_provider/path_provider.dart';
+import 'package:firebase_auth/firebase_auth.dart' as fb;
+import 'package:firebase_storage/firebase_storage.dart';
+import 'package:firebase_app_check/firebase_app_check.dart';
+import 'package:cloud_firestore/cloud_firestore.dart';
+import 'package:cloud_functions/cloud_functions.dart';
+import 'package:google_sign_in/google_sign_in.dart';
+import 'package:http/http.dart' as http;
+import 'package:googleapis/drive/v3.dart' as drive;
+
+void _log(String msg) => debugPrint('[StudyBuddy] $msg');
+
+/// One queued recording (or live segment of one) and how far its upload got.
+class UploadJob {
+  static const String kindRecording = 'recording';
+  static const String kindSegment = 'segment';
+
+  final String id;
+  final String kind;
+  final String uid;
+  String filePath;
+  final String filename;
+  final String className;
+  final String topic;
+  final DateTime createdAt;
+  final int durationSeconds;
+  final String mimeType;
+  final String? encodingProfile; // RecorderService profile, for size/accuracy comparisons
+  // Silence removed on-device: [{atMs, removedMs}] in the uploaded audio's timeline
+  final List<Map<String, int>> timeMap;
+
+  // Live recording: segment jobs carry their index and recorded length; the
+  // final recording job carries how many segments were sent ahead of it.
+  final int segmentIndex;
+  final int segmentDurationMs;
+  final int liveSegments;
+
+  // Per-destination progress (persisted)
+  final String recordingDocId; // chosen up front so retries can't duplicate
+  bool storageDone;
+  String? storageSession; // resumable upload URL, reused across restarts
+  bool metadataDone;
+  String? driveFileId;
+  bool driveLinked; // driveFileId written back to the recording doc
+
+  // Retry bookkeeping (persisted)
+  int attempts;
+  DateTime? nextAttemptAt;
+  String? lastError;
+
+  // Live UI state (not persisted)
+  String? phase;
+  int totalBytes = 0;
+  int storageSent = 0;
+  int driveSent = 0;
+  double? storageBytesPerSecond;
+
+  bool get isSegment => kind == kindSegment;
+
+  /// Combined progress over both destinations (0..1), null before sizing.
+  double? get progress {
+    if (totalBytes <= 0) return null;
+    if (isSegment) return storageDone ? 1 : storageSent / totalBytes;
+    final storage = storageDone ? totalBytes : storageSent;
+    final drive = driveFileId != null ? totalBytes : driveSent;
+    return (storage + drive) / (2 * totalBytes);
+  }
+
+  UploadJob({
+    required this.id,
+    this.kind = kindRecording,
+    required this.uid,
+    required this.filePath,
+    required this.filename,
+    required this.className,
+    required this.topic,
+    required this.createdAt,
+    required this.durationSeconds,
+    required this.recordingDocId,
+    this.mimeType = 'audio/mp4',
+    this.encodingProfile,
+    this.timeMap = const [],
+    this.segmentIndex = 0,
+    this.segmentDurationMs = 0,
+    this.liveSegments = 0,
+    this.storageDone = false,
+    this.storageSession,
+    this.metadataDone = false,
+    this.driveFileId,
+    this.driveLinked = false,
+    this.attempts = 0,
+    this.nextAttemptAt,
+    this.lastError,
+  });
+
+  String get storagePath => isSegment
+      ? 'recordings/$uid/live/$recordingDocId/seg-${segmentIndex.toString().padLeft(3, '0')}.m4a'
+      : 'recordings/$uid/$filename';
+
+  Map<String, dynamic> toJson() => {
+        'id': id,
+        'kind': kind,
+        'uid': uid,
+        'filePath': filePath,
+        'filename': filename,
+        'className': className,
+        'topic': topic,
+        'createdAt': createdAt.toIso8601String(),
+        'durationSeconds': durationSeconds,
+        'mimeType': mimeType,
+        'encodingProfile': encodingProfile,
+        'timeMap': timeMap,
+        'segmentIndex': segmentIndex,
+        'segmentDurationMs': segmentDurationMs,
+        'liveSegments': liveSegments,
+        'recordingDocId': recordingDocId,
+        'storageDone': storageDone,
+        'storageSession': storageSession,
+        'metadataDone': metadataDone,
+        'driveFileId': driveFileId,
+        'driveLinked': driveLinked,
+        'attempts': attempts,
+        'nextAttemptAt': nextAttemptAt?.toIso8601String(),
+        'lastError': lastError,
+      };
+
+  factory UploadJob.fromJson(Map<String, dynamic> m) => UploadJob(
+        id: m['id'] as String,
+        kind: (m['kind'] ?? kindRecording) as String,
+        uid: m['uid'] as String,
+        filePath: m['filePath'] as String,
+        filename: m['filename'] as String,
+        className: (m['className'] ?? '') as String,
+        topic: (m['topic'] ?? '') as String,
+        createdAt: DateTime.parse(m['createdAt'] as String),
+        durationSeconds: (m['durationSeconds'] as num?)?.toInt() ?? 0,
+        mimeType: (m['mimeType'] ?? 'audio/mp4') as String,
+        encodingProfile: m['encodingProfile'] as String?,
+        timeMap: [
+          for (final c in (m['timeMap'] as List? ?? const []))
+            Map<String, int>.from(c as Map),
+        ],
+        segmentIndex: (m['segmentIndex'] as num?)?.toInt() ?? 0,
+        segmentDurationMs: (m['segmentDurationMs'] as num?)?.toInt() ?? 0,
+        liveSegments: (m['liveSegments'] as num?)?.toInt() ?? 0,
+        recordingDocId: m['recordingDocId'] as String,
+        storageDone: m['storageDone'] == true,
+        storageSession: m['storageSession'] as String?,
+        metadataDone: m['metadataDone'] == true,
+        driveFileId: m['driveFileId'] as String?,
+        driveLinked: m['driveLinked'] == true,
+        attempts: (m['attempts'] as num?)?.toInt() ?? 0,
+        nextAttemptAt: m['nextAttemptAt'] == null
+            ? null
+            : DateTime.tryParse(m['nextAttemptAt'] as String),
+        lastError: m['lastError'] as String?,
+      );
+}
+
+/// Process-wide upload queue. Call [start] once after Firebase is ready.
+class UploadQueue extends ChangeNotifier with WidgetsBindingObserver {
+  UploadQueue._();
+  static final UploadQueue instance = UploadQueue._();
+
+  // Recordings uploaded at the same time when several are waiting.
+  static const int maxParallel = 2;
+  static const Duration _baseBackoff = Duration(seconds: 2);
+  static const Duration _maxBackoff = Duration(minutes: 5);
+  // Resumable upload chunk; must be a multiple of 256 KiB.
+  static const int _chunkBytes = 8 * 1024 * 1024;
+
+  final List<UploadJob> _jobs = [];
+  final Set<String> _running = {};
+  Directory? _dir;
+  Timer? _wake;
+  Future<void> _writes = Future.value();
+  bool _started = false;
+
+  // Drive folder path ("<account>/Study Buddy/2025_Fall/Class/Topic") -> ID.
+  // Persisted; an entry is only re-resolved when Drive answers 404 for it.
+  final Map<String, String> _folders = {};
+  // Resolutions in flight, so concurrent uploads share one lookup/create.
+  final Map<String, Future<String>> _folderLookups = {};
+
+  // Discarded live recordings whose server-side segments are still to be
+  // removed. Persisted; sent once none of their segment jobs is running.
+  final Set<String> _discards = {};
+  final Set<String> _discardsSending = {};
+
+  // Storage emulator origin (see useStorageEmulator); null = production.
+  Uri? _storageEmulator;
+
+  final GoogleSignIn _gsi = GoogleSignIn(
+    scopes: [drive.DriveApi.driveFileScope, 'email'],
+  );
+
+  List<UploadJob> get jobs => List.unmodifiable(_jobs);
+
+  /// Load persisted jobs and begin draining. Safe to call more than once.
+  Future<void> start() async {
+    if (_started) return;
+    _started = true;
+    final dir = await _queueDir();
+    final f = File(path.join(dir.path, 'queue.json'));
+    try {
+      if (await f.exists()) {
+        final list = jsonDecode(await f.readAsString()) as List;
+        _jobs.addAll(list.map((m) => UploadJob.fromJson(Map<String, dynamic>.from(m as Map))));
+      }
+    } catch (e) {
+      _log('Upload queue load failed: $e');
+    }
+    try {
+      final folders = File(path.join(dir.path, 'drive_folders.json'));
+      if (await folders.exists()) {
+        _folders.addAll(Map<String, String>.from(jsonDecode(await folders.readAsString()) as Map));
+      }
+    } catch (e) {
+      _log('Drive folder cache load failed: $e');
+    }
+    try {
+      final discards = File(path.join(dir.path, 'live_discards.json'));
+      if (await discards.exists()) {
+        _discards.addAll(List<String>.from(jsonDecode(await discards.readAsString()) as List));
+      }
+    } catch (e) {
+      _log('Live discard list load failed: $e');
+    }
+    _log('Upload queue started with ${_jobs.length} pending job(s)');
+    WidgetsBinding.instance.addObserver(this);
+    notifyListeners();
+    drain();
+  }
+
+  @override
+  void didChangeAppLifecycleState(AppLifecycleState state) {
+    // Coming back to the foreground is a good moment to retry right away.
+    if (state == AppLifecycleState.resumed) drain(force: true);
+  }
+
+  /// Move [file] into the queue's own directory and schedule its upload.
+  Future<UploadJob> enqueue({
+    required File file,
+    required String uid,
+    required String className,
+    required String topic,
+    required DateTime createdAt,
+    required int durationSeconds,
+    String? recordingDocId,
+    int liveSegments = 0,
+    String? encodingProfile,
+    List<Map<String, int>> timeMap = const [],
+  }) async {
+    await start();
+    final dir = await _queueDir();
+    final filename = path.basename(file.path);
+    final kept = await _moveInto(file, path.join(dir.path, filename));
+    final job = UploadJob(
+      id: _newJobId(),
+      uid: uid,
+      filePath: kept.path,
+      filename: filename,
+      className: className,
+      topic: topic,
+      createdAt: createdAt,
+      durationSeconds: durationSeconds,
+      recordingDocId: recordingDocId ?? newRecordingId(uid),
+      liveSegments: liveSegments,
+      encodingProfile: encodingProfile,
+      timeMap: timeMap,
+    );
+    _jobs.add(job);
+    await _persist();
+    _log('Queued upload ${job.id} ($filename)');
+    notifyListeners();
+    drain();
+    return job;
+  }
+
+  /// Queue one finished live segment for Storage only. The file stays on
+  /// disk (the final recording job joins and then removes the segments).
+  Future<UploadJob> enqueueSegment({
+    required File file,
+    required String uid,
+    required String recordingDocId,
+    required int index,
+    required int durationMs,
+  }) async {
+    await start();
+    // A recovered recording re-offers segments that may still be queued
+    for (final j in _jobs) {
+      if (j.isSegment && j.recordingDocId == recordingDocId && j.segmentIndex == index) return j;
+    }
+    final job = UploadJob(
+      id: _newJobId(),
+      kind: UploadJob.kindSegment,
+      uid: uid,
+      filePath: file.path,
+      filename: path.basename(file.path),
+      className: '',
+      topic: '',
+      createdAt: DateTime.now(),
+      durationSeconds: durationMs ~/ 1000,
+      recordingDocId: recordingDocId,
+      segmentIndex: index,
+      segmentDurationMs: durationMs,
+    );
+    _jobs.add(job);
+    await _persist();
+    _log('Queued live segment $index of $recordingDocId');
+    notifyListeners();
+    drain();
+    return job;
+  }
+
+  /// Drop queued live segments of a discarded recording and have the server
+  /// remove the ones it already has (once any upload in flight settled).
+  Future<void> cancelLive(String recordingDocId) async {
+    await start();
+    _discards.add(recordingDocId);
+    await _persistDiscards();
+    _jobs.removeWhere((j) =>
+        j.isSegment && j.recordingDocId == recordingDocId && !_running.contains(j.id));
+    await _persist();
+    notifyListeners();
+    drain();
+  }
+
+  /// Directory recordings should be written to when they will be queued
+  /// in place (live segments are never moved).
+  Future<Directory> recordingDir() => _queueDir();
+
+  /// "<base>.m4a" -> "<base>.seg003.m4a" (mirrors RecorderService.segmentPath).
+  static String liveSegmentPath(String recordingPath, int index) =>
+      '${recordingPath.replaceAll(RegExp(r'\.m4a$'), '')}.seg${index.toString().padLeft(3, '0')}.m4a';
+
+  /// A fresh recording doc ID (no write).
+  static String newRecordingId(String uid) => FirebaseFirestore.instance
+      .collection('users')
+      .doc(uid)
+      .collection('recordings')
+      .doc()
+      .id;
+
+  String _newJobId() =>
+      '${DateTime.now().microsecondsSinceEpoch}_${Random().nextInt(1 << 20)}';
+
+  /// Start as many due jobs as allowed. [force] ignores pending backoff.
+  void drain({bool force = false}) {
+    if (!_started) return;
+    _sendDiscards();
+    final now = DateTime.now();
+    for (final job in _jobs) {
+      if (_running.length >= maxParallel) break;
+      if (_running.contains(job.id)) continue;
+      if (!force && job.nextAttemptAt != null && job.nextAttemptAt!.isAfter(now)) {
+        continue;
+      }
+      // A live recording is finalized only after all of its segments landed;
+      // finishing segment jobs call drain() again.
+      if (job.liveSegments > 0 &&
+          _jobs.any((j) => j.isSegment && j.recordingDocId == job.recordingDocId)) {
+        continue;
+      }
+      if (force) job.nextAttemptAt = null;
+      _running.add(job.id);
+      unawaited(_run(job).whenComplete(() {
+        _running.remove(job.id);
+        drain();
+      }));
+    }
+    _scheduleWake();
+  }
+
+  void _scheduleWake() {
+    _wake?.cancel();
+    final waiting = _jobs
+        .where((j) => !_running.contains(j.id) && j.nextAttemptAt != null)
+        .map((j) => j.nextAttemptAt!)
+        .toList();
+    if (waiting.isEmpty) return;
+    waiting.sort();
+    final delay = waiting.first.difference(DateTime.now());
+    _wake = Timer(delay.isNegative ? Duration.zero : delay, drain);
+  }
+
+  Future<void> _run(UploadJob job) async {
+    final file = File(job.filePath);
+    if (!await file.exists()) {
+      _log('Upload ${job.id}: local file missing, dropping job');
+      _jobs.remove(job);
+      await _persist();
+      notifyListeners();
+      return;
+    }
+    job.totalBytes = await file.length();
+    job.lastError = null;
+    if (job.isSegment) return _runSegment(job, file);
+
+    // Storage (+ metadata, which needs the object) and Drive upload
+    // concurrently from the same finalized file. One failing does not cancel
+    // the other; whatever finished is persisted and only the rest is retried.
+    // Backoff restarts only when a step actually completed in this run; a
+    // destination that was already done must not mask one that keeps failing.
+    final failures = <String>[];
+    Future<void> guard(String dest, Future<bool> Function() body) async {
+      try {
+        if (await body()) job.attempts = 0;
+      } catch (e) {
+        failures.add('$dest: $e');
+      } finally {
+        await _persist();
+        _updatePhase(job);
+      }
+    }
+
+    _updatePhase(job);
+    await Future.wait([
+      guard('Firebase', () async {
+        var progressed = false;
+        if (!job.storageDone) {
+          if (job.liveSegments > 0) {
+            await _finalizeLive(job);
+          } else {
+            await _uploadToStorage(job, file);
+          }
+          job.storageDone = true;
+          progressed = true;
+        }
+        if (!job.metadataDone) {
+          // Drive may have finished first; then its ID goes into the doc now.
+          final driveId = job.driveFileId;
+          await _writeMetadata(job, file, driveId);
+          if (job.liveSegments > 0) {
+            // The user opted into live transcription and the segments were
+            // transcribed while recording; assemble right away.
+            await _recordingRef(job).update({
+              'transcriptStatus': 'pending',
+              'transcribeRequested': true,
+            });
+          }
+          job.metadataDone = true;
+          if (driveId != null) job.driveLinked = true;
+          progressed = true;
+        }
+        return progressed;
+      }),
+      guard('Google Drive', () async {
+        if (job.driveFileId != null) return false;
+        job.driveFileId = await _uploadToDrive(job, file);
+        return true;
+      }),
+    ]);
+
+    try {
+      if (failures.isNotEmpty) throw failures.join('; ');
+      if (!job.driveLinked) {
+        await _recordingRef(job).update({'driveFileId': job.driveFileId});
+        job.driveLinked = true;
+      }
+
+      // Every destination confirmed: drop the local copy (and live segments).
+      try {
+        await file.delete();
+      } catch (_) {}
+      for (var i = 0; i < job.liveSegments; i++) {
+        try {
+          await File(liveSegmentPath(job.filePath, i)).delete();
+        } catch (_) {}
+      }
+      _jobs.remove(job);
+      await _persist();
+      _log('Upload ${job.id} complete (doc=${job.recordingDocId}, drive=${job.driveFileId})');
+    } catch (e) {
+      job.attempts++;
+      final backoff = _backoff(job.attempts);
+      job.nextAttemptAt = DateTime.now().add(backoff);
+      job.lastError = e.toString();
+      await _persist();
+      _log('Upload ${job.id} failed (attempt ${job.attempts}): $e; retry in ${backoff.inSeconds}s');
+    } finally {
+      job.phase = null;
+      job.storageSent = 0;
+      job.driveSent = 0;
+      job.storageBytesPerSecond = null;
+      notifyListeners();
+    }
+  }
+
+  Future<void> _runSegment(UploadJob job, File file) async {
+    job.phase = 'Firebase';
+    notifyListeners();
+    try {
+      await _uploadToStorage(job, file);
+      job.storageDone = true;
+      _jobs.remove(job);
+      await _persist();
+      _log('Live segment ${job.segmentIndex} of ${job.recordingDocId} uploaded');
+    } catch (e) {
+      job.attempts++;
+      final backoff = _backoff(job.attempts);
+      job.nextAttemptAt = DateTime.now().add(backoff);
+      job.lastError = e.toString();
+      await _persist();
+      _log('Live segment ${job.segmentIndex} failed (attempt ${job.attempts}): $e; retry in ${backoff.inSeconds}s');
+    } finally {
+      job.phase = null;
+      job.storageSent = 0;
+      job.storageBytesPerSecond = null;
+      notifyListeners();
+    }
+  }
+
+  /// Segment jobs of discarded recordings that were running when discarded
+  /// are dropped here once they settle; then the server removes what landed.
+  void _sendDiscards() {
+    if (_discards.isEmpty) return;
+    final dropped = _jobs.where((j) =>
+        j.isSegment && _discards.contains(j.recordingDocId) && !_running.contains(j.id)).toList();
+    if (dropped.isNotEmpty) {
+      _jobs.removeWhere(dropped.contains);
+      unawaited(_persist());
+      notifyListeners();
+    }
+    for (final id in _discards.toList()) {
+      if (_discardsSending.contains(id)) continue;
+      if (_jobs.any((j) => j.isSegment && j.recordingDocId == id)) continue;
+      _discardsSending.add(id);
+      unawaited(FirebaseFunctions.instanceFor(region: 'us-central1')
+          .httpsCallable('discardLiveRecording')
+          .call({'recordingId': id}).then((_) async {
+        _discards.remove(id);
+        await _persistDiscards();
+        _log('Discarded live segments of $id');
+      }, onError: (Object e) {
+        // Retried on the next drain (job completion or app resume)
+        _log('discardLiveRecording failed for $id: $e');
+      }).whenComplete(() => _discardsSending.remove(id)));
+    }
+  }
+
+  /// The server joins the uploaded live segments into the recording's
+  /// Storage object, so the full file never has to be uploaded again.
+  Future<void> _finalizeLive(UploadJob job) async {
+    final waiting = _jobs.where((j) => j.isSegment && j.recordingDocId == job.recordingDocId).length;
+    if (waiting > 0) throw 'Waiting for $waiting live segment(s)';
+    final res = await FirebaseFunctions.instanceFor(region: 'us-central1')
+        .httpsCallable('finalizeLiveRecording')
+        .call({
+      'recordingId': job.recordingDocId,
+      'storagePath': job.storagePath,
+      'segmentCount': job.liveSegments,
+    });
+    _log('finalizeLiveRecording: ${res.data}');
+  }
+
+  Duration _backoff(int attempts) {
+    final ms = _baseBackoff.inMilliseconds * pow(2, min(attempts - 1, 10));
+    final capped = min(ms.toDouble(), _maxBackoff.inMilliseconds.toDouble());
+    // +/-20% jitter so parallel jobs don't retry in lockstep
+    final jitter = 0.8 + Random().nextDouble() * 0.4;
+    return Duration(milliseconds: (capped * jitter).round());
+  }
+
+  /// Phase label lists the destinations still in flight.
+  void _updatePhase(UploadJob job) {
+    final active = [
+      if (!job.storageDone || !job.metadataDone) 'Firebase',
+      if (job.driveFileId == null) 'Google Drive',
+    ];
+    job.phase = active.isEmpty ? null : active.join(' + ');
+    notifyListeners();
+  }
+
+  // Byte counters move on every chunk; repaint at most ~5x per second.
+  DateTime _lastProgressNotify = DateTime.fromMillisecondsSinceEpoch(0);
+  void _progressChanged() {
+    final now = DateTime.now();
+    if (now.difference(_lastProgressNotify) < const Duration(milliseconds: 200)) {
+      return;
+    }
+    _lastProgressNotify = now;
+    notifyListeners();
+  }
+
+  DocumentReference<Map<String, dynamic>> _recordingRef(UploadJob job) =>
+      FirebaseFirestore.instance
+          .collection('users')
+          .doc(job.uid)
+          .collection('recordings')
+          .doc(job.recordingDocId);
+
+  // ---------------- Destinations ----------------
+
+  /// Chunked resumable upload (Firebase Storage REST protocol). The session
+  /// URL is persisted with the job, so after a failure or an app restart the
+  /// upload asks the server how much it has and continues from there.
+  Future<void> _uploadToStorage(UploadJob job, File file) async {
+    final user = fb.FirebaseAuth.instance.currentUser;
+    if (user == null || user.uid != job.uid) {
+      throw 'Not signed in as the recording owner';
+    }
+    Future<Map<String, String>> auth() async {
+      final h = {'Authorization': 'Firebase ${await user.getIdToken()}'};
+      try {
+        final appCheck = await FirebaseAppCheck.instance.getToken();
+        if (appCheck != null) h['X-Firebase-AppCheck'] = appCheck;
+      } catch (_) {}
+      return h;
+    }
+
+    final length = job.totalBytes;
+    final client = http.Client();
+    try {
+      var offset = 0;
+      if (job.storageSession != null) {
+        final r = await client.post(Uri.parse(job.storageSession!), headers: {
+          ...await auth(),
+          'X-Goog-Upload-Command': 'query',
+        });
+        final status = r.headers['x-goog-upload-status'];
+        if (r.statusCode == 200 && status == 'final') {
+          job.storageSession = null;
+          return;
+        }
+        if (r.statusCode == 200 && status == 'active') {
+          offset = int.tryParse(r.headers['x-goog-upload-size-received'] ?? '') ?? 0;
+          _log('Storage upload ${job.id} resuming at $offset/$length bytes');
+        } else {
+          job.storageSession = null; // expired or cancelled: start over
+        }
+      }
+
+      if (job.storageSession == null) {
+        _log('Uploading to Firebase Storage path=${job.storagePath}');
+        final bucket = FirebaseStorage.instance.bucket;
+        final r = await client.post(
+          _storageUploadUri(bucket, job.storagePath),
+          headers: {
+            ...await auth(),
+            'Content-Type': 'application/json; charset=utf-8',
+            'X-Goog-Upload-Protocol': 'resumable',
+            'X-Goog-Upload-Command': 'start',
+            'X-Goog-Upload-Header-Content-Length': '$length',
+            'X-Goog-Upload-Header-Content-Type': job.mimeType,
+          },
+          body: jsonEncode({
+            'name': job.storagePath,
+            'contentType': job.mimeType,
+            // Live segments are transcribed by the server as they land
+            if (job.isSegment)
+              'metadata': {
+                'liveTranscribe': '1',
+                'durationMs': '${job.segmentDurationMs}',
+              },
+          }),
+        );
+        final url = r.headers['x-goog-upload-url'];
+        if (r.statusCode != 200 || url == null) {
+          throw 'Storage session start failed (${r.statusCode}): ${r.body}';
+        }
+        job.storageSession = url;
+        await _persist();
+      }
+
+      job.storageSent = offset;
+      while (offset < length) {
+        final n = min(_chunkBytes, length - offset);
+        final last = offset + n >= length;
+        final req = http.StreamedRequest('POST', Uri.parse(job.storageSession!))
+          ..contentLength = n
+          ..headers.addAll({
+            ...await auth(),
+            'X-Goog-Upload-Command': last ? 'upload, finalize' : 'upload',
+            'X-Goog-Upload-Offset': '$offset',
+          });
+        // Count bytes as the client pulls them, so progress moves within a chunk
+        final body = file.openRead(offset, offset + n).map((chunk) {
+          job.storageSent += chunk.length;
+          _progressChanged();
+          return chunk;
+        });
+        final sw = Stopwatch()..start();
+        final sending = client.send(req);
+        unawaited(body.pipe(req.sink).catchError((_) {})); // failures surface via the response
+        final http.Response r;
+        try {
+          r = await http.Response.fromStream(await sending);
+        } catch (_) {
+          job.storageSent = offset;
+          rethrow;
+        }
+        sw.stop();
+        if (r.statusCode != 200) {
+          job.storageSent = offset;
+          throw 'Storage chunk at $offset failed (${r.statusCode}): ${r.body}';
+        }
+        offset += n;
+        job.storageSent = offset;
+
+        // Smoothed throughput for the UI; raw per-chunk rate to the log
+        final bps = n * 1000 / max(1, sw.elapsedMilliseconds);
+        final prev = job.storageBytesPerSecond;
+        job.storageBytesPerSecond = prev == null ? bps : prev * 0.7 + bps * 0.3;
+        _log('Storage upload ${job.id}: $offset/$length bytes, '
+            '${(bps / 1024).toStringAsFixed(0)} KiB/s');
+        _progressChanged();
+      }
+      job.storageSession = null;
+    } finally {
+      client.close();
+    }
+  }
+
+  /// Point the app's Storage instance, and the queue's own REST uploads
+  /// (which can't read the plugin's setting), at the Storage emulator.
+  /// Like the plugin, "localhost" means the host machine on Android.
+  Future<void> useStorageEmulator(String host, int port) async {
+    await FirebaseStorage.instance.useStorageEmulator(host, port);
+    final mapped = Platform.isAndroid && (host == 'localhost' || host == '127.0.0.1')
+        ? '10.0.2.2'
+        : host;
+    _storageEmulator = Uri(scheme: 'http', host: mapped, port: port);
+  }
+
+  /// Resumable-upload start URL of [name] in [bucket], on the emulator when
+  /// one is configured.
+  Uri _storageUploadUri(String bucket, String name) {
+    final emulator = _storageEmulator;
+    return emulator != null
+        ? emulator.replace(path: '/v0/b/$bucket/o', queryParameters: {'name': name})
+        : Uri.https('firebasestorage.googleapis.com', '/v0/b/$bucket/o', {'name': name});
+  }
+
+  /// Writes the recording doc under the job's pre-chosen ID, so a retry
+  /// after a lost response overwrites instead of duplicating.
+  Future<void> _writeMetadata(UploadJob job, File file, String? driveFileId) async {
+    await _recordingRef(job).set({
+      'filename': job.filename,
+      'className': job.className,
+      'topic': job.topic,
+      'createdAt': job.createdAt.toIso8601String(),
+      'durationSeconds': job.durationSeconds,
+      'storageUrl': '',
+      'storagePath': job.storagePath,
+      'driveFileId': driveFileId,
+      'uid': job.uid,
+      'sizeBytes': await file.length(),
+      'mimeType': job.mimeType,
+      if (job.encodingProfile != null) 'encodingProfile': job.encodingProfile,
+      if (job.timeMap.isNotEmpty) 'timeMap': job.timeMap,
+      if (job.liveSegments > 0) 'liveSegmentCount': job.liveSegments,
+
+      // Phase-2 additive fields (non-breaking)
+      'transcriptStatus': 'none',
+      'transcribeRequested': false,
+      'transcriptDriveFileId': null,
+      'subtitleDriveFileIds': <String>[],
+      'summaryStatus': 'none',
+      'notesStatus': 'none',
+      'quizStatus': 'none',
+    });
+  }
+
+  // Small helper to compute semester string safely
+  String _semesterFor(DateTime dt) {
+    final m = dt.month;
+    if (m >= 1 && m <= 5) return 'Spring';
+    if (m >= 6 && m <= 8) return 'Summer';
+    return 'Fall';
+  }
+
+  Future<String> _uploadToDrive(UploadJob job, File file) async {
+    // Background retries must not pop a sign-in sheet; the user signed in
+    // with Google at login, so a silent sign-in normally succeeds.
+    final acc = await _gsi.signInSilently();
+    if (acc == null) throw 'Google account not connected';
+
+    final httpClient = _GoogleAuthClient(await acc.authHeaders);
+    try {
+      final api = drive.DriveApi(httpClient);
+
+      // Study Buddy / {Year}_{Semester} / {Class Name} / {Lecture Topic}
+      final folderPath = [
+        'Study Buddy',
+        '${job.createdAt.year}_${_semesterFor(job.createdAt)}',
+        job.className,
+        job.topic,
+      ];
+
+      final length = await file.length();
+      Future<drive.File> create(String parentId) {
+        final meta = drive.File()
+          ..name = job.filename
+          ..parents = [parentId]
+          ..mimeType = job.mimeType;
+
+        // Count bytes as the client pulls them so Drive reports real progress
+        job.driveSent = 0;
+        final stream = file.openRead(0, length).map((chunk) {
+          job.driveSent += chunk.length;
+          _progressChanged();
+          return chunk;
+        });
+
+        // Resumable upload — reliable for large recordings
+        return api.files.create(
+          meta,
+          uploadMedia: drive.Media(stream, length),
+          uploadOptions: drive.ResumableUploadOptions(),
+          $fields: 'id,trashed',
+        );
+      }
+
+      drive.File uploaded;
+      String parentId;
+      try {
+        parentId = await _resolveFolder(api, acc.id, folderPath);
+        uploaded = await create(parentId);
+      } on drive.DetailedApiRequestError catch (e) {
+        // A cached folder was deleted in Drive: forget the chain, resolve again.
+        if (e.status != 404) rethrow;
+        _log('Drive folder cache stale for ${folderPath.join('/')}; re-resolving');
+        _forgetFolders(acc.id);
+        parentId = await _resolveFolder(api, acc.id, folderPath);
+        uploaded = await create(parentId);
+      }
+      if (uploaded.id == null) throw 'Drive returned no file id';
+      if (uploaded.trashed == true) {
+        // Uploading into a trashed cached folder succeeds, but Drive marks
+        // the new file trashed too: move it into a freshly resolved chain.
+        _log('Drive folder cache trashed for ${folderPath.join('/')}; re-resolving');
+        _forgetFolders(acc.id);
+        final freshId = await _resolveFolder(api, acc.id, folderPath);
+        await api.files.update(
+          drive.File()..trashed = false,
+          uploaded.id!,
+          addParents: freshId,
+          removeParents: parentId,
+          $fields: 'id',
+        );
+      }
+      return uploaded.id!;
+    } finally {
+      httpClient.close();
+    }
+  }
+
+  /// Folder ID for [segments] under My Drive, creating missing folders.
+  /// A fully cached path costs no API calls.
+  Future<String> _resolveFolder(
+    drive.DriveApi api,
+    String account,
+    List<String> segments,
+  ) async {
+    var parentId = 'root';
+    var key = account;
+    for (final name in segments) {
+      key = '$key/$name';
+      final cached = _folders[key];
+      if (cached != null) {
+        parentId = cached;
+        continue;
+      }
+      final parent = parentId;
+      final k = key;
+      parentId = await (_folderLookups[k] ??=
+          _getOrCreateFolder(api, name, parentId: parent).then((id) {
+        _folders[k] = id;
+        _persistFolders();
+        return id;
+      }).whenComplete(() => _folderLookups.remove(k)));
+    }
+    return parentId;
+  }
+
+  void _forgetFolders(String account) {
+    _folders.removeWhere((k, _) => k.startsWith('$account/'));
+    _persistFolders();
+  }
+
+  Future<String> _getOrCreateFolder(
+    drive.DriveApi api,
+    String name, {
+    required String parentId,
+  }) async {
+    final q =
+        "mimeType='application/vnd.google-apps.folder' and name='${name.replaceAll("'", r"\'")}' and '$parentId' in parents and trashed=false";
+    final res = await api.files.list(
+      q: q,
+      $fields: 'files(id,name)',
+      spaces: 'drive',
+      pageSize: 1,
+    );
+    if (res.files != null && res.files!.isNotEmpty) {
+      return res.files!.first.id!;
+    }
+    final folderMeta = drive.File()
+      ..name = name
+      ..mimeType = 'application/vnd.google-apps.folder'
+      ..parents = [parentId];
+    final created = await api.files.create(folderMeta);
+    return created.id!;
+  }
+
+  // ---------------- Persistence ----------------
+
+  Future<Directory> _queueDir() async {
+    if (_dir != null) return _dir!;
+    final base = await getApplicationSupportDirectory();
+    final dir = Directory(path.join(base.path, 'upload_queue'));
+    await dir.create(recursive: true);
+    return _dir = dir;
+  }
+
+  Future<File> _moveInto(File file, String dest) async {
+    try {
+      return await file.rename(dest);
+    } on FileSystemException {
+      // Different filesystem: copy, then remove the temp original
+      final copy = await file.copy(dest);
+      try {
+        await file.delete();
+      } catch (_) {}
+      return copy;
+    }
+  }
+
+  Future<void> _persist() =>
+      _writeJson('queue.json', _jobs.map((j) => j.toJson()).toList());
+
+  Future<void> _persistFolders() => _writeJson('drive_folders.json', _folders);
+
+  Future<void> _persistDiscards() => _writeJson('live_discards.json', _discards.toList());
+
+  /// Serialized write-then-rename so a crash never leaves a torn file.
+  Future<void> _writeJson(String name, Object value) {
+    final snapshot = jsonEncode(value);
+    return _writes = _writes.then((_) async {
+      try {
+        final dir = await _queueDir();
+        final tmp = File(path.join(dir.path, '$name.tmp'));
+        await tmp.writeAsString(snapshot, flush: true);
+        await tmp.rename(path.join(dir.path, name));
+      } catch (e) {
+        _log('Upload queue persist failed ($name): $e');
+      }
+    });
+  }
+}
+
+class _GoogleAuthClient extends http.BaseClient {
+  final Map<String, String> _headers;
+  final http.Client _client = http.Client();
+
+  _GoogleAuthClient(this._headers);
+
+  @override
+  Future<http.StreamedResponse> send(http.BaseRequest request) {
+    request.headers.addAll(_headers);
+    return _client.send(request);
+  }
+
+  void close() => _client.close();
+}